@@ -0,0 +1,15 @@
+package internals;
+
+import annotations.OnEvent;
+
+/**
+ * The listener invoked by {@link ModuleHooksBenchmark}, which is loaded again by a module class loader, as the classes of a module are.
+ */
+class BenchmarkListeners {
+    static long sequenceNumbers;
+
+    @OnEvent(GatewayEventType.MESSAGE_CREATE)
+    static void onMessage(GatewayEvent event) {
+        sequenceNumbers += event.getSequenceNumber();
+    }
+}
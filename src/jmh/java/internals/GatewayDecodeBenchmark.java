@@ -0,0 +1,59 @@
+package internals;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the envelope of a gateway payload, against parsing the whole payload into a JSON tree, which is what
+ * had to be done for every payload before the envelope was read in place, for both the JSON and the ETF encodings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GatewayDecodeBenchmark {
+    @Param({"ready", "guild_create", "message_create"})
+    public String payload;
+
+    private String message;
+    private ByteBuffer etfMessage;
+    private final GatewayEnvelope envelope = new GatewayEnvelope();
+
+    @Setup
+    public void setUp() throws IOException {
+        message = Payloads.read(payload);
+        etfMessage = Payloads.readEtf(payload);
+    }
+
+    @Benchmark
+    public GatewayEventType readEnvelope() {
+        envelope.read(message);
+        return envelope.getEventType();
+    }
+
+    @Benchmark
+    public JSONObject parseTree() {
+        return new JSONObject(message);
+    }
+
+    @Benchmark
+    public GatewayEventType readEtfEnvelope() {
+        envelope.read(etfMessage);
+        return envelope.getEventType();
+    }
+
+    @Benchmark
+    public Object decodeEtfTree() {
+        return EtfDecoder.decode(etfMessage);
+    }
+}
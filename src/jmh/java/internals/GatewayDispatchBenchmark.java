@@ -0,0 +1,64 @@
+package internals;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DiscordWebSocketHandler#onMessage(String)} on a shard which isn't connected, from reading the envelope of a payload
+ * to invoking the listeners of the event. Listeners run on the calling thread, so the handoff to the event threads isn't measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GatewayDispatchBenchmark {
+    @Param({"ready", "guild_create", "message_create"})
+    public String payload;
+
+    /**
+     * Whether a listener parsing the data of the event is registered. Without listeners, the data of an event is never parsed.
+     */
+    @Param({"false", "true"})
+    public boolean listening;
+
+    private String message;
+    private ScheduledExecutorService scheduler;
+    private DiscordWebSocketHandler handler;
+    private JSONObject lastData;
+
+    @Setup
+    public void setUp() throws IOException {
+        message = Payloads.read(payload);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        EventDispatcher dispatcher = new EventDispatcher(new DirectExecutorService(), 0);
+        if (listening) {
+            for (GatewayEventType type : GatewayEventType.values()) {
+                dispatcher.register(type, event -> lastData = event.getData());
+            }
+        }
+        ShardManager shardManager = new ShardManager("wss://gateway.discord.gg", 1, 1, -1, dispatcher, scheduler, false, false);
+        handler = shardManager.getShard(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public void onMessage() {
+        handler.onMessage(message);
+    }
+}
@@ -0,0 +1,58 @@
+package internals;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sending a burst of messages through the rate limit window of a gateway connection, from queuing them to writing them
+ * on the writer thread. Each burst uses a new queue and stays below the limit of the window, so that no message waits for a slot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@OperationsPerInvocation(GatewaySendQueueBenchmark.MESSAGES)
+public class GatewaySendQueueBenchmark {
+    static final int MESSAGES = 100;
+
+    /**
+     * The number of priority messages at the start of each burst, which are written before the normal messages.
+     */
+    @Param({"0", "10"})
+    public int priorityMessages;
+
+    private final String message = "{\"op\":3,\"d\":{\"since\":null,\"activities\":[{\"name\":\"CuteCord\",\"type\":0}],\"status\":\"online\",\"afk\":false}}";
+    private ScheduledExecutorService scheduler;
+
+    @Setup
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public void burst() {
+        GatewaySendQueue<String> queue = new GatewaySendQueue<>(scheduler, payload -> {});
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < MESSAGES; i++) {
+            last = queue.submit(message, i < priorityMessages);
+        }
+        last.join();
+    }
+}
@@ -0,0 +1,82 @@
+package internals;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures invoking the listener of a module through the hooks built by {@link ModuleHooks}, against invoking it by reflection,
+ * which is how hooks used to be invoked, and against a direct call, which is the best that can be done.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModuleHooksBenchmark {
+    private BenchmarkClassLoader classLoader;
+    private EventListener listener;
+    private Method method;
+    private GatewayEvent event;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException, IOException {
+        classLoader = new BenchmarkClassLoader();
+        Class<?> listenerClass = classLoader.define(BenchmarkListeners.class);
+        ModuleHooks hooks = new ModuleHooks("benchmark", classLoader, null, null, List.of(listenerClass));
+        listener = hooks.getListeners().get(0).listener();
+        method = listenerClass.getDeclaredMethod("onMessage", GatewayEvent.class);
+        method.setAccessible(true);
+        String message = Payloads.read("message_create");
+        int dataStart = message.indexOf("\"d\":") + 4;
+        event = new GatewayEvent(GatewayEventType.MESSAGE_CREATE, 3, message, dataStart, message.length() - 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        classLoader.close();
+    }
+
+    @Benchmark
+    public void lambdaMetafactory() {
+        listener.onEvent(event);
+    }
+
+    @Benchmark
+    public void reflection() throws ReflectiveOperationException {
+        method.invoke(null, event);
+    }
+
+    @Benchmark
+    public void direct() {
+        BenchmarkListeners.onMessage(event);
+    }
+
+    /**
+     * A module class loader which defines the classes of the benchmark again, instead of loading them from a jar.
+     */
+    private static final class BenchmarkClassLoader extends ModuleClassLoader {
+        private BenchmarkClassLoader() {
+            super("benchmark", BenchmarkClassLoader.class.getProtectionDomain().getCodeSource().getLocation(),
+                    BenchmarkClassLoader.class.getClassLoader());
+        }
+
+        private Class<?> define(Class<?> clazz) throws IOException {
+            String resource = "/" + clazz.getName().replace('.', '/') + ".class";
+            try (InputStream stream = clazz.getResourceAsStream(resource)) {
+                if (stream == null) throw new IOException("No class file for " + clazz.getName());
+                byte[] bytes = stream.readAllBytes();
+                return defineClass(clazz.getName(), bytes, 0, bytes.length);
+            }
+        }
+    }
+}
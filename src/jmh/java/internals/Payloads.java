@@ -0,0 +1,58 @@
+package internals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The gateway payloads the benchmarks are run on, stored in `src/jmh/resources/payloads`. They are shaped like payloads received
+ * from the gateway, with the same fields and a realistic size, a GUILD_CREATE being the largest payload a bot receives regularly.
+ */
+final class Payloads {
+    private Payloads() {
+    }
+
+    /**
+     * Reads a payload.
+     *
+     * @param name The name of the payload, such as `ready`, `guild_create` or `message_create`.
+     * @return The payload, as received from the gateway.
+     * @throws IOException if the payload doesn't exist.
+     */
+    static String read(String name) throws IOException {
+        try (InputStream stream = Payloads.class.getResourceAsStream("/payloads/" + name + ".json")) {
+            if (stream == null) throw new IOException("No payload named " + name);
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads a payload, encoded as the gateway sends it with `encoding=etf`, where snowflakes are integers instead of strings.
+     *
+     * @param name The name of the payload, such as `ready`, `guild_create` or `message_create`.
+     * @return The ETF payload, as received from the gateway.
+     * @throws IOException if the payload doesn't exist.
+     */
+    static ByteBuffer readEtf(String name) throws IOException {
+        return EtfEncoder.encode((JSONObject) toEtfTerm(new JSONObject(read(name))));
+    }
+
+    private static Object toEtfTerm(Object value) {
+        if (value instanceof JSONObject object) {
+            for (String key : object.keySet()) {
+                object.put(key, toEtfTerm(object.get(key)));
+            }
+        } else if (value instanceof JSONArray array) {
+            for (int i = 0; i < array.length(); i++) {
+                array.put(i, toEtfTerm(array.get(i)));
+            }
+        } else if (value instanceof String string && string.length() >= 15 && string.length() <= 19 && string.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(string);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,16 @@
+package annotations;
+
+import internals.GatewayEventType;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a static method taking a single {@link internals.GatewayEvent} as a listener for the given event types.
+ * The method is looked for in the classes named in the `Module-Start`, `Module-Stop` and `Module-Listeners` attributes of the manifest.
+ */
+@Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+@Target(java.lang.annotation.ElementType.METHOD)
+public @interface OnEvent {
+    GatewayEventType[] value();
+}
@@ -0,0 +1,250 @@
+package internals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the guilds, channels, members, users and presences received from the gateway, so that modules don't need to request them
+ * through the REST API. The caches are only fed by dispatch events, and only listen to the events they need, depending on their policy.
+ * Entities are stored as received from Discord. Guilds are stored without their channels, threads, members, presences and voice states,
+ * which are stored in their own caches.
+ */
+public class CacheManager {
+    /**
+     * The fields of GUILD_CREATE which aren't kept in the guild cache, as they are either stored in other caches or too large.
+     */
+    private static final String[] GUILD_CREATE_ONLY_FIELDS = {"channels", "threads", "members", "presences", "voice_states"};
+
+    private final EntityCache<JSONObject> guilds;
+    private final EntityCache<JSONObject> channels;
+    private final EntityCache<JSONObject> members;
+    private final EntityCache<JSONObject> users;
+    private final EntityCache<JSONObject> presences;
+
+    /**
+     * Instantiates a new CacheManager.
+     *
+     * @param guilds    The policy of the guild cache.
+     * @param channels  The policy of the channel and thread cache.
+     * @param members   The policy of the member cache.
+     * @param users     The policy of the user cache.
+     * @param presences The policy of the presence cache.
+     */
+    public CacheManager(CachePolicy guilds, CachePolicy channels, CachePolicy members, CachePolicy users, CachePolicy presences) {
+        this(new HeapEntityCache<>(guilds), new HeapEntityCache<>(channels), new HeapEntityCache<>(members),
+                new HeapEntityCache<>(users), new HeapEntityCache<>(presences));
+    }
+
+    /**
+     * Instantiates a new CacheManager with the given caches, such as caches keeping members and presences off the heap.
+     *
+     * @param guilds    The guild cache.
+     * @param channels  The channel and thread cache.
+     * @param members   The member cache.
+     * @param users     The user cache.
+     * @param presences The presence cache.
+     */
+    public CacheManager(EntityCache<JSONObject> guilds, EntityCache<JSONObject> channels, EntityCache<JSONObject> members,
+                        EntityCache<JSONObject> users, EntityCache<JSONObject> presences) {
+        this.guilds = guilds;
+        this.channels = channels;
+        this.members = members;
+        this.users = users;
+        this.presences = presences;
+    }
+
+    /**
+     * Registers the listeners feeding the caches, and schedules the removal of expired entities.
+     *
+     * @param dispatcher The dispatcher of the gateway events.
+     * @param scheduler  The scheduler on which expired entities are removed.
+     */
+    public void register(EventDispatcher dispatcher, ScheduledExecutorService scheduler) {
+        boolean guildsEnabled = guilds.getPolicy().isEnabled();
+        boolean channelsEnabled = channels.getPolicy().isEnabled();
+        boolean membersEnabled = members.getPolicy().isEnabled() || users.getPolicy().isEnabled();
+        boolean presencesEnabled = presences.getPolicy().isEnabled();
+        if (guildsEnabled || channelsEnabled || membersEnabled || presencesEnabled) {
+            dispatcher.register(GatewayEventType.GUILD_CREATE, event -> onGuildCreate(event.getData()));
+            dispatcher.register(GatewayEventType.GUILD_DELETE, event -> onGuildDelete(event.getData()));
+        }
+        if (guildsEnabled) {
+            dispatcher.register(GatewayEventType.GUILD_UPDATE, event -> putGuild(event.getData()));
+        }
+        if (channelsEnabled) {
+            EventListener put = event -> putChannel(event.getData().optLong("guild_id"), event.getData());
+            EventListener remove = event -> channels.remove(0, event.getData().getLong("id"));
+            dispatcher.register(GatewayEventType.CHANNEL_CREATE, put);
+            dispatcher.register(GatewayEventType.CHANNEL_UPDATE, put);
+            dispatcher.register(GatewayEventType.CHANNEL_DELETE, remove);
+            dispatcher.register(GatewayEventType.THREAD_CREATE, put);
+            dispatcher.register(GatewayEventType.THREAD_UPDATE, put);
+            dispatcher.register(GatewayEventType.THREAD_DELETE, remove);
+        }
+        if (membersEnabled) {
+            EventListener put = event -> putMember(event.getData().getLong("guild_id"), event.getData());
+            dispatcher.register(GatewayEventType.GUILD_MEMBER_ADD, put);
+            dispatcher.register(GatewayEventType.GUILD_MEMBER_UPDATE, put);
+            dispatcher.register(GatewayEventType.GUILD_MEMBER_REMOVE, event -> members.remove(
+                    event.getData().getLong("guild_id"), event.getData().getJSONObject("user").getLong("id")));
+            dispatcher.register(GatewayEventType.READY, event -> putUser(event.getData().getJSONObject("user")));
+            dispatcher.register(GatewayEventType.USER_UPDATE, event -> putUser(event.getData()));
+        }
+        if (presencesEnabled) {
+            dispatcher.register(GatewayEventType.PRESENCE_UPDATE, event -> putPresence(event.getData().getLong("guild_id"), event.getData()));
+        }
+        if (membersEnabled || presencesEnabled) {
+            dispatcher.register(GatewayEventType.GUILD_MEMBERS_CHUNK, event -> onGuildMembersChunk(event.getData()));
+        }
+        scheduler.scheduleAtFixedRate(this::removeExpired, 1, 1, TimeUnit.MINUTES);
+    }
+
+    private void onGuildCreate(JSONObject guild) {
+        long guildId = guild.getLong("id");
+        putGuild(guild);
+        for (String field : new String[]{"channels", "threads"}) {
+            JSONArray guildChannels = guild.optJSONArray(field);
+            if (guildChannels == null) continue;
+            for (int i = 0; i < guildChannels.length(); i++) {
+                putChannel(guildId, guildChannels.getJSONObject(i));
+            }
+        }
+        JSONArray guildMembers = guild.optJSONArray("members");
+        if (guildMembers != null) {
+            for (int i = 0; i < guildMembers.length(); i++) {
+                putMember(guildId, guildMembers.getJSONObject(i));
+            }
+        }
+        JSONArray guildPresences = guild.optJSONArray("presences");
+        if (guildPresences != null) {
+            for (int i = 0; i < guildPresences.length(); i++) {
+                putPresence(guildId, guildPresences.getJSONObject(i));
+            }
+        }
+    }
+
+    private void onGuildDelete(JSONObject guild) {
+        // An unavailable guild is only temporarily out of reach because of an outage, its entities are still valid.
+        if (guild.optBoolean("unavailable")) return;
+        long guildId = guild.getLong("id");
+        guilds.remove(0, guildId);
+        channels.removeOwnedBy(guildId);
+        members.removeOwnedBy(guildId);
+        presences.removeOwnedBy(guildId);
+    }
+
+    private void onGuildMembersChunk(JSONObject chunk) {
+        long guildId = chunk.getLong("guild_id");
+        JSONArray chunkMembers = chunk.getJSONArray("members");
+        for (int i = 0; i < chunkMembers.length(); i++) {
+            putMember(guildId, chunkMembers.getJSONObject(i));
+        }
+        JSONArray chunkPresences = chunk.optJSONArray("presences");
+        if (chunkPresences != null) {
+            for (int i = 0; i < chunkPresences.length(); i++) {
+                putPresence(guildId, chunkPresences.getJSONObject(i));
+            }
+        }
+    }
+
+    private void putGuild(JSONObject guild) {
+        if (!guilds.getPolicy().isEnabled()) return;
+        JSONObject stored = guild;
+        if (guild.has("channels") || guild.has("members")) {
+            stored = new JSONObject();
+            for (String field : guild.keySet()) {
+                stored.put(field, guild.get(field));
+            }
+            for (String field : GUILD_CREATE_ONLY_FIELDS) {
+                stored.remove(field);
+            }
+        }
+        guilds.put(0, guild.getLong("id"), guild.getLong("id"), stored);
+    }
+
+    private void putChannel(long guildId, JSONObject channel) {
+        channels.put(0, channel.getLong("id"), guildId, channel);
+    }
+
+    private void putMember(long guildId, JSONObject member) {
+        JSONObject user = member.getJSONObject("user");
+        long userId = user.getLong("id");
+        members.put(guildId, userId, guildId, member);
+        putUser(user);
+    }
+
+    private void putUser(JSONObject user) {
+        users.put(0, user.getLong("id"), 0, user);
+    }
+
+    private void putPresence(long guildId, JSONObject presence) {
+        presences.put(guildId, presence.getJSONObject("user").getLong("id"), guildId, presence);
+    }
+
+    private void removeExpired() {
+        guilds.removeExpired();
+        channels.removeExpired();
+        members.removeExpired();
+        users.removeExpired();
+        presences.removeExpired();
+    }
+
+    /**
+     * Releases the resources of the caches, such as the files of the caches kept off the heap. They aren't fed anymore afterwards.
+     */
+    public void close() {
+        guilds.close();
+        channels.close();
+        members.close();
+        users.close();
+        presences.close();
+    }
+
+    /**
+     * Gets the cache of guilds, keyed by guild id.
+     *
+     * @return The guild cache.
+     */
+    public EntityCache<JSONObject> getGuilds() {
+        return guilds;
+    }
+
+    /**
+     * Gets the cache of channels and threads, keyed by channel id.
+     *
+     * @return The channel cache.
+     */
+    public EntityCache<JSONObject> getChannels() {
+        return channels;
+    }
+
+    /**
+     * Gets the cache of members, scoped by guild id and keyed by user id.
+     *
+     * @return The member cache.
+     */
+    public EntityCache<JSONObject> getMembers() {
+        return members;
+    }
+
+    /**
+     * Gets the cache of users, keyed by user id.
+     *
+     * @return The user cache.
+     */
+    public EntityCache<JSONObject> getUsers() {
+        return users;
+    }
+
+    /**
+     * Gets the cache of presences, scoped by guild id and keyed by user id.
+     *
+     * @return The presence cache.
+     */
+    public EntityCache<JSONObject> getPresences() {
+        return presences;
+    }
+}
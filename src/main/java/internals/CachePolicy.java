@@ -0,0 +1,71 @@
+package internals;
+
+/**
+ * Describes which entities of a given type are kept by an {@link EntityCache}: none of them, all of them,
+ * or only the most recently used ones, up to a maximum size and for a maximum time since they were last written.
+ */
+public final class CachePolicy {
+    public static final CachePolicy NONE = new CachePolicy(false, 0, 0);
+    public static final CachePolicy ALL = new CachePolicy(true, 0, 0);
+
+    private final boolean enabled;
+    private final int maxSize;
+    private final long ttl;
+
+    private CachePolicy(boolean enabled, int maxSize, long ttl) {
+        this.enabled = enabled;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Creates a policy keeping the most recently used entities.
+     *
+     * @param maxSize The maximum number of entities kept, or 0 for no limit.
+     * @param ttl     The time an entity is kept after being written in milliseconds, or 0 for no limit.
+     * @return The policy.
+     */
+    public static CachePolicy lru(int maxSize, long ttl) {
+        return new CachePolicy(true, maxSize, ttl);
+    }
+
+    /**
+     * Parses a policy from the configuration, which is one of `none`, `all`, `lru:<max size>`, or `lru:<max size>:<ttl in seconds>`.
+     *
+     * @param value The value from the configuration.
+     * @return The policy.
+     * @throws IllegalArgumentException If the value isn't a valid policy.
+     */
+    public static CachePolicy parse(String value) {
+        String[] split = value.trim().split(":");
+        switch (split[0]) {
+            case "none" -> {
+                return NONE;
+            }
+            case "all" -> {
+                return ALL;
+            }
+            case "lru" -> {
+                if (split.length < 2 || split.length > 3) break;
+                try {
+                    return lru(Integer.parseInt(split[1]), split.length == 3 ? Long.parseLong(split[2]) * 1000 : 0);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            default -> {}
+        }
+        throw new IllegalArgumentException(String.format("Invalid cache policy `%s`", value));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+}
@@ -0,0 +1,39 @@
+package internals;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A metric which only goes up, such as a number of events received. Incrementing it doesn't lock and barely contends,
+ * as the count is striped over several cells when several threads increment it at once.
+ */
+public final class Counter {
+    private final LongAdder count = new LongAdder();
+
+    Counter() {
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * Adds a value to the counter.
+     *
+     * @param value The value to add, which must not be negative.
+     */
+    public void add(long value) {
+        count.add(value);
+    }
+
+    /**
+     * Gets the current value of the counter.
+     *
+     * @return The sum of everything added to the counter.
+     */
+    public long get() {
+        return count.sum();
+    }
+}
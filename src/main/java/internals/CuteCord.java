@@ -1,47 +1,84 @@
 package internals;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
 import org.json.JSONObject;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class CuteCord {
     protected static String AUTH_TOKEN;
     private static final Map<String, String> CONFIG = new HashMap<>();
 
-    private static DiscordWebSocketHandler handler;
+    private static ShardManager shardManager;
 
     /**
-     * The class loader used to load the modules.
+     * The scheduler shared by all gateway connections for their timers.
      */
-    protected static ClassLoader moduleLoader = null;
+    private static ScheduledExecutorService scheduler;
 
-    static {
-        try {
-            moduleLoader = new URLClassLoader(new URL[]{new File("modules").toURI().toURL()});
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-    }
+    /**
+     * The scheduler of the tasks of modules, which shares the timers of the gateway connections.
+     */
+    private static TaskScheduler taskScheduler;
+
+    /**
+     * The executor on which the tasks of modules run.
+     */
+    private static ExecutorService taskExecutor;
+
+    /**
+     * The dispatcher which routes gateway events to the listeners registered by modules.
+     */
+    private static EventDispatcher eventDispatcher;
+
+    /**
+     * The caches of the entities received from the gateway.
+     */
+    private static CacheManager cacheManager;
+
+    /**
+     * The requester of guild members through the gateway, created once the shards are.
+     */
+    private static MemberRequester memberRequester;
+
+    /**
+     * The journal of the dispatch messages received from the gateway, null until it is opened, or if it is disabled.
+     */
+    private static EventJournal eventJournal;
 
     /**
      * The current list of all modules, with name of module as key and module as value.
      */
-    private static Map<String, Module> modules = new HashMap<>();
+    private static Map<String, Module> modules = new ConcurrentHashMap<>();
+
+    /**
+     * The watcher which reloads modules when their jar changes, null if hot reload is disabled.
+     */
+    private static ModuleWatcher moduleWatcher;
+
+    /**
+     * The server exposing the metrics in the Prometheus text format, null if it isn't enabled.
+     */
+    private static MetricsServer metricsServer;
 
     /**
      * Load modules
@@ -65,32 +102,101 @@ public class CuteCord {
     }
 
     /**
-     * Loads recursively the modules from the given folder.
+     * Loads the modules from the given folder and all its subfolders.
+     * The folders are walked first, then all the jars are opened and their manifests read in parallel, on the common fork-join pool.
      * @param moduleFile The base folder to load the modules from.
-     * @return A map with all the modules loaded. As this is a recursive method, the map will contain modules present in specified folder and all its subfolders.
+     * @return A map with all the modules loaded, present in specified folder and all its subfolders.
      */
     public static Map<String, Module> loadModules(File moduleFile) {
-        Map<String, Module> currentModules = new HashMap<>();
-        if (moduleFile.isDirectory()) {
-            for (File file : Objects.requireNonNull(moduleFile.listFiles())) {
-                currentModules.putAll(loadModules(file));
-            }
-        } else {
-            if (moduleFile.getName().endsWith(".jar")) {
-                System.out.println("INFO: Loading module: " + moduleFile.getName());
-                Module module = new Module(moduleFile);
-                String moduleName = module.getName();
-                if (modules.containsKey(moduleName)) {
-                    // TODO: Handle case of module collision to only load the latest version of a module
-                    System.err.printf("ERROR: Module `%s` is already loaded.%n", moduleName);
+        List<File> jars;
+        try (Stream<Path> paths = Files.walk(moduleFile.toPath())) {
+            jars = paths.filter(path -> path.getFileName().toString().endsWith(".jar") && Files.isRegularFile(path))
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            System.err.printf("ERROR: Could not walk the module folder `%s`.%n", moduleFile.getAbsolutePath());
+            System.exit(1);
+            return Map.of();
+        }
+        List<Module> loadedModules = jars.parallelStream()
+                .map(jar -> {
+                    System.out.println("INFO: Loading module: " + jar.getName());
+                    try {
+                        return new Module(jar);
+                    } catch (IOException | IllegalStateException e) {
+                        System.err.printf("ERROR: Could not read module %s: %s%n", jar.getName(), e.getMessage());
+                        System.exit(1);
+                        return null;
+                    }
+                })
+                .collect(Collectors.toList());
+        Map<String, Module> currentModules = new ConcurrentHashMap<>();
+        for (Module module : loadedModules) {
+            String moduleName = module.getName();
+            Module other = currentModules.get(moduleName);
+            if (other != null) {
+                if (!module.isNewerThan(other) && !other.isNewerThan(module)) {
+                    System.err.printf("ERROR: Module `%s` is present twice with the same version (%s and %s).%n",
+                            moduleName, other.getFile().getName(), module.getFile().getName());
                     System.exit(1);
                 }
-                currentModules.put(moduleName, module);
+                Module older = module.isNewerThan(other) ? other : module;
+                System.out.printf("INFO: Module `%s` is present twice, ignoring version %s from %s.%n",
+                        moduleName, older.getVersion(), older.getFile().getName());
+                if (older == module) continue;
             }
+            currentModules.put(moduleName, module);
         }
         return currentModules;
     }
 
+    /**
+     * Reloads the module of a jar which changed while the bot is running, without touching the gateway connections or the caches.
+     * The module is read and loaded first, then the previous module of the same name is stopped and unloaded, and the new module
+     * is started, so that a jar which can't be read leaves the previous module running.
+     * A jar holding an older version of a loaded module from another jar is ignored, and a module whose jar was deleted is unloaded.
+     *
+     * @param jar The jar which changed.
+     */
+    protected static synchronized void reloadModule(File jar) {
+        if (!jar.isFile()) {
+            for (Module module : modules.values()) {
+                if (module.getFile().equals(jar)) {
+                    System.out.println("INFO: Unloading module: " + module.getName());
+                    module.stop();
+                    module.unload();
+                    modules.remove(module.getName(), module);
+                }
+            }
+            return;
+        }
+        Module module;
+        try {
+            module = new Module(jar);
+        } catch (IOException | IllegalStateException e) {
+            System.err.printf("ERROR: Could not read module %s: %s%n", jar.getName(), e.getMessage());
+            return;
+        }
+        Module previous = modules.get(module.getName());
+        if (previous != null && !previous.getFile().equals(jar) && !module.isNewerThan(previous)) {
+            System.out.printf("INFO: Ignoring version %s of module `%s` from %s, version %s is already loaded.%n",
+                    module.getVersion(), module.getName(), jar.getName(), previous.getVersion());
+            return;
+        }
+        System.out.println("INFO: Reloading module: " + jar.getName());
+        module.load();
+        if (previous != null) {
+            previous.stop();
+            previous.unload();
+        }
+        modules.put(module.getName(), module);
+        module.start();
+        if (shardManager != null && (module.getIntents() & ~shardManager.getIntents()) != 0) {
+            System.err.printf("ERROR: Module `%s` needs intents the bot didn't identify with, it won't receive their events until the bot is restarted.%n",
+                    module.getName());
+        }
+    }
+
 
     /**
      * Invoke each module's {@link Module#start()} method, after loading the classes, and checking if duplicate modules are present.
@@ -98,53 +204,369 @@ public class CuteCord {
      * Stops the bot if the connection fails, or connection to the Discord API fails.
      */
     public static void start() {
+        startMetrics();
         for (Module module : modules.values()) {
             module.load();
             module.start();
         }
-        HttpUriRequest request = new HttpPost("https://discordapp.com/api/v9/auth/login");
-        HttpResponse response = RequestHandler.getInstance().sendRequest(request);
-        if (response.getStatusLine().getStatusCode() != 200) {
+        RestResponse response = RequestHandler.getInstance().sendRequest(RestRequest.post("/auth/login", null));
+        if (response.getStatusCode() != 200) {
             System.err.println("ERROR: Failed to connect to Discord API.");
             System.exit(1);
         }
-        // Connect to Discord API via gateway
-        String gatewayUrl = "https://discordapp.com/api/v9/gateway";
-        request = new HttpGet(gatewayUrl);
-        response = RequestHandler.getInstance().sendRequest(request);
-        if (response.getStatusLine().getStatusCode() != 200) {
+        // Connect to Discord API via gateway, with as many shards as Discord recommends unless configured otherwise.
+        response = RequestHandler.getInstance().sendRequest(RestRequest.get("/gateway/bot"));
+        if (response.getStatusCode() != 200) {
             System.err.println("ERROR: Failed to connect to Discord API.");
             System.exit(1);
         }
-        try {
-            Scanner scanner = new Scanner(response.getEntity().getContent());
-            StringBuilder webSocketUri = new StringBuilder();
-            while (scanner.hasNextLine()) {
-                webSocketUri.append(scanner.nextLine());
-            }
-            JSONObject json = new JSONObject(webSocketUri.toString());
-            URI gatewayUri = URI.create(json.get("url").toString());
-            handler = new DiscordWebSocketHandler(gatewayUri);
-            handler.connectBlocking();
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+        JSONObject gateway = response.getJson();
+        JSONObject sessionStartLimit = gateway.getJSONObject("session_start_limit");
+        int shardCount = getConfigInt("shard_count", gateway.getInt("shards"));
+        if (sessionStartLimit.getInt("remaining") < shardCount) {
+            System.err.printf("ERROR: Not enough session starts remaining to start %d shard(s), the limit resets in %d ms.%n",
+                    shardCount, sessionStartLimit.getLong("reset_after"));
+            System.exit(1);
         }
+        getCacheManager().register(getEventDispatcher(), getScheduler());
+        RequestHandler.getInstance().register(getEventDispatcher());
+        int intents = getIntents();
+        getEventDispatcher().setIntents(intents);
+        String gatewayUrl = getConfig().getOrDefault("gateway_url", gateway.getString("url"));
+        shardManager = new ShardManager(gatewayUrl, shardCount, sessionStartLimit.getInt("max_concurrency"),
+                intents, getEventDispatcher(), getScheduler(), isCompressionEnabled(), isEtfEnabled());
+        memberRequester = new MemberRequester(shardManager, getScheduler(), getTaskExecutor(),
+                getConfigInt("member_request_concurrency", 2));
+        memberRequester.register(getEventDispatcher());
+        shardManager.setEventJournal(getEventJournal());
+        shardManager.start();
+        startModuleWatcher();
+    }
 
+    /**
+     * Registers the metrics of the bot in the platform MBean server, and serves them in the Prometheus text format on the loopback
+     * interface if the `metrics_port` field of the configuration is set.
+     */
+    private static void startMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(MetricsRegistry.getInstance()),
+                    new ObjectName(MetricsMBean.OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException ignored) {
+            // Already registered by a previous start in this JVM.
+        } catch (JMException e) {
+            System.err.println("ERROR: Could not register the metrics in JMX.");
+            e.printStackTrace();
+        }
+        int port = getConfigInt("metrics_port", -1);
+        if (port < 0) return;
+        try {
+            metricsServer = new MetricsServer(MetricsRegistry.getInstance(), port);
+            System.out.printf("INFO: Serving metrics on http://localhost:%d/metrics%n", port);
+        } catch (IOException e) {
+            System.err.printf("ERROR: Could not serve metrics on port %d: %s%n", port, e.getMessage());
+        }
+    }
 
+    /**
+     * Starts watching the module folder for changed jars, unless the `hot_reload` field of the configuration is set to `false`.
+     */
+    private static void startModuleWatcher() {
+        Path moduleFolder = Path.of("modules");
+        if ("false".equals(getConfig().get("hot_reload")) || !Files.isDirectory(moduleFolder)) return;
+        try {
+            moduleWatcher = new ModuleWatcher(moduleFolder);
+            moduleWatcher.start();
+        } catch (IOException e) {
+            System.err.printf("ERROR: Could not watch the module folder `%s`, modules won't be reloaded when they change.%n",
+                    moduleFolder.toAbsolutePath());
+        }
     }
 
     /**
      * Invoke each module's {@link Module#stop()} method.
      */
     public static void stop() {
+        if (moduleWatcher != null) moduleWatcher.close();
+        if (metricsServer != null) metricsServer.close();
         for (Module module : modules.values()) {
             module.stop();
         }
         RequestHandler.getInstance().close();
+        shardManager.stop();
+        if (eventJournal != null) eventJournal.close();
+        getScheduler().shutdownNow();
+        if (taskExecutor != null) taskExecutor.shutdownNow();
+        getEventDispatcher().shutdown();
+        if (cacheManager != null) cacheManager.close();
+    }
+
+    /**
+     * Gets the scheduler shared by all gateway connections, for their heartbeats and reconnections, and by the rate limits and caches.
+     * Its thread count is read from the `scheduler_threads` field of the configuration. Cancelled tasks are removed from it right away,
+     * so that the heartbeats of closed connections don't linger until they would have run.
+     *
+     * @return The scheduler of the bot.
+     */
+    protected static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(getConfigInt("scheduler_threads", 2), runnable -> {
+                Thread thread = new Thread(runnable, "CuteCord-Scheduler-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    /**
+     * Gets the scheduler on which modules schedule their tasks. The tasks of a module are cancelled when it is stopped.
+     * Tasks run on their own threads, or on virtual threads when they are enabled, never on the threads of the scheduler.
+     *
+     * @return The task scheduler of the bot.
+     */
+    public static synchronized TaskScheduler getTaskScheduler() {
+        if (taskScheduler == null) {
+            taskScheduler = new TaskScheduler(getScheduler(), getTaskExecutor());
+        }
+        return taskScheduler;
+    }
+
+    /**
+     * Gets the executor on which the tasks of modules run, which are never run on the threads of the scheduler.
+     *
+     * @return The task executor of the bot.
+     */
+    private static synchronized ExecutorService getTaskExecutor() {
+        if (taskExecutor == null) {
+            if (isVirtualThreadsEnabled()) {
+                taskExecutor = VirtualThreads.newExecutor("CuteCord-Task-");
+            } else {
+                AtomicInteger threadCount = new AtomicInteger();
+                taskExecutor = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "CuteCord-Task-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        return taskExecutor;
+    }
+
+    /**
+     * Gets the manager of the gateway connections, which is only available once {@link CuteCord#start()} has been called.
+     *
+     * @return The shard manager of the bot.
+     */
+    public static ShardManager getShardManager() {
+        return shardManager;
+    }
+
+    /**
+     * Gets the requester of guild members, which streams the members of guilds to the member cache and to the module asking for them.
+     * It is only available once {@link CuteCord#start()} has been called. The number of guilds answered at once on each shard is read
+     * from the `member_request_concurrency` field of the configuration.
+     *
+     * @return The member requester of the bot.
+     */
+    public static MemberRequester getMemberRequester() {
+        return memberRequester;
+    }
+
+    /**
+     * Gets the dispatcher on which modules register their listeners for gateway events.
+     * The events of a guild are handled in order on one of its lanes, whose number and total queue size are read from the
+     * `event_threads` and `event_queue_size` fields of the configuration.
+     * With virtual threads, each lane is a virtual thread, so there are 256 lanes unless `event_threads` says otherwise:
+     * a listener blocking on I/O then only holds up the guilds of its lane.
+     *
+     * @return The event dispatcher of the bot.
+     */
+    public static synchronized EventDispatcher getEventDispatcher() {
+        if (eventDispatcher == null && isVirtualThreadsEnabled()) {
+            eventDispatcher = new EventDispatcher(VirtualThreads.newThreadFactory("CuteCord-Event-"),
+                    getConfigInt("event_threads", 256), getConfigInt("event_queue_size", 10000));
+        } else if (eventDispatcher == null) {
+            eventDispatcher = new EventDispatcher(
+                    getConfigInt("event_threads", Runtime.getRuntime().availableProcessors()),
+                    getConfigInt("event_queue_size", 10000));
+        }
+        return eventDispatcher;
+    }
+
+    /**
+     * Gets the journal of the dispatch messages received from the gateway, which is enabled by setting the `journal` field
+     * of the configuration to the directory of its segments. The size of a segment in megabytes and the number of segments kept
+     * are read from the `journal_segment_size` (64 by default) and `journal_segments` (16 by default) fields.
+     * Events can be replayed from it with {@link EventJournal#replay(long, long, EventDispatcher)}.
+     *
+     * @return The event journal of the bot, or null if it is disabled.
+     */
+    public static synchronized EventJournal getEventJournal() {
+        String directory = getConfig().get("journal");
+        if (eventJournal == null && directory != null && !directory.isBlank()) {
+            int segmentSize = getConfigInt("journal_segment_size", 64);
+            int segments = getConfigInt("journal_segments", 16);
+            if (segmentSize < 1 || segmentSize > 2047 || segments < 1) {
+                System.err.println("ERROR: The field `journal_segment_size` of the config file must be between 1 and 2047, and `journal_segments` at least 1.");
+                System.exit(1);
+            }
+            try {
+                eventJournal = EventJournal.open(Path.of(directory.trim()), segmentSize * 1024 * 1024, segments);
+            } catch (IOException e) {
+                System.err.printf("ERROR: Could not open the journal in `%s`: %s%n", directory, e.getMessage());
+                System.exit(1);
+            }
+        }
+        return eventJournal;
+    }
+
+    /**
+     * Gets the caches of the entities received from the gateway. The policy of each cache is read from the `cache_guilds`,
+     * `cache_channels`, `cache_members`, `cache_users` and `cache_presences` fields of the configuration.
+     * Members and presences are kept where the `cache_storage` field says: `heap` (the default), `direct` for memory outside the heap,
+     * or `mapped:<directory>` for files in the given directory, which keep them across restarts.
+     *
+     * @return The cache manager of the bot.
+     */
+    public static synchronized CacheManager getCacheManager() {
+        if (cacheManager == null) {
+            CachePolicy members = getConfigCachePolicy("cache_members", CachePolicy.lru(100000, 0));
+            CachePolicy presences = getConfigCachePolicy("cache_presences", CachePolicy.NONE);
+            cacheManager = new CacheManager(
+                    new HeapEntityCache<>(getConfigCachePolicy("cache_guilds", CachePolicy.ALL)),
+                    new HeapEntityCache<>(getConfigCachePolicy("cache_channels", CachePolicy.ALL)),
+                    newStorageCache("members", members, new MemberRecordCodec()),
+                    new HeapEntityCache<>(getConfigCachePolicy("cache_users", CachePolicy.lru(100000, 0))),
+                    newStorageCache("presences", presences, new PresenceRecordCodec()));
+        }
+        return cacheManager;
+    }
+
+    /**
+     * Creates a cache of members or presences in the storage set by the `cache_storage` field of the configuration.
+     * Stops the bot if the storage isn't valid, or its files can't be opened.
+     */
+    private static EntityCache<JSONObject> newStorageCache(String name, CachePolicy policy, RecordCodec codec) {
+        String storage = getConfig().getOrDefault("cache_storage", "heap").trim();
+        if (storage.equals("heap") || !policy.isEnabled()) return new HeapEntityCache<>(policy);
+        if (storage.equals("direct")) return OffHeapEntityCache.allocate(policy, codec);
+        if (storage.startsWith("mapped:") && storage.length() > "mapped:".length()) {
+            Path directory = Path.of(storage.substring("mapped:".length()));
+            try {
+                return OffHeapEntityCache.open(policy, codec, directory, name);
+            } catch (IOException | RuntimeException e) {
+                System.err.printf("ERROR: Could not open the %s cache in `%s`: %s%n", name, directory.toAbsolutePath(), e.getMessage());
+                System.exit(1);
+            }
+        }
+        System.err.printf("ERROR: The field `cache_storage` of the config file is not a valid storage (heap, direct, mapped:<directory>): %s%n", storage);
+        System.exit(1);
+        return new HeapEntityCache<>(policy);
+    }
+
+    private static CachePolicy getConfigCachePolicy(String field, CachePolicy defaultPolicy) {
+        String value = getConfig().get(field);
+        if (value == null) return defaultPolicy;
+        try {
+            return CachePolicy.parse(value);
+        } catch (IllegalArgumentException e) {
+            System.err.printf("ERROR: The field `%s` of the config file is not a valid cache policy (none, all, lru:<max size>[:<ttl in seconds>]): %s%n", field, value);
+            System.exit(1);
+            return defaultPolicy;
+        }
+    }
+
+    /**
+     * Computes the intents the bot identifies with, which are all the intents declared by the modules in their manifest,
+     * the intents listed in the `intents` field of the configuration, and {@link GatewayIntent#GUILDS},
+     * without which the bot wouldn't know which guilds it is in.
+     *
+     * @return The bitmask of the intents.
+     */
+    protected static int getIntents() {
+        int intents = GatewayIntent.GUILDS.getBit();
+        for (Module module : modules.values()) {
+            intents |= module.getIntents();
+        }
+        String configIntents = getConfig().get("intents");
+        if (configIntents != null) {
+            try {
+                intents |= GatewayIntent.parse(configIntents);
+            } catch (IllegalArgumentException e) {
+                System.err.printf("ERROR: The field `intents` of the config file contains an unknown intent: %s%n", configIntents);
+                System.exit(1);
+            }
+        }
+        return intents;
+    }
+
+    /**
+     * Checks if the gateway connections should use transport compression, which is enabled by setting the `compress` field
+     * of the configuration to `zlib-stream`, the only compression supported.
+     *
+     * @return true if the gateway connections should be compressed, false otherwise.
+     */
+    protected static boolean isCompressionEnabled() {
+        String compress = getConfig().get("compress");
+        if (compress == null || compress.equals("none")) return false;
+        if (!compress.equals("zlib-stream")) {
+            System.err.printf("ERROR: Unsupported compression `%s`, only `zlib-stream` is supported.%n", compress);
+            System.exit(1);
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the gateway connections should use the binary ETF encoding instead of JSON, which is enabled by setting
+     * the `encoding` field of the configuration to `etf`.
+     *
+     * @return true if the gateway connections should use ETF, false otherwise.
+     */
+    protected static boolean isEtfEnabled() {
+        String encoding = getConfig().get("encoding");
+        if (encoding == null || encoding.equals("json")) return false;
+        if (!encoding.equals("etf")) {
+            System.err.printf("ERROR: Unsupported encoding `%s`, only `json` and `etf` are supported.%n", encoding);
+            System.exit(1);
+        }
+        return true;
+    }
+
+    /**
+     * Checks if listeners and REST requests should run on virtual threads instead of pools of threads, which is enabled by setting
+     * the `virtual_threads` field of the configuration to `true`. Virtual threads need Java 21 or later.
+     *
+     * @return true if virtual threads should be used, false otherwise.
+     */
+    protected static boolean isVirtualThreadsEnabled() {
+        if (!"true".equals(getConfig().get("virtual_threads"))) return false;
+        if (!VirtualThreads.isSupported()) {
+            System.err.printf("ERROR: The field `virtual_threads` of the config file is enabled, but Java %d doesn't support virtual threads, Java 21 or later is needed.%n",
+                    Runtime.version().feature());
+            System.exit(1);
+        }
+        return true;
+    }
+
+    /**
+     * Gets a numeric field of the configuration.
+     *
+     * @param field        The name of the field in the configuration file.
+     * @param defaultValue The value to use if the field is absent.
+     * @return The value of the field, or the default value if the field is absent.
+     */
+    protected static int getConfigInt(String field, int defaultValue) {
+        String value = getConfig().get(field);
+        if (value == null) return defaultValue;
         try {
-            handler.closeBlocking();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.printf("ERROR: The field `%s` of the config file is not a number: %s%n", field, value);
+            System.exit(1);
+            return defaultValue;
         }
     }
 
@@ -191,6 +613,20 @@ public class CuteCord {
         return CONFIG;
     }
 
+    /**
+     * Sets the configuration for the bot runtime, instead of reading it from the config file, such as when the bot is started
+     * by a test harness. Must be called before anything reads the configuration.
+     *
+     * @param config A map containing as key the name of the field, and as value the value of said field.
+     */
+    protected static void setConfig(Map<String, String> config) {
+        if (config.get("auth_token") == null) {
+            throw new IllegalArgumentException("The configuration must contain a field named `auth_token`");
+        }
+        CONFIG.clear();
+        CONFIG.putAll(config);
+    }
+
     /**
      * Sets the auth key for the bot.
      * @param auth_key The auth key for the bot to use.
@@ -2,18 +2,21 @@ package internals;
 
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.net.URI;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
 
 public class DiscordWebSocketHandler extends WebSocketClient {
     private static final String EVENT_DATA = "d";
     private static final String OP_CODE = "op";
-    private static final String EVENT_NAME = "t";
-    private static final String SEQUENCE_NUMBER = "s";
 
     private static final int OP_DISPATCH = 0;
     private static final int OP_HEARTBEAT = 1;
@@ -27,85 +30,385 @@ public class DiscordWebSocketHandler extends WebSocketClient {
     private static final int OP_HELLO = 10;
     private static final int OP_HEARTBEAT_ACK = 11;
 
+    private static final int GATEWAY_VERSION = 9;
+
+    /**
+     * The close code used when this side closes the connection in order to resume the session.
+     * Closing with 1000 or 1001 would invalidate the session.
+     */
+    private static final int CLOSE_RESUME = 4000;
+
+    private static final Histogram INFLATE_TIME = MetricsRegistry.getInstance().histogram("cutecord_gateway_decode_seconds",
+            "Time spent decoding messages received from the gateway.", "stage", "inflate");
+    private static final Histogram ENVELOPE_TIME = MetricsRegistry.getInstance().histogram("cutecord_gateway_decode_seconds",
+            "Time spent decoding messages received from the gateway.", "stage", "envelope");
+
+    /**
+     * The number of dispatch events received, indexed by {@link GatewayEventType#ordinal()}, the last one counting events of unknown types.
+     */
+    private static final Counter[] RECEIVED_EVENTS = new Counter[GatewayEventType.values().length + 1];
+
+    static {
+        for (GatewayEventType type : GatewayEventType.values()) {
+            RECEIVED_EVENTS[type.ordinal()] = MetricsRegistry.getInstance().counter("cutecord_gateway_events_total",
+                    "Dispatch events received from the gateway.", "type", type.name());
+        }
+        RECEIVED_EVENTS[RECEIVED_EVENTS.length - 1] = MetricsRegistry.getInstance().counter("cutecord_gateway_events_total",
+                "Dispatch events received from the gateway.", "type", "UNKNOWN");
+    }
+
+    private static final long RECONNECT_BASE_DELAY = 1000;
+    private static final long RECONNECT_MAX_DELAY = 60000;
+
+    /**
+     * The time after which a reconnection which is still waiting for the connection to be closed or established is given up.
+     */
+    private static final long RECONNECT_TIMEOUT = 30000;
+
     private long heartbeatInterval;
     private int lastSequenceNumber;
-    private long lastHeartbeatAck;
 
-    private Timer heartbeatTimer;
+    /**
+     * If the last heartbeat sent was acknowledged. A connection whose heartbeat is still unacknowledged when the next one is due
+     * is a zombie connection, which doesn't receive anything anymore.
+     */
+    private volatile boolean heartbeatAcked;
+
+    /**
+     * The heartbeat task of the current connection, cancelled as soon as the connection is closed.
+     */
+    private ScheduledFuture<?> heartbeatTask;
+
+    /**
+     * The time at which the last heartbeat was written to the socket, as returned by {@link System#nanoTime()}, or 0 if it was acknowledged.
+     */
+    private volatile long heartbeatSentAt;
+
+    /**
+     * The time between sending a heartbeat and receiving its acknowledgement.
+     */
+    private final Histogram heartbeatLatency;
+
+    /**
+     * The id of the current session, received in READY, or null if there is no session to resume.
+     */
+    private volatile String sessionId;
+
+    /**
+     * The url to connect to when resuming the current session, received in READY.
+     */
+    private volatile String resumeGatewayUrl;
+
+    /**
+     * The number of reconnection attempts which failed since the session was last established, used for the backoff.
+     */
+    private volatile int reconnectAttempts;
 
     /**
-     * This list contains the timestamp of all messages sent through the websocket in the last 60 seconds.
+     * Whether a reconnection is scheduled or in progress.
      */
-    private final List<Long> timeStampPreviousMessages = new java.util.ArrayList<>();
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
 
-    public DiscordWebSocketHandler(URI serverUri) {
-        super(serverUri);
+    /**
+     * Whether the connection is being closed for good, in which case it must not reconnect.
+     */
+    private volatile boolean shuttingDown;
+
+    private final String gatewayUrl;
+    private final boolean compress;
+
+    /**
+     * Whether the connection uses the ETF encoding, in which case messages are binaries both ways instead of JSON text.
+     */
+    private final boolean etf;
+
+    /**
+     * The id of the shard handled by this connection.
+     */
+    private final int shardId;
+
+    /**
+     * The manager of all shards, which provides the dispatcher and scheduler shared by the shards, and paces identifies.
+     */
+    private final ShardManager shardManager;
+
+    /**
+     * The decoder for the zlib-stream transport compression, or null if the connection isn't compressed.
+     */
+    private final ZlibStreamDecoder zlibStreamDecoder;
+
+    /**
+     * The outbound pipeline of the connection, which enforces the gateway rate limit.
+     * Messages are strings sent as text frames, or ETF binaries sent as binary frames.
+     */
+    private final GatewaySendQueue<Object> sendQueue;
+
+    /**
+     * The envelope of the last message received, reused for every message as they are all read on the socket thread.
+     */
+    private final GatewayEnvelope envelope = new GatewayEnvelope();
+
+    /**
+     * Instantiates a new handler for the gateway connection of a shard.
+     *
+     * @param gatewayUrl   The base url of the gateway, as returned by the Discord API.
+     * @param shardId      The id of the shard handled by this connection.
+     * @param shardManager The manager of all shards.
+     * @param compress     Whether the connection uses the zlib-stream transport compression.
+     * @param etf          Whether the connection uses the ETF encoding instead of JSON.
+     */
+    public DiscordWebSocketHandler(String gatewayUrl, int shardId, ShardManager shardManager, boolean compress, boolean etf) {
+        super(buildGatewayUri(gatewayUrl, compress, etf));
+        this.gatewayUrl = gatewayUrl;
+        this.compress = compress;
+        this.etf = etf;
+        this.shardId = shardId;
+        this.shardManager = shardManager;
+        this.zlibStreamDecoder = compress ? new ZlibStreamDecoder() : null;
+        this.sendQueue = new GatewaySendQueue<>(shardManager.getScheduler(), this::write);
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.heartbeatLatency = metrics.histogram("cutecord_gateway_heartbeat_latency_seconds",
+                "Time between sending a heartbeat to the gateway and receiving its acknowledgement.", "shard", String.valueOf(shardId));
+        metrics.gauge("cutecord_gateway_send_queue_size", "Messages waiting for the rate limit of the gateway to be sent.",
+                sendQueue::size, "shard", String.valueOf(shardId));
+    }
+
+    /**
+     * Builds the uri to connect to, with the query parameters selecting the gateway version, encoding and compression.
+     *
+     * @param gatewayUrl The base url of the gateway.
+     * @param compress   Whether the connection uses the zlib-stream transport compression.
+     * @param etf        Whether the connection uses the ETF encoding.
+     * @return The uri to connect to.
+     */
+    private static URI buildGatewayUri(String gatewayUrl, boolean compress, boolean etf) {
+        return URI.create(String.format("%s/?v=%d&encoding=%s%s", gatewayUrl, GATEWAY_VERSION, etf ? "etf" : "json",
+                compress ? "&compress=zlib-stream" : ""));
     }
 
     @Override
     public void onOpen(ServerHandshake handshakedata) {
-        System.out.printf("Connected to Discord WebSocket%n");
+        // Each connection starts a new zlib stream.
+        if (zlibStreamDecoder != null) zlibStreamDecoder.reset();
+        // Nothing but IDENTIFY, RESUME and heartbeats may be sent until the session is established.
+        sendQueue.hold();
+        reconnecting.set(false);
+        System.out.printf("Connected to Discord WebSocket (shard %d)%n", shardId);
+    }
+
+    /**
+     * Handles incoming binary messages from the Discord gateway, which are only sent when transport compression or the ETF encoding
+     * is enabled. Compressed frames are decompressed, and each complete message is handed over to
+     * {@link DiscordWebSocketHandler#onMessage(String)}, or read as an ETF message.
+     *
+     * @param bytes The binary frame that was received from the Discord gateway.
+     */
+    @Override
+    public void onMessage(ByteBuffer bytes) {
+        if (zlibStreamDecoder == null) {
+            if (!etf) {
+                System.err.println("ERROR: Received a binary message from the Discord gateway, but compression is disabled.");
+                return;
+            }
+            // The events of the message outlive the frame, whose buffer belongs to the socket.
+            ByteBuffer message = ByteBuffer.allocate(bytes.remaining());
+            message.put(bytes).flip();
+            onEtfMessage(message);
+            return;
+        }
+        String message = null;
+        ByteBuffer etfMessage = null;
+        long start = System.nanoTime();
+        try {
+            if (etf) {
+                etfMessage = zlibStreamDecoder.decodeBinary(bytes);
+            } else {
+                message = zlibStreamDecoder.decode(bytes);
+            }
+            INFLATE_TIME.recordSince(start);
+        } catch (DataFormatException e) {
+            System.err.println("ERROR: Could not decompress a message from the Discord gateway.");
+            e.printStackTrace();
+            close();
+            return;
+        }
+        if (message != null) onMessage(message);
+        if (etfMessage != null) onEtfMessage(etfMessage);
     }
 
     /**
      * Handles incoming messages from the Discord gateway.
-     * This method then redirects the message to the correct handler, depending on the OP_CODE.
+     * Only the envelope of the message is read here, the payload of dispatch events is left for the listeners to parse if they need it.
      *
      * @param message The UTF-8 decoded message that was received from the Discord gateway.
      */
     @Override
     public void onMessage(String message) {
-        JSONObject receivedMessage = new JSONObject(message);
-        if (receivedMessage.getInt(OP_CODE) == 0 && receivedMessage.has(SEQUENCE_NUMBER)) lastSequenceNumber = receivedMessage.getInt(SEQUENCE_NUMBER);
-        if (receivedMessage.has(OP_CODE)) {
-            int op_code = receivedMessage.getInt(OP_CODE);
-            switch (op_code) {
-                case OP_DISPATCH      -> {
-                    // TODO: This is where most events people care about (like MESSAGE_CREATE) are. Need to create a handler for all those events. This handler shouldn't be in this method, but in its own class, which would just be called from here.
-                }
+        long start = System.nanoTime();
+        try {
+            envelope.read(message);
+            ENVELOPE_TIME.recordSince(start);
+        } catch (IllegalArgumentException e) {
+            System.err.printf("ERROR: Received a malformed message from the Discord gateway (shard %d).%n", shardId);
+            e.printStackTrace();
+            return;
+        }
+        handleEnvelope();
+    }
+
+    /**
+     * Handles incoming ETF messages from the Discord gateway, the same way as {@link DiscordWebSocketHandler#onMessage(String)}.
+     *
+     * @param message The decompressed message that was received from the Discord gateway, which must not be modified afterwards.
+     */
+    private void onEtfMessage(ByteBuffer message) {
+        long start = System.nanoTime();
+        try {
+            envelope.read(message);
+            ENVELOPE_TIME.recordSince(start);
+        } catch (IllegalArgumentException e) {
+            System.err.printf("ERROR: Received a malformed message from the Discord gateway (shard %d).%n", shardId);
+            e.printStackTrace();
+            return;
+        }
+        handleEnvelope();
+    }
 
-                case OP_HEARTBEAT     -> {
-                    JSONObject heartbeat = new JSONObject();
-                    heartbeat.put(OP_CODE, 1);
-                    if (receivedMessage.has(SEQUENCE_NUMBER)) {
-                        heartbeat.put("d", lastSequenceNumber);
-                    }
-                    send(heartbeat.toString());
+    /**
+     * Redirects the message whose envelope was just read to the correct handler, depending on the OP_CODE.
+     */
+    private void handleEnvelope() {
+        int op_code = envelope.getOpCode();
+        switch (op_code) {
+            case OP_DISPATCH      -> {
+                if (envelope.getSequenceNumber() >= 0) lastSequenceNumber = envelope.getSequenceNumber();
+                GatewayEventType type = envelope.getEventType();
+                EventJournal journal = shardManager.getEventJournal();
+                if (journal != null) {
+                    journal.append(shardId, type, lastSequenceNumber, envelope.isEtf() ? envelope.getEtfPayload() : envelope.getPayload());
                 }
+                RECEIVED_EVENTS[type == null ? RECEIVED_EVENTS.length - 1 : type.ordinal()].increment();
+                if (type == GatewayEventType.READY) {
+                    GatewayEvent ready = envelope.isEtf()
+                            ? new GatewayEvent(type, lastSequenceNumber, envelope.getEtfPayload(), envelope.getDataStart(), envelope.getDataEnd())
+                            : new GatewayEvent(type, lastSequenceNumber, envelope.getPayload(), envelope.getDataStart(), envelope.getDataEnd());
+                    sessionId = ready.getData().getString("session_id");
+                    resumeGatewayUrl = ready.getData().getString("resume_gateway_url");
+                    reconnectAttempts = 0;
+                    sendQueue.release();
+                    shardManager.getEventDispatcher().dispatch(ready);
+                    return;
+                } else if (type == GatewayEventType.RESUMED) {
+                    System.out.printf("INFO: Resumed session of shard %d.%n", shardId);
+                    reconnectAttempts = 0;
+                    sendQueue.release();
+                }
+                if (envelope.isEtf()) {
+                    shardManager.getEventDispatcher().dispatch(type, lastSequenceNumber, envelope.getEtfPayload(), envelope.getDataStart(), envelope.getDataEnd());
+                } else {
+                    shardManager.getEventDispatcher().dispatch(type, lastSequenceNumber, envelope.getPayload(), envelope.getDataStart(), envelope.getDataEnd());
+                }
+            }
 
-                case OP_RECONNECT, OP_INVALID_SESSION -> reconnectToGateway();
+            case OP_HEARTBEAT     -> submitPayload(new JSONObject().put(OP_CODE, OP_HEARTBEAT).put(EVENT_DATA, lastSequenceNumber), true);
 
-                case OP_HELLO         -> {
-                    lastHeartbeatAck = System.currentTimeMillis();
-                    heartbeatInterval = receivedMessage.getJSONObject("d").getLong("heartbeat_interval");
-                    startHeartbeat();
-                    sendIdentify();
+            case OP_RECONNECT     -> reconnectToGateway();
+
+            case OP_INVALID_SESSION -> {
+                if (envelope.isDataTrue()) {
+                    reconnectToGateway();
+                } else {
+                    // The session can't be resumed, Discord asks to wait between 1 and 5 seconds before identifying again.
+                    sessionId = null;
+                    lastSequenceNumber = 0;
+                    shardManager.getScheduler().schedule(() -> shardManager.scheduleIdentify(shardId, this::sendIdentify),
+                            ThreadLocalRandom.current().nextLong(1000, 5000), TimeUnit.MILLISECONDS);
                 }
+            }
 
-                case OP_HEARTBEAT_ACK -> lastHeartbeatAck = System.currentTimeMillis();
+            case OP_HELLO         -> {
+                heartbeatInterval = envelope.parseData().getLong("heartbeat_interval");
+                startHeartbeat();
+                if (sessionId != null) {
+                    sendResume();
+                } else {
+                    shardManager.scheduleIdentify(shardId, this::sendIdentify);
+                }
+            }
 
-                default -> throw new IllegalStateException(String.format("Unreachable op code: %d", op_code));
+            case OP_HEARTBEAT_ACK -> {
+                long sentAt = heartbeatSentAt;
+                if (sentAt != 0) heartbeatLatency.recordSince(sentAt);
+                heartbeatSentAt = 0;
+                heartbeatAcked = true;
             }
+
+            default -> System.err.printf("ERROR: Received an unknown op code from the Discord gateway: %d%n", op_code);
         }
     }
 
+    /**
+     * Schedules a reconnection to the gateway, unless one is already pending. If a session is known, the connection is made to the
+     * resume url and the session is resumed once HELLO is received, otherwise a new session is identified.
+     * Reconnections can't be made from the socket thread, so they are scheduled on the shared scheduler, after a delay
+     * growing exponentially with the number of failed attempts, with full jitter, and run on the reconnect executor of the shard manager.
+     */
     private void reconnectToGateway() {
+        if (shuttingDown || !reconnecting.compareAndSet(false, true)) return;
+        long maxDelay = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY << Math.min(reconnectAttempts, 16));
+        long delay = ThreadLocalRandom.current().nextLong(maxDelay + 1);
+        shardManager.getScheduler().schedule(() -> {
+            if (!shuttingDown) shardManager.getReconnectExecutor().execute(this::attemptReconnect);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the current connection and opens a new one, waiting for both. The attempt is interrupted if it takes longer than
+     * {@link DiscordWebSocketHandler#RECONNECT_TIMEOUT}, such as when the gateway accepts connections without answering them,
+     * in which case it counts as a failed attempt and another one is scheduled.
+     */
+    private void attemptReconnect() {
+        if (shuttingDown) return;
+        ScheduledFuture<?> timeout = shardManager.getScheduler().schedule(Thread.currentThread()::interrupt,
+                RECONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        boolean connected;
         try {
-            reconnectBlocking();
-            // TODO: Implement RESUME of session with gateway, or IDENTIFY if RESUME is not possible.
+            if (!isClosed()) close(CLOSE_RESUME, "Reconnecting");
+            uri = buildGatewayUri(sessionId != null ? resumeGatewayUrl : gatewayUrl, compress, etf);
+            connected = reconnectBlocking();
         } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            if (shuttingDown) return;
+            connected = false;
+        } finally {
+            timeout.cancel(false);
+        }
+        if (!connected) {
+            reconnectAttempts++;
+            System.err.printf("ERROR: Could not reconnect shard %d to the Discord gateway, attempt %d.%n", shardId, reconnectAttempts);
+            reconnecting.set(false);
+            reconnectToGateway();
         }
     }
 
+    /**
+     * Sends a resume packet to the Discord WebSocket, which makes the gateway replay all the events missed since the last sequence number.
+     */
+    private void sendResume() {
+        JSONObject resumeMessage = new JSONObject().
+                put(OP_CODE, OP_RESUME).
+                put("d", new JSONObject().
+                        put("token", CuteCord.AUTH_TOKEN).
+                        put("session_id", sessionId).
+                        put("seq", lastSequenceNumber));
+        submitPayload(resumeMessage, true);
+    }
+
     /**
      * Sends an identify packet to the Discord WebSocket.
      * This packet contains information about the system the bot runs on, as well as the intents that are needed,
      * if compression is enabled, if the bot is sharded, etc.
      */
     private void sendIdentify() {
-        // TODO: Implement support for sharding.
-        // TODO: Implement support for compress.
         // TODO: Implement support for large_threshold.
         // TODO: Implement support for presence.
         JSONObject identifyMessage = new JSONObject().
@@ -116,54 +419,161 @@ public class DiscordWebSocketHandler extends WebSocketClient {
                                 put("os", System.getProperties().get("os.name")).
                                 put("browser", "CuteCord").
                                 put("device", "CuteCord")
-                        ).put("intents", 65533)); // TODO: Implement intents based on what modules need, and throw error in case bot doesn't have permissions.
-        send(identifyMessage.toString());
+                        ).put("shard", new JSONArray().put(shardId).put(shardManager.getShardCount())
+                        ).put("intents", shardManager.getIntents()));
+        submitPayload(identifyMessage, true);
     }
 
     /**
-     * Starts the heartbeat timer, which allows the connection to the gateways to be kept alive.
-     * if there are two heartbeats in a raw that aren't acknowledged, the connection will be closed, restarted, and the session resumed.
+     * Starts the heartbeat task on the scheduler shared by all shards, which allows the connection to the gateways to be kept alive.
+     * As Discord asks, the first heartbeat is sent after a random fraction of the heartbeat interval, so that shards connecting
+     * at the same time don't all send their heartbeats at the same time.
      */
-    private void startHeartbeat() {
-        if (heartbeatTimer != null) {
-            heartbeatTimer.cancel();
+    private synchronized void startHeartbeat() {
+        stopHeartbeat();
+        heartbeatAcked = true;
+        long firstDelay = (long) (heartbeatInterval * ThreadLocalRandom.current().nextDouble());
+        heartbeatTask = shardManager.getScheduler().scheduleAtFixedRate(this::sendHeartbeat, firstDelay, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the heartbeat task of the current connection, if there is one.
+     */
+    private synchronized void stopHeartbeat() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
         }
-        heartbeatTimer = new Timer();
-        heartbeatTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                if (System.currentTimeMillis() - lastHeartbeatAck > heartbeatInterval * 1.5) {
-                    reconnectToGateway();
-                }
-                send(new JSONObject().put(OP_CODE, OP_HEARTBEAT).put(EVENT_DATA, lastSequenceNumber).toString());
-            }
-        }, System.currentTimeMillis() % heartbeatInterval, heartbeatInterval);
     }
 
+    /**
+     * Sends a heartbeat, unless the previous one wasn't acknowledged, in which case the connection is a zombie: it is closed
+     * with a close code which keeps the session, and the session is resumed on a new connection.
+     */
+    private void sendHeartbeat() {
+        if (!heartbeatAcked) {
+            System.err.printf("ERROR: Shard %d didn't receive an acknowledgement of its last heartbeat, reconnecting.%n", shardId);
+            stopHeartbeat();
+            reconnectToGateway();
+            return;
+        }
+        heartbeatAcked = false;
+        submitPayload(new JSONObject().put(OP_CODE, OP_HEARTBEAT).put(EVENT_DATA, lastSequenceNumber), true)
+                .thenRun(() -> heartbeatSentAt = System.nanoTime());
+    }
+
+    /**
+     * Handles the closing of the connection. Unless the connection was closed on purpose, or with a close code after which
+     * reconnecting is pointless, a reconnection is scheduled, which resumes the session when possible.
+     */
     @Override
     public void onClose(int code, String reason, boolean remote) {
-        // TODO: Handle different gateway close codes.
-        System.out.printf("Disconnected from Discord WebSocket: %d - %s%n", code, reason);
+        System.out.printf("Disconnected from Discord WebSocket (shard %d): %d - %s%n", shardId, code, reason);
+        stopHeartbeat();
+        sendQueue.hold();
+        if (shuttingDown || reconnecting.get()) return;
+        switch (code) {
+            case 4013 -> {
+                System.err.printf("ERROR: Shard %d was closed by the Discord gateway because the intents %d are invalid.%n", shardId, shardManager.getIntents());
+                return;
+            }
+            case 4014 -> {
+                System.err.printf("ERROR: Shard %d was closed by the Discord gateway because the bot isn't allowed to use the privileged intents %s. " +
+                        "They must be enabled in the Discord developer portal, or removed from the modules which need them.%n",
+                        shardId, GatewayIntent.getPrivileged(shardManager.getIntents()));
+                return;
+            }
+            case 4004, 4010, 4011, 4012 -> {
+                System.err.printf("ERROR: Shard %d was closed by the Discord gateway with code %d (%s), it will not reconnect.%n", shardId, code, reason);
+                return;
+            }
+            // Invalid sequence and session timeout: the session can't be resumed.
+            case 4007, 4009 -> {
+                sessionId = null;
+                lastSequenceNumber = 0;
+            }
+            default -> {}
+        }
+        reconnectToGateway();
+    }
+
+    /**
+     * Closes the connection for good, without reconnecting, and waits for it to be closed.
+     *
+     * @throws InterruptedException If interrupted while waiting for the connection to be closed.
+     */
+    public void shutdown() throws InterruptedException {
+        shuttingDown = true;
+        stopHeartbeat();
+        closeBlocking();
     }
 
     /**
-     * Sends a message to the Discord WebSocket. Also enforces the rate limit, which is 120 messages per 60 seconds.
+     * Queues a message to be sent to the Discord WebSocket, without waiting for it to be sent.
+     * See {@link DiscordWebSocketHandler#submit(String)}.
+     *
      * @param message The string which will be transmitted to the Discord API.
      */
     @Override
     public void send(String message) {
-        long currentTime = System.currentTimeMillis();
-        timeStampPreviousMessages.removeIf(timeStamp -> currentTime - timeStamp > 60000);
-        if (timeStampPreviousMessages.size() >= 120) {
-            long oldestTimeStamp = timeStampPreviousMessages.get(0);
-            try {
-                Thread.sleep(60000 - (currentTime - oldestTimeStamp));
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+        submit(message);
+    }
+
+    /**
+     * Queues a message to be sent to the Discord WebSocket, as soon as the rate limit of 120 messages per 60 seconds allows it.
+     * Heartbeats are always sent before messages queued through this method, which are held while the shard is disconnected,
+     * or connected but not identified or resumed yet.
+     *
+     * @param message The JSON string which will be transmitted to the Discord API, converted to ETF if the connection uses it.
+     * @return A future completed once the message has been sent.
+     */
+    public CompletableFuture<Void> submit(String message) {
+        return etf ? sendQueue.submit(EtfEncoder.encode(new JSONObject(message)), false) : sendQueue.submit(message, false);
+    }
+
+    /**
+     * Queues a payload, encoded with the encoding of the connection.
+     *
+     * @param payload  The payload.
+     * @param priority Whether the payload is sent before the messages queued through {@link DiscordWebSocketHandler#submit(String)}.
+     * @return A future completed once the payload has been sent.
+     */
+    private CompletableFuture<Void> submitPayload(JSONObject payload, boolean priority) {
+        return sendQueue.submit(etf ? EtfEncoder.encode(payload) : payload.toString(), priority);
+    }
+
+    /**
+     * Writes a message to the socket, in a binary frame for ETF, or a text frame for JSON.
+     *
+     * @param message The encoded message.
+     */
+    private void write(Object message) {
+        if (message instanceof ByteBuffer binary) {
+            super.send(binary);
+        } else {
+            super.send((String) message);
         }
-        super.send(message);
-        timeStampPreviousMessages.add(currentTime);
+    }
+
+    /**
+     * Queues a request for all the members of a guild, which are sent back in GUILD_MEMBERS_CHUNK events carrying the given nonce.
+     * See {@link MemberRequester}, which paces these requests.
+     *
+     * @param guildId   The id of the guild, which must be handled by this shard.
+     * @param nonce     The nonce identifying the chunks of this request, up to 32 characters.
+     * @param presences Whether the presences of the members are requested too.
+     * @return A future completed once the request has been sent.
+     */
+    public CompletableFuture<Void> requestGuildMembers(long guildId, String nonce, boolean presences) {
+        JSONObject request = new JSONObject().
+                put(OP_CODE, OP_REQUEST_GUILD_MEMBERS).
+                put(EVENT_DATA, new JSONObject().
+                        put("guild_id", String.valueOf(guildId)).
+                        put("query", "").
+                        put("limit", 0).
+                        put("presences", presences).
+                        put("nonce", nonce));
+        return submitPayload(request, false);
     }
 
     @Override
@@ -0,0 +1,146 @@
+package internals;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of entities of one type, keyed by snowflake ids.
+ * An entity is identified by a scope and an id: the scope is the id of the guild for entities which only exist within a guild,
+ * such as members and presences, and 0 for global entities, such as guilds, channels and users.
+ * Each entity also has an owner, the guild it belongs to, so that all the entities of a guild can be removed when it is.
+ * <p>
+ * Entities are kept on the heap by default ({@link HeapEntityCache}), or off the heap for the members and presences of large bots
+ * ({@link OffHeapEntityCache}). Either way, the cache is only fed by the dispatch events, through the {@link CacheManager}.
+ */
+public abstract class EntityCache<V> {
+    private final CachePolicy policy;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Instantiates a new EntityCache.
+     *
+     * @param policy The policy deciding which entities are kept.
+     */
+    protected EntityCache(CachePolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Gets a global entity.
+     *
+     * @param id The id of the entity.
+     * @return The entity, or null if it isn't cached.
+     */
+    public V get(long id) {
+        return get(0, id);
+    }
+
+    /**
+     * Gets an entity within a scope.
+     *
+     * @param scope The id of the guild the entity exists in.
+     * @param id    The id of the entity.
+     * @return The entity, or null if it isn't cached.
+     */
+    public abstract V get(long scope, long id);
+
+    /**
+     * Adds or replaces an entity, then evicts the least recently used entities if the cache is over its maximum size.
+     *
+     * @param scope The id of the guild the entity exists in, or 0 for a global entity.
+     * @param id    The id of the entity.
+     * @param owner The id of the guild the entity belongs to, or 0 if it doesn't belong to a guild.
+     * @param value The entity.
+     */
+    protected abstract void put(long scope, long id, long owner, V value);
+
+    /**
+     * Removes an entity.
+     *
+     * @param scope The id of the guild the entity exists in, or 0 for a global entity.
+     * @param id    The id of the entity.
+     */
+    protected abstract void remove(long scope, long id);
+
+    /**
+     * Removes all the entities belonging to a guild.
+     *
+     * @param owner The id of the guild.
+     */
+    protected abstract void removeOwnedBy(long owner);
+
+    /**
+     * Removes the entities which have been written longer ago than the time to live of the policy.
+     */
+    protected abstract void removeExpired();
+
+    public abstract int size();
+
+    /**
+     * Releases the resources of the cache, once no event feeds it anymore. Does nothing for caches on the heap.
+     */
+    protected void close() {
+    }
+
+    public CachePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Gets the number of lookups which found their entity.
+     *
+     * @return The number of hits since the cache was created.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups which didn't find their entity.
+     *
+     * @return The number of misses since the cache was created.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of entities removed because of the size or time limits of the policy.
+     *
+     * @return The number of evictions since the cache was created.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    protected void recordHit() {
+        hits.increment();
+    }
+
+    protected void recordMiss() {
+        misses.increment();
+    }
+
+    protected void recordEviction() {
+        evictions.increment();
+    }
+
+    /**
+     * Checks if an entity written at the given time has outlived the time to live of the policy.
+     */
+    protected boolean isExpired(long writeTime, long now) {
+        return policy.getTtl() > 0 && now - writeTime > policy.getTtl();
+    }
+
+    /**
+     * Hashes the key of an entity, for the open-addressing tables indexing the entries.
+     */
+    protected static int hash(long scope, long id) {
+        long hash = id * 0x9E3779B97F4A7C15L + scope;
+        hash ^= hash >>> 32;
+        hash *= 0xD6E8FEB86659FD93L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
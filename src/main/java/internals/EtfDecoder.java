@@ -0,0 +1,385 @@
+package internals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the Erlang External Term Format, as sent by the gateway with `encoding=etf`, into the same JSON objects as the JSON encoding:
+ * maps become {@link JSONObject}s, lists and tuples {@link JSONArray}s, binaries strings, and the atoms `nil`, `true` and `false`
+ * {@link JSONObject#NULL} and booleans.
+ * <p>
+ * Snowflakes are sent as 64-bit integers, while the JSON encoding sends them as strings. So that listeners can read them the same way
+ * with either encoding, the integers of fields named like snowflakes are decoded to strings: `id`, names ending with `_id`,
+ * and the lists of names ending with `_ids`, `roles` or `channels`. Other integers, such as the timestamps of activities,
+ * stay numbers like in JSON. {@link GatewayEnvelope#findSnowflake(ByteBuffer, int, String)} still reads snowflakes straight into longs.
+ * <p>
+ * Terms are read from a {@link ByteBuffer} with absolute offsets only, so a buffer can be shared by the threads decoding its terms.
+ * Only the terms the gateway sends are supported: compressed terms, references, pids, ports and functions are rejected.
+ */
+final class EtfDecoder {
+    static final int VERSION = 131;
+
+    static final int NEW_FLOAT_EXT = 70;
+    static final int SMALL_INTEGER_EXT = 97;
+    static final int INTEGER_EXT = 98;
+    static final int FLOAT_EXT = 99;
+    static final int ATOM_EXT = 100;
+    static final int SMALL_TUPLE_EXT = 104;
+    static final int LARGE_TUPLE_EXT = 105;
+    static final int NIL_EXT = 106;
+    static final int STRING_EXT = 107;
+    static final int LIST_EXT = 108;
+    static final int BINARY_EXT = 109;
+    static final int SMALL_BIG_EXT = 110;
+    static final int LARGE_BIG_EXT = 111;
+    static final int SMALL_ATOM_EXT = 115;
+    static final int MAP_EXT = 116;
+    static final int ATOM_UTF8_EXT = 118;
+    static final int SMALL_ATOM_UTF8_EXT = 119;
+
+    private final ByteBuffer buffer;
+    private int index;
+
+    private EtfDecoder(ByteBuffer buffer, int index) {
+        this.buffer = buffer;
+        this.index = index;
+    }
+
+    /**
+     * Decodes a whole message, which starts with the version of the format.
+     *
+     * @param message The message.
+     * @return The term of the message.
+     * @throws IllegalArgumentException If the message isn't valid, or contains unsupported terms.
+     */
+    static Object decode(ByteBuffer message) {
+        if (message.limit() == 0 || (message.get(0) & 0xFF) != VERSION) {
+            throw new IllegalArgumentException("Malformed ETF message: missing version");
+        }
+        return decode(message, 1);
+    }
+
+    /**
+     * Decodes the term found at an offset of a buffer, such as the `d` field of a message.
+     *
+     * @param buffer The buffer.
+     * @param index  The offset of the tag of the term.
+     * @return The term.
+     * @throws IllegalArgumentException If the term isn't valid, or is unsupported.
+     */
+    static Object decode(ByteBuffer buffer, int index) {
+        try {
+            return new EtfDecoder(buffer, index).readTerm(false);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated ETF term", e);
+        }
+    }
+
+    /**
+     * Skips the term found at an offset of a buffer, including nested terms, without decoding it.
+     *
+     * @param buffer The buffer.
+     * @param index  The offset of the tag of the term.
+     * @return The offset following the term.
+     * @throws IllegalArgumentException If the term isn't valid, or is unsupported.
+     */
+    static int skip(ByteBuffer buffer, int index) {
+        try {
+            EtfDecoder decoder = new EtfDecoder(buffer, index);
+            decoder.skipTerm();
+            return decoder.index;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated ETF term", e);
+        }
+    }
+
+    /**
+     * Reads the name of the atom or binary found at an offset, as used for keys and the `t` field, without allocating a string.
+     *
+     * @param buffer The buffer.
+     * @param index  The offset of the tag of the term.
+     * @return The offset of the first byte of the name, or -1 if the term isn't an atom or binary. Its length is read with
+     * {@link EtfDecoder#nameLength(ByteBuffer, int)}.
+     */
+    static int nameStart(ByteBuffer buffer, int index) {
+        return switch (buffer.get(index) & 0xFF) {
+            case ATOM_EXT, ATOM_UTF8_EXT -> index + 3;
+            case SMALL_ATOM_EXT, SMALL_ATOM_UTF8_EXT -> index + 2;
+            case BINARY_EXT -> index + 5;
+            default -> -1;
+        };
+    }
+
+    /**
+     * Reads the length of the name of the atom or binary found at an offset.
+     *
+     * @param buffer The buffer.
+     * @param index  The offset of the tag of the term.
+     * @return The length of the name in bytes, or -1 if the term isn't an atom or binary.
+     */
+    static int nameLength(ByteBuffer buffer, int index) {
+        return switch (buffer.get(index) & 0xFF) {
+            case ATOM_EXT, ATOM_UTF8_EXT -> buffer.getShort(index + 1) & 0xFFFF;
+            case SMALL_ATOM_EXT, SMALL_ATOM_UTF8_EXT -> buffer.get(index + 1) & 0xFF;
+            case BINARY_EXT -> buffer.getInt(index + 1);
+            default -> -1;
+        };
+    }
+
+    /**
+     * Checks if the atom or binary found at an offset has the given ASCII name.
+     *
+     * @param buffer The buffer.
+     * @param index  The offset of the tag of the term.
+     * @param name   The name.
+     * @return true if the term is an atom or binary with this name.
+     */
+    static boolean isName(ByteBuffer buffer, int index, String name) {
+        int start = nameStart(buffer, index);
+        if (start < 0 || nameLength(buffer, index) != name.length()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (buffer.get(start + i) != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the integer found at an offset, as used for the `op` and `s` fields.
+     *
+     * @param buffer The buffer.
+     * @param index  The offset of the tag of the term.
+     * @return The integer, or -1 if the term is `nil`.
+     * @throws IllegalArgumentException If the term isn't an integer which fits in an int, or `nil`.
+     */
+    static int readInt(ByteBuffer buffer, int index) {
+        return switch (buffer.get(index) & 0xFF) {
+            case SMALL_INTEGER_EXT -> buffer.get(index + 1) & 0xFF;
+            case INTEGER_EXT -> buffer.getInt(index + 1);
+            default -> {
+                if (isName(buffer, index, "nil")) yield -1;
+                throw new IllegalArgumentException("Malformed ETF message: expected an integer at " + index);
+            }
+        };
+    }
+
+    /**
+     * Checks if the integers of a field are snowflakes, which the JSON encoding sends as strings.
+     *
+     * @param key The name of the field.
+     * @return true if the field is a snowflake, or a list of snowflakes.
+     */
+    private static boolean isSnowflakeKey(String key) {
+        return key.equals("id") || key.endsWith("_id") || key.endsWith("_ids") || key.endsWith("roles") || key.endsWith("channels");
+    }
+
+    /**
+     * Reads the term at the current offset.
+     *
+     * @param snowflakes Whether the term is the value of a snowflake field, or an element of one, whose integers are read as strings.
+     */
+    private Object readTerm(boolean snowflakes) {
+        int tag = buffer.get(index++) & 0xFF;
+        switch (tag) {
+            case SMALL_INTEGER_EXT -> {
+                int value = buffer.get(index++) & 0xFF;
+                return snowflakes ? String.valueOf(value) : value;
+            }
+            case INTEGER_EXT -> {
+                int value = buffer.getInt(index);
+                index += 4;
+                return snowflakes ? String.valueOf(value) : value;
+            }
+            case NEW_FLOAT_EXT -> {
+                double value = buffer.getDouble(index);
+                index += 8;
+                return value;
+            }
+            case FLOAT_EXT -> {
+                String value = readString(31, StandardCharsets.ISO_8859_1).trim();
+                return Double.parseDouble(value.indexOf('\0') >= 0 ? value.substring(0, value.indexOf('\0')) : value);
+            }
+            case SMALL_BIG_EXT -> {
+                Object value = readBig(buffer.get(index++) & 0xFF);
+                return snowflakes ? value.toString() : value;
+            }
+            case LARGE_BIG_EXT -> {
+                int length = buffer.getInt(index);
+                index += 4;
+                Object value = readBig(length);
+                return snowflakes ? value.toString() : value;
+            }
+            case ATOM_EXT, ATOM_UTF8_EXT -> {
+                int length = buffer.getShort(index) & 0xFFFF;
+                index += 2;
+                return readAtom(length, tag == ATOM_EXT ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+            }
+            case SMALL_ATOM_EXT, SMALL_ATOM_UTF8_EXT -> {
+                int length = buffer.get(index++) & 0xFF;
+                return readAtom(length, tag == SMALL_ATOM_EXT ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+            }
+            case BINARY_EXT -> {
+                int length = buffer.getInt(index);
+                index += 4;
+                return readString(length, StandardCharsets.UTF_8);
+            }
+            case STRING_EXT -> {
+                // A list of small integers, which Erlang uses for charlists.
+                int length = buffer.getShort(index) & 0xFFFF;
+                index += 2;
+                JSONArray array = new JSONArray();
+                for (int i = 0; i < length; i++) {
+                    int value = buffer.get(index++) & 0xFF;
+                    array.put(snowflakes ? String.valueOf(value) : value);
+                }
+                return array;
+            }
+            case NIL_EXT -> {
+                return new JSONArray();
+            }
+            case LIST_EXT -> {
+                int length = buffer.getInt(index);
+                index += 4;
+                JSONArray array = new JSONArray();
+                for (int i = 0; i < length; i++) {
+                    array.put(readTerm(snowflakes));
+                }
+                // A proper list ends with NIL_EXT, anything else is an improper tail, kept as the last element.
+                if ((buffer.get(index) & 0xFF) == NIL_EXT) {
+                    index++;
+                } else {
+                    array.put(readTerm(snowflakes));
+                }
+                return array;
+            }
+            case SMALL_TUPLE_EXT, LARGE_TUPLE_EXT -> {
+                int arity;
+                if (tag == SMALL_TUPLE_EXT) {
+                    arity = buffer.get(index++) & 0xFF;
+                } else {
+                    arity = buffer.getInt(index);
+                    index += 4;
+                }
+                JSONArray array = new JSONArray();
+                for (int i = 0; i < arity; i++) {
+                    array.put(readTerm(snowflakes));
+                }
+                return array;
+            }
+            case MAP_EXT -> {
+                int arity = buffer.getInt(index);
+                index += 4;
+                JSONObject object = new JSONObject();
+                for (int i = 0; i < arity; i++) {
+                    Object key = readTerm(false);
+                    String name = key == JSONObject.NULL ? "nil" : String.valueOf(key);
+                    object.put(name, readTerm(isSnowflakeKey(name)));
+                }
+                return object;
+            }
+            default -> throw new IllegalArgumentException(String.format("Unsupported ETF tag %d at %d", tag, index - 1));
+        }
+    }
+
+    private void skipTerm() {
+        int tag = buffer.get(index++) & 0xFF;
+        switch (tag) {
+            case SMALL_INTEGER_EXT -> index += 1;
+            case INTEGER_EXT -> index += 4;
+            case NEW_FLOAT_EXT -> index += 8;
+            case FLOAT_EXT -> index += 31;
+            case SMALL_BIG_EXT -> index += 2 + (buffer.get(index) & 0xFF);
+            case LARGE_BIG_EXT -> index += 5 + buffer.getInt(index);
+            case ATOM_EXT, ATOM_UTF8_EXT, STRING_EXT -> index += 2 + (buffer.getShort(index) & 0xFFFF);
+            case SMALL_ATOM_EXT, SMALL_ATOM_UTF8_EXT -> index += 1 + (buffer.get(index) & 0xFF);
+            case BINARY_EXT -> index += 4 + buffer.getInt(index);
+            case NIL_EXT -> {}
+            case LIST_EXT -> {
+                int length = buffer.getInt(index);
+                index += 4;
+                // The elements, followed by the tail.
+                for (int i = 0; i <= length; i++) {
+                    skipTerm();
+                }
+            }
+            case SMALL_TUPLE_EXT -> {
+                int arity = buffer.get(index++) & 0xFF;
+                for (int i = 0; i < arity; i++) {
+                    skipTerm();
+                }
+            }
+            case LARGE_TUPLE_EXT -> {
+                int arity = buffer.getInt(index);
+                index += 4;
+                for (int i = 0; i < arity; i++) {
+                    skipTerm();
+                }
+            }
+            case MAP_EXT -> {
+                int arity = buffer.getInt(index);
+                index += 4;
+                for (int i = 0; i < arity * 2; i++) {
+                    skipTerm();
+                }
+            }
+            default -> throw new IllegalArgumentException(String.format("Unsupported ETF tag %d at %d", tag, index - 1));
+        }
+        if (index > buffer.limit()) throw new IllegalArgumentException("Truncated ETF term");
+    }
+
+    /**
+     * Reads an integer stored as its sign and little-endian magnitude, as a long when it fits, which is always the case for snowflakes.
+     */
+    private Object readBig(int length) {
+        boolean negative = buffer.get(index++) != 0;
+        if (length <= 8) {
+            long magnitude = 0;
+            for (int i = length - 1; i >= 0; i--) {
+                magnitude = (magnitude << 8) | (buffer.get(index + i) & 0xFF);
+            }
+            index += length;
+            if (magnitude >= 0) return negative ? -magnitude : magnitude;
+            if (negative && magnitude == Long.MIN_VALUE) return magnitude;
+            index -= length;
+        }
+        byte[] bigEndian = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bigEndian[length - 1 - i] = buffer.get(index + i);
+        }
+        index += length;
+        BigInteger value = new BigInteger(1, bigEndian);
+        return negative ? value.negate() : value;
+    }
+
+    private Object readAtom(int length, java.nio.charset.Charset charset) {
+        if (length == 3 && buffer.get(index) == 'n' && buffer.get(index + 1) == 'i' && buffer.get(index + 2) == 'l') {
+            index += 3;
+            return JSONObject.NULL;
+        }
+        String name = readString(length, charset);
+        return switch (name) {
+            case "true" -> Boolean.TRUE;
+            case "false" -> Boolean.FALSE;
+            case "null" -> JSONObject.NULL;
+            default -> name;
+        };
+    }
+
+    private String readString(int length, java.nio.charset.Charset charset) {
+        // The backing array of a buffer may go past its limit, so the bounds are checked against the limit rather than the array.
+        if (length < 0 || index + length > buffer.limit()) throw new IndexOutOfBoundsException(index + length);
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + index, length, charset);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(index, bytes);
+            value = new String(bytes, charset);
+        }
+        index += length;
+        return value;
+    }
+}
@@ -0,0 +1,172 @@
+package internals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Encodes JSON objects in the Erlang External Term Format, for the messages sent to the gateway with `encoding=etf`.
+ * Objects and maps become maps with binary keys, arrays and collections lists, strings binaries, numbers integers or floats,
+ * and null and booleans the atoms `nil`, `true` and `false`, which is what the gateway expects.
+ * <p>
+ * The message is written in a single pass into a buffer which grows as needed, so nothing is built besides the message itself.
+ */
+final class EtfEncoder {
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int length;
+
+    private EtfEncoder() {
+    }
+
+    /**
+     * Encodes a message, starting with the version of the format.
+     *
+     * @param message The message.
+     * @return The encoded message, ready to be sent in a binary frame.
+     * @throws IllegalArgumentException If the message contains values which can't be encoded.
+     */
+    static ByteBuffer encode(JSONObject message) {
+        EtfEncoder encoder = new EtfEncoder();
+        encoder.writeByte(EtfDecoder.VERSION);
+        encoder.writeTerm(message);
+        return ByteBuffer.wrap(encoder.buffer, 0, encoder.length);
+    }
+
+    private void writeTerm(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            writeAtom("nil");
+        } else if (value instanceof Boolean bool) {
+            writeAtom(bool ? "true" : "false");
+        } else if (value instanceof String string) {
+            writeBinary(string);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeInteger(((Number) value).longValue());
+        } else if (value instanceof BigInteger big) {
+            writeBig(big);
+        } else if (value instanceof Number number) {
+            writeByte(EtfDecoder.NEW_FLOAT_EXT);
+            writeLong(Double.doubleToLongBits(number.doubleValue()));
+        } else if (value instanceof JSONObject object) {
+            writeByte(EtfDecoder.MAP_EXT);
+            writeInt(object.length());
+            for (String key : object.keySet()) {
+                writeBinary(key);
+                writeTerm(object.opt(key));
+            }
+        } else if (value instanceof Map<?, ?> map) {
+            writeByte(EtfDecoder.MAP_EXT);
+            writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeBinary(String.valueOf(entry.getKey()));
+                writeTerm(entry.getValue());
+            }
+        } else if (value instanceof JSONArray array) {
+            writeList(array.length(), array);
+        } else if (value instanceof Collection<?> collection) {
+            writeList(collection.size(), collection);
+        } else if (value instanceof Enum<?> constant) {
+            writeBinary(constant.name());
+        } else {
+            throw new IllegalArgumentException("Can't encode a value of type " + value.getClass().getName() + " in ETF");
+        }
+    }
+
+    private void writeList(int size, Iterable<?> elements) {
+        if (size == 0) {
+            writeByte(EtfDecoder.NIL_EXT);
+            return;
+        }
+        writeByte(EtfDecoder.LIST_EXT);
+        writeInt(size);
+        for (Object element : elements) {
+            writeTerm(element);
+        }
+        writeByte(EtfDecoder.NIL_EXT);
+    }
+
+    private void writeInteger(long value) {
+        if (value >= 0 && value <= 255) {
+            writeByte(EtfDecoder.SMALL_INTEGER_EXT);
+            writeByte((int) value);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            writeByte(EtfDecoder.INTEGER_EXT);
+            writeInt((int) value);
+        } else if (value == Long.MIN_VALUE) {
+            writeBig(BigInteger.valueOf(value));
+        } else {
+            long magnitude = Math.abs(value);
+            int digits = (Long.SIZE - Long.numberOfLeadingZeros(magnitude) + 7) / 8;
+            writeByte(EtfDecoder.SMALL_BIG_EXT);
+            writeByte(digits);
+            writeByte(value < 0 ? 1 : 0);
+            for (int i = 0; i < digits; i++) {
+                writeByte((int) (magnitude >>> (i * 8)));
+            }
+        }
+    }
+
+    private void writeBig(BigInteger value) {
+        byte[] bigEndian = value.abs().toByteArray();
+        // toByteArray adds a leading zero byte when the highest bit is set, which isn't part of the magnitude.
+        int start = bigEndian[0] == 0 && bigEndian.length > 1 ? 1 : 0;
+        int digits = bigEndian.length - start;
+        if (digits <= 255) {
+            writeByte(EtfDecoder.SMALL_BIG_EXT);
+            writeByte(digits);
+        } else {
+            writeByte(EtfDecoder.LARGE_BIG_EXT);
+            writeInt(digits);
+        }
+        writeByte(value.signum() < 0 ? 1 : 0);
+        for (int i = bigEndian.length - 1; i >= start; i--) {
+            writeByte(bigEndian[i]);
+        }
+    }
+
+    private void writeAtom(String name) {
+        writeByte(EtfDecoder.SMALL_ATOM_UTF8_EXT);
+        writeByte(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            writeByte(name.charAt(i));
+        }
+    }
+
+    private void writeBinary(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeByte(EtfDecoder.BINARY_EXT);
+        writeInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[length++] = (byte) (value >>> 24);
+        buffer[length++] = (byte) (value >>> 16);
+        buffer[length++] = (byte) (value >>> 8);
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+    }
+}
@@ -0,0 +1,253 @@
+package internals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Routes dispatch events received from the gateway to the listeners registered for their type.
+ * Listeners are stored in one array per {@link GatewayEventType}, which is replaced as a whole when a listener is registered,
+ * so routing an event is a single array lookup. Listeners are never invoked on the socket thread.
+ * <p>
+ * By default, listeners are invoked on the lanes of a {@link StripedExecutor}, keyed by the guild of the event: the events of a guild
+ * are handled one after the other in the order they were received, and the events of different guilds in parallel.
+ * The lanes may run on virtual threads, which keeps this ordering while letting listeners block cheaply.
+ * Listeners may also be invoked by any executor, such as one starting a thread per event, in which case events are handled
+ * in no particular order.
+ */
+public class EventDispatcher {
+    private static final EventListener[] NO_LISTENERS = new EventListener[0];
+
+    private static final Counter DROPPED_EVENTS = MetricsRegistry.getInstance().counter("cutecord_events_dropped_total",
+            "Events dropped because too many events were waiting for their listeners.");
+
+    /**
+     * The listeners for each event type, indexed by {@link GatewayEventType#ordinal()}.
+     */
+    private final AtomicReferenceArray<EventListener[]> listeners;
+
+    /**
+     * The lanes invoking listeners, or null if an executor does.
+     */
+    private final StripedExecutor lanes;
+
+    /**
+     * The executor invoking listeners, or null if lanes do.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The permits for the events being handled when each event gets its own thread, null when events wait in the queue of a pool.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * The bitmask of the intents the bot identified with. Events none of these intents enable are dropped.
+     */
+    private volatile int intents = -1;
+
+    /**
+     * Instantiates a new EventDispatcher, which invokes listeners on lanes keyed by the guild of the event.
+     *
+     * @param threads   The number of lanes, each having its own thread.
+     * @param queueSize The maximum number of events waiting for a lane, shared evenly between the lanes. When the queue of a lane
+     *                  is full, the gateway connection receiving the event waits for room.
+     */
+    public EventDispatcher(int threads, int queueSize) {
+        this(new StripedExecutor("CuteCord-Event-", threads, Math.max(1, queueSize / Math.max(1, threads))), null, 0);
+    }
+
+    /**
+     * Instantiates a new EventDispatcher, which invokes listeners on lanes keyed by the guild of the event, each lane running
+     * on a thread created by the given factory, such as a virtual thread.
+     *
+     * @param threadFactory The factory of the threads of the lanes.
+     * @param lanes         The number of lanes.
+     * @param queueSize     The maximum number of events waiting for a lane, shared evenly between the lanes.
+     */
+    EventDispatcher(ThreadFactory threadFactory, int lanes, int queueSize) {
+        this(new StripedExecutor(threadFactory, lanes, Math.max(1, queueSize / Math.max(1, lanes))), null, 0);
+    }
+
+    /**
+     * Instantiates a new EventDispatcher which hands each event to the given executor. The events of a guild may then be handled
+     * in any order, even at the same time.
+     *
+     * @param executor    The executor used to invoke listeners.
+     * @param maxInFlight The maximum number of events being handled at once. Events received past this number are dropped.
+     *                    0 if the executor bounds the events itself.
+     */
+    EventDispatcher(ExecutorService executor, int maxInFlight) {
+        this(null, executor, maxInFlight);
+    }
+
+    private EventDispatcher(StripedExecutor lanes, ExecutorService executor, int maxInFlight) {
+        GatewayEventType[] types = GatewayEventType.values();
+        listeners = new AtomicReferenceArray<>(types.length);
+        for (int i = 0; i < types.length; i++) {
+            listeners.set(i, NO_LISTENERS);
+        }
+        this.lanes = lanes;
+        this.executor = executor;
+        this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+    }
+
+    /**
+     * Registers a listener for the given event type.
+     *
+     * @param type     The type of event to listen to.
+     * @param listener The listener to invoke when an event of this type is received.
+     */
+    public synchronized void register(GatewayEventType type, EventListener listener) {
+        EventListener[] current = listeners.get(type.ordinal());
+        EventListener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners.set(type.ordinal(), updated);
+    }
+
+    /**
+     * Unregisters a listener from the given event type. Does nothing if the listener wasn't registered.
+     *
+     * @param type     The type of event the listener was registered for.
+     * @param listener The listener to remove.
+     */
+    public synchronized void unregister(GatewayEventType type, EventListener listener) {
+        EventListener[] current = listeners.get(type.ordinal());
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != listener) continue;
+            EventListener[] updated = new EventListener[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, i);
+            System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+            listeners.set(type.ordinal(), updated.length == 0 ? NO_LISTENERS : updated);
+            return;
+        }
+    }
+
+    /**
+     * Sets the intents the bot identifies with, so that events which aren't enabled by any of them are dropped,
+     * in case Discord sends them anyway.
+     *
+     * @param intents The bitmask of the intents.
+     */
+    public void setIntents(int intents) {
+        this.intents = intents;
+    }
+
+    /**
+     * Checks if any listener is registered for the given event type.
+     *
+     * @param type The type of event.
+     * @return true if at least one listener is registered, false otherwise.
+     */
+    public boolean hasListeners(GatewayEventType type) {
+        return listeners.get(type.ordinal()).length != 0;
+    }
+
+    /**
+     * Hands a dispatch event over to the listeners registered for its type. Events of unknown types, or without listeners,
+     * are ignored before anything is allocated for them, and their payload is never parsed.
+     *
+     * @param type           The type of the event, or null if it isn't known to CuteCord.
+     * @param sequenceNumber The sequence number of the event, from the `s` field of the payload.
+     * @param source         The message received from the gateway.
+     * @param dataStart      The index of the first character of the `d` field in the message, or -1 if there is none.
+     * @param dataEnd        The index following the last character of the `d` field in the message.
+     */
+    public void dispatch(GatewayEventType type, int sequenceNumber, String source, int dataStart, int dataEnd) {
+        if (type == null || !type.isEnabledBy(intents) || !hasListeners(type)) return;
+        dispatch(new GatewayEvent(type, sequenceNumber, source, dataStart, dataEnd));
+    }
+
+    /**
+     * Hands a dispatch event received with `encoding=etf` over to the listeners registered for its type.
+     * See {@link EventDispatcher#dispatch(GatewayEventType, int, String, int, int)}.
+     *
+     * @param type           The type of the event, or null if it isn't known to CuteCord.
+     * @param sequenceNumber The sequence number of the event, from the `s` field of the payload.
+     * @param source         The message received from the gateway.
+     * @param dataStart      The offset of the `d` term in the message, or -1 if there is none.
+     * @param dataEnd        The offset following the `d` term in the message.
+     */
+    public void dispatch(GatewayEventType type, int sequenceNumber, ByteBuffer source, int dataStart, int dataEnd) {
+        if (type == null || !type.isEnabledBy(intents) || !hasListeners(type)) return;
+        dispatch(new GatewayEvent(type, sequenceNumber, source, dataStart, dataEnd));
+    }
+
+    /**
+     * Hands a dispatch event over to the listeners registered for its type.
+     *
+     * @param event The event to dispatch.
+     */
+    public void dispatch(GatewayEvent event) {
+        GatewayEventType type = event.getType();
+        EventListener[] targets = listeners.get(type.ordinal());
+        if (targets.length == 0) return;
+        if (lanes != null) {
+            try {
+                lanes.execute(event.getGuildId(), () -> invoke(targets, event));
+            } catch (IllegalArgumentException e) {
+                System.err.printf("ERROR: Could not find the guild of a malformed %s event, it has been dropped.%n", type);
+            } catch (RejectedExecutionException ignored) {
+                // The dispatcher has been shut down.
+            }
+            return;
+        }
+        if (inFlight == null) {
+            executor.execute(() -> invoke(targets, event));
+            return;
+        }
+        if (!inFlight.tryAcquire()) {
+            DROPPED_EVENTS.increment();
+            System.err.println("ERROR: Too many events are being handled, an event has been dropped.");
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    invoke(targets, event);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+        }
+    }
+
+    private static void invoke(EventListener[] targets, GatewayEvent event) {
+        for (EventListener listener : targets) {
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException e) {
+                System.err.printf("ERROR: A listener for %s threw an exception.%n", event.getType());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the threads used to invoke listeners, after the events already queued have been handled.
+     */
+    public void shutdown() {
+        if (lanes != null) {
+            lanes.shutdown();
+            try {
+                if (!lanes.awaitTermination(5, TimeUnit.SECONDS)) lanes.shutdownNow();
+            } catch (InterruptedException e) {
+                lanes.shutdownNow();
+            }
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package internals;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * An append-only journal of the dispatch messages received from the gateway, written to memory-mapped segment files of a fixed size.
+ * Once a segment is full, the next one is started, and the oldest segments are deleted to keep at most the configured number of them.
+ * The journal can be replayed through an {@link EventDispatcher}, to rebuild the caches after a crash without fetching everything
+ * again through the REST API, to reproduce an incident offline, or to feed real traffic into benchmarks.
+ * <p>
+ * The socket threads only put the messages they receive in a queue, a single writer thread copies them to the segments, so that
+ * writing never slows the gateway connections down. If the writer falls too far behind, messages are dropped from the journal.
+ * <p>
+ * A segment starts with a header and a sparse index, followed by the records. Each record holds the length of the message,
+ * its sequence number, the time it was received, the shard which received it, the type of the event and the encoding of the message,
+ * followed by the message as received, JSON text or an ETF binary. The index has an entry, with the time, sequence number and offset
+ * of a record, every few kilobytes, so that replaying a time range only reads the records around it.
+ */
+public final class EventJournal implements AutoCloseable {
+    private static final int MAGIC = 0x43434A4E;
+    private static final int VERSION = 1;
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_END = 8;
+    private static final int HEADER_INDEX_SIZE = 12;
+    private static final int HEADER_FIRST_TIME = 16;
+    private static final int HEADER_LAST_TIME = 24;
+    private static final int HEADER_SIZE = 32;
+
+    private static final int INDEX_ENTRIES = 4096;
+    private static final int INDEX_TIME = 0;
+    private static final int INDEX_SEQUENCE = 8;
+    private static final int INDEX_OFFSET = 12;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int DATA_START = HEADER_SIZE + INDEX_ENTRIES * INDEX_ENTRY_SIZE;
+
+    private static final int RECORD_LENGTH = 0;
+    private static final int RECORD_SEQUENCE = 4;
+    private static final int RECORD_TIME = 8;
+    private static final int RECORD_SHARD = 16;
+    private static final int RECORD_TYPE = 18;
+    private static final int RECORD_ENCODING = 20;
+    private static final int RECORD_HEADER_SIZE = 24;
+
+    private static final byte ENCODING_JSON = 0;
+    private static final byte ENCODING_ETF = 1;
+
+    /**
+     * The smallest size of a segment, which leaves room for the header and index.
+     */
+    public static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The maximum number of messages waiting for the writer, past which messages are dropped from the journal.
+     */
+    private static final int MAX_PENDING = 65536;
+
+    private static final Counter RECORDS = MetricsRegistry.getInstance().counter("cutecord_journal_records_total",
+            "Dispatch messages written to the event journal.");
+    private static final Counter DROPPED_RECORDS = MetricsRegistry.getInstance().counter("cutecord_journal_dropped_total",
+            "Dispatch messages dropped from the event journal because its writer was too far behind.");
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Thread writer;
+
+    /**
+     * Whether the writer is about to sleep, or sleeping, because there is nothing to write.
+     */
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+
+    /**
+     * The segment being written, only accessed by the writer. Segments are only created once there is something to write.
+     */
+    private OffHeapRegion segment;
+    private long segmentNumber;
+    private int end;
+    private int indexSize;
+    private int lastIndexedOffset;
+    private long lastTime;
+
+    private EventJournal(Path directory, int segmentSize, int maxSegments, long lastSegmentNumber) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.segmentNumber = lastSegmentNumber;
+        writer = new Thread(this::write, "CuteCord-Journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens the journal in a directory, creating the directory if it doesn't exist. New messages are written to a new segment,
+     * following the segments already in the directory.
+     *
+     * @param directory   The directory of the segments.
+     * @param segmentSize The size of a segment, in bytes, at least {@link EventJournal#MIN_SEGMENT_SIZE}.
+     * @param maxSegments The maximum number of segments kept, the oldest ones being deleted.
+     * @return The journal.
+     * @throws IOException If the directory can't be created or listed.
+     */
+    public static EventJournal open(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) throw new IllegalArgumentException("A journal segment must be at least 1 MB");
+        if (maxSegments < 1) throw new IllegalArgumentException("A journal needs at least one segment");
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments(directory);
+        long last = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1));
+        return new EventJournal(directory, segmentSize, maxSegments, last);
+    }
+
+    /**
+     * Queues a dispatch message to be written to the journal. Never blocks: the message is dropped if the writer is too far behind.
+     *
+     * @param shardId        The id of the shard which received the message.
+     * @param type           The type of the event, or null if it isn't known to CuteCord.
+     * @param sequenceNumber The sequence number of the event.
+     * @param message        The message, either JSON text or an ETF binary, which must not be modified afterwards.
+     */
+    void append(int shardId, GatewayEventType type, int sequenceNumber, Object message) {
+        if (closed) return;
+        if (pendingCount.incrementAndGet() > MAX_PENDING) {
+            pendingCount.decrementAndGet();
+            DROPPED_RECORDS.increment();
+            return;
+        }
+        pending.add(new Record(shardId, type == null ? -1 : type.ordinal(), sequenceNumber, System.currentTimeMillis(), message));
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Replays the messages received in a time range through a dispatcher, as fast as its listeners handle them.
+     * Messages still waiting for the writer aren't replayed.
+     *
+     * @param from       The time of the first message to replay, in milliseconds since the epoch, inclusive.
+     * @param to         The time of the last message to replay, in milliseconds since the epoch, inclusive.
+     * @param dispatcher The dispatcher to which the events are handed over.
+     * @return The number of messages replayed.
+     * @throws IOException If a segment can't be read.
+     */
+    public long replay(long from, long to, EventDispatcher dispatcher) throws IOException {
+        return replay(directory, from, to, dispatcher);
+    }
+
+    /**
+     * Replays the messages of a journal received in a time range through a dispatcher, as fast as its listeners handle them.
+     * The journal doesn't need to be open, so that a journal copied from another machine can be replayed offline.
+     *
+     * @param directory  The directory of the segments.
+     * @param from       The time of the first message to replay, in milliseconds since the epoch, inclusive.
+     * @param to         The time of the last message to replay, in milliseconds since the epoch, inclusive.
+     * @param dispatcher The dispatcher to which the events are handed over.
+     * @return The number of messages replayed.
+     * @throws IOException If a segment can't be read.
+     */
+    public static long replay(Path directory, long from, long to, EventDispatcher dispatcher) throws IOException {
+        GatewayEnvelope envelope = new GatewayEnvelope();
+        long replayed = 0;
+        for (Path file : listSegments(directory)) {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() < DATA_START) continue;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION) {
+                System.err.printf("ERROR: The journal segment %s isn't valid, it has been skipped.%n", file);
+                continue;
+            }
+            int end = Math.min(buffer.getInt(HEADER_END), buffer.capacity());
+            if (end <= DATA_START || buffer.getLong(HEADER_LAST_TIME) < from) continue;
+            if (buffer.getLong(HEADER_FIRST_TIME) > to) break;
+            for (int record = findRecord(buffer, from); record + RECORD_HEADER_SIZE <= end; ) {
+                int length = buffer.getInt(record + RECORD_LENGTH);
+                if (length < 0 || record + RECORD_HEADER_SIZE + length > end) break;
+                long time = buffer.getLong(record + RECORD_TIME);
+                if (time > to) return replayed;
+                if (time >= from) {
+                    // The events outlive the mapping, so the message is copied to the heap.
+                    byte[] message = new byte[length];
+                    buffer.get(record + RECORD_HEADER_SIZE, message);
+                    if (dispatch(envelope, buffer.get(record + RECORD_ENCODING), message, buffer.getInt(record + RECORD_SEQUENCE), dispatcher)) {
+                        replayed++;
+                    }
+                }
+                record = align(record + RECORD_HEADER_SIZE + length);
+            }
+        }
+        return replayed;
+    }
+
+    private static boolean dispatch(GatewayEnvelope envelope, byte encoding, byte[] message, int sequenceNumber, EventDispatcher dispatcher) {
+        try {
+            if (encoding == ENCODING_ETF) {
+                ByteBuffer etf = ByteBuffer.wrap(message);
+                envelope.read(etf);
+                dispatcher.dispatch(envelope.getEventType(), sequenceNumber, etf, envelope.getDataStart(), envelope.getDataEnd());
+            } else {
+                String json = new String(message, StandardCharsets.UTF_8);
+                envelope.read(json);
+                dispatcher.dispatch(envelope.getEventType(), sequenceNumber, json, envelope.getDataStart(), envelope.getDataEnd());
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: A message of the journal is malformed, it has been skipped.");
+            return false;
+        }
+    }
+
+    /**
+     * Finds where to start reading the records of a segment to find those received from the given time, using its sparse index.
+     *
+     * @return The offset of the last indexed record received before the time, or of the first record.
+     */
+    static int findRecord(ByteBuffer buffer, long from) {
+        int low = 0;
+        int high = Math.min(buffer.getInt(HEADER_INDEX_SIZE), INDEX_ENTRIES) - 1;
+        int found = DATA_START;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = HEADER_SIZE + middle * INDEX_ENTRY_SIZE;
+            if (buffer.getLong(entry + INDEX_TIME) < from) {
+                found = buffer.getInt(entry + INDEX_OFFSET);
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Writes the queued messages until the journal is closed, sleeping while there is nothing to write.
+     */
+    private void write() {
+        while (true) {
+            Record record = pending.poll();
+            if (record != null) {
+                pendingCount.decrementAndGet();
+                try {
+                    write(record);
+                } catch (UncheckedIOException | IllegalStateException e) {
+                    System.err.printf("ERROR: Could not write to the journal in `%s`: %s%n", directory.toAbsolutePath(), e.getMessage());
+                }
+                continue;
+            }
+            if (closed) break;
+            // append() checks this flag after queueing, and this thread checks the queue after setting it,
+            // so either the record is seen here, or the writer is woken up.
+            sleeping = true;
+            if (pending.isEmpty() && !closed) LockSupport.park(this);
+            sleeping = false;
+        }
+        if (segment != null) {
+            writeHeader();
+            segment.close();
+            segment = null;
+        }
+    }
+
+    private void write(Record record) {
+        byte[] json = record.message instanceof String text ? text.getBytes(StandardCharsets.UTF_8) : null;
+        ByteBuffer etf = json == null ? (ByteBuffer) record.message : null;
+        int length = json != null ? json.length : etf.limit();
+        int size = align(RECORD_HEADER_SIZE + length);
+        if (DATA_START + size > segmentSize) {
+            System.err.printf("ERROR: A message of %d bytes is larger than a journal segment, it has been dropped.%n", length);
+            return;
+        }
+        if (segment == null || end + size > segmentSize) startSegment();
+        // The times of the records of a segment never go backwards, even if the messages of several shards were queued out of order.
+        long time = Math.max(lastTime, record.time);
+        ByteBuffer buffer = segment.buffer();
+        buffer.putInt(end + RECORD_LENGTH, length);
+        buffer.putInt(end + RECORD_SEQUENCE, record.sequenceNumber);
+        buffer.putLong(end + RECORD_TIME, time);
+        buffer.putShort(end + RECORD_SHARD, (short) record.shardId);
+        buffer.putShort(end + RECORD_TYPE, (short) record.type);
+        buffer.put(end + RECORD_ENCODING, json != null ? ENCODING_JSON : ENCODING_ETF);
+        if (json != null) {
+            buffer.put(end + RECORD_HEADER_SIZE, json);
+        } else {
+            buffer.put(end + RECORD_HEADER_SIZE, etf, 0, length);
+        }
+        if (indexSize < INDEX_ENTRIES && (indexSize == 0 || end - lastIndexedOffset >= (segmentSize - DATA_START) / INDEX_ENTRIES)) {
+            int entry = HEADER_SIZE + indexSize * INDEX_ENTRY_SIZE;
+            buffer.putLong(entry + INDEX_TIME, time);
+            buffer.putInt(entry + INDEX_SEQUENCE, record.sequenceNumber);
+            buffer.putInt(entry + INDEX_OFFSET, end);
+            indexSize++;
+            lastIndexedOffset = end;
+        }
+        if (end == DATA_START) buffer.putLong(HEADER_FIRST_TIME, time);
+        end += size;
+        lastTime = time;
+        // The header is updated after the record, so that a reader, or a crash, never sees a partial record.
+        writeHeader();
+        RECORDS.increment();
+    }
+
+    private void writeHeader() {
+        ByteBuffer buffer = segment.buffer();
+        buffer.putInt(HEADER_INDEX_SIZE, indexSize);
+        buffer.putLong(HEADER_LAST_TIME, lastTime);
+        buffer.putInt(HEADER_END, end);
+    }
+
+    /**
+     * Closes the current segment, starts the next one, and deletes the oldest segments past the maximum number of segments.
+     */
+    private void startSegment() {
+        if (segment != null) {
+            writeHeader();
+            segment.close();
+        }
+        segmentNumber++;
+        Path file = directory.resolve(String.format("%016d%s", segmentNumber, SEGMENT_SUFFIX));
+        try {
+            Files.deleteIfExists(file);
+            segment = OffHeapRegion.map(file, segmentSize);
+            List<Path> segments = listSegments(directory);
+            for (int i = 0; i < segments.size() - maxSegments; i++) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        } catch (IOException e) {
+            segment = null;
+            throw new UncheckedIOException(e);
+        }
+        ByteBuffer buffer = segment.buffer();
+        buffer.putInt(HEADER_MAGIC, MAGIC);
+        buffer.putInt(HEADER_VERSION, VERSION);
+        buffer.putLong(HEADER_FIRST_TIME, 0);
+        end = DATA_START;
+        indexSize = 0;
+        lastIndexedOffset = DATA_START;
+        writeHeader();
+    }
+
+    /**
+     * Writes the messages still queued, then closes the current segment.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return List.of();
+        try (Stream<Path> files = Files.list(directory)) {
+            // Segment names are zero-padded numbers, so their names sort in the order they were written.
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX) && segmentNumber(file) > 0)
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int align(int offset) {
+        return (offset + 7) & ~7;
+    }
+
+    private static class Record {
+        private final int shardId;
+        private final int type;
+        private final int sequenceNumber;
+        private final long time;
+        private final Object message;
+
+        private Record(int shardId, int type, int sequenceNumber, long time, Object message) {
+            this.shardId = shardId;
+            this.type = type;
+            this.sequenceNumber = sequenceNumber;
+            this.time = time;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package internals;
+
+/**
+ * A listener for dispatch events, registered through {@link EventDispatcher#register(GatewayEventType, EventListener)}.
+ */
+@FunctionalInterface
+public interface EventListener {
+    /**
+     * Called when an event this listener is registered for is received.
+     * This is never called from the thread reading the gateway socket.
+     *
+     * @param event The event that was received.
+     */
+    void onEvent(GatewayEvent event);
+}
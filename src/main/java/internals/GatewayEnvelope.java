@@ -0,0 +1,353 @@
+package internals;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the envelope of a gateway payload (the `op`, `s`, `t` and `d` fields) without building a JSON tree.
+ * The payload is scanned once: `op` and `s` are read as numbers, `t` is resolved to a {@link GatewayEventType} in place,
+ * and only the bounds of `d` are recorded, so that it is only parsed if someone needs it. The envelope is meant to be reused
+ * for every payload of a connection, which is why it is mutable, so reading it doesn't allocate anything.
+ * <p>
+ * Payloads are either JSON text, or ETF binaries when the connection uses `encoding=etf`, in which case the bounds of `d`
+ * are offsets in the binary.
+ */
+final class GatewayEnvelope {
+    private String payload;
+    private ByteBuffer etfPayload;
+    private int opCode;
+    private int sequenceNumber;
+    private GatewayEventType eventType;
+    private int dataStart;
+    private int dataEnd;
+
+    /**
+     * Reads the envelope of a payload, replacing the previous one.
+     *
+     * @param payload The payload received from the gateway.
+     * @throws IllegalArgumentException If the payload isn't a JSON object.
+     */
+    public void read(String payload) {
+        this.payload = payload;
+        etfPayload = null;
+        opCode = -1;
+        sequenceNumber = -1;
+        eventType = null;
+        dataStart = -1;
+        dataEnd = -1;
+        try {
+            int i = skipWhitespace(payload, 0);
+            expect(i, '{');
+            i = skipWhitespace(payload, i + 1);
+            if (payload.charAt(i) == '}') return;
+            while (true) {
+                expect(i, '"');
+                int keyStart = i + 1;
+                int keyEnd = endOfString(payload, i);
+                i = skipWhitespace(payload, keyEnd + 1);
+                expect(i, ':');
+                int valueStart = skipWhitespace(payload, i + 1);
+                int valueEnd = skipValue(payload, valueStart);
+                if (keyEnd - keyStart == 1) {
+                    switch (payload.charAt(keyStart)) {
+                        case 's' -> sequenceNumber = payload.charAt(valueStart) == 'n' ? -1 : parseInt(valueStart, valueEnd);
+                        case 't' -> eventType = payload.charAt(valueStart) == '"'
+                                ? GatewayEventType.fromName(payload, valueStart + 1, valueEnd - 1) : null;
+                        case 'd' -> {
+                            dataStart = valueStart;
+                            dataEnd = valueEnd;
+                        }
+                        default -> {}
+                    }
+                } else if (keyEnd - keyStart == 2 && payload.startsWith("op", keyStart)) {
+                    opCode = parseInt(valueStart, valueEnd);
+                }
+                i = skipWhitespace(payload, valueEnd);
+                if (payload.charAt(i) == '}') return;
+                expect(i, ',');
+                i = skipWhitespace(payload, i + 1);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated gateway payload", e);
+        }
+    }
+
+    /**
+     * Reads the envelope of an ETF payload, replacing the previous one.
+     *
+     * @param payload The payload received from the gateway, whose position and limit are left untouched.
+     * @throws IllegalArgumentException If the payload isn't an ETF map.
+     */
+    public void read(ByteBuffer payload) {
+        this.payload = null;
+        etfPayload = payload;
+        opCode = -1;
+        sequenceNumber = -1;
+        eventType = null;
+        dataStart = -1;
+        dataEnd = -1;
+        try {
+            if ((payload.get(0) & 0xFF) != EtfDecoder.VERSION || (payload.get(1) & 0xFF) != EtfDecoder.MAP_EXT) {
+                throw new IllegalArgumentException("Malformed gateway payload: expected an ETF map");
+            }
+            int arity = payload.getInt(2);
+            int i = 6;
+            for (int field = 0; field < arity; field++) {
+                int keyStart = EtfDecoder.nameStart(payload, i);
+                int keyLength = EtfDecoder.nameLength(payload, i);
+                int valueStart = EtfDecoder.skip(payload, i);
+                int valueEnd = EtfDecoder.skip(payload, valueStart);
+                if (keyLength == 1) {
+                    switch (payload.get(keyStart)) {
+                        case 's' -> sequenceNumber = EtfDecoder.readInt(payload, valueStart);
+                        case 't' -> {
+                            int nameStart = EtfDecoder.nameStart(payload, valueStart);
+                            eventType = nameStart < 0 || EtfDecoder.isName(payload, valueStart, "nil") ? null
+                                    : GatewayEventType.fromName(payload, nameStart, nameStart + EtfDecoder.nameLength(payload, valueStart));
+                        }
+                        case 'd' -> {
+                            dataStart = valueStart;
+                            dataEnd = valueEnd;
+                        }
+                        default -> {}
+                    }
+                } else if (keyLength == 2 && payload.get(keyStart) == 'o' && payload.get(keyStart + 1) == 'p') {
+                    opCode = EtfDecoder.readInt(payload, valueStart);
+                }
+                i = valueEnd;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated gateway payload", e);
+        }
+    }
+
+    public int getOpCode() {
+        return opCode;
+    }
+
+    /**
+     * Gets the sequence number of the payload.
+     *
+     * @return The sequence number, or -1 if the payload doesn't have one.
+     */
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Gets the type of the dispatch event.
+     *
+     * @return The type of the event, or null if the payload isn't a dispatch or the event isn't known to CuteCord.
+     */
+    public GatewayEventType getEventType() {
+        return eventType;
+    }
+
+    /**
+     * Gets the payload, if it is JSON text.
+     *
+     * @return The payload, or null if it is an ETF binary.
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Gets the payload, if it is an ETF binary.
+     *
+     * @return The payload, or null if it is JSON text.
+     */
+    public ByteBuffer getEtfPayload() {
+        return etfPayload;
+    }
+
+    public boolean isEtf() {
+        return etfPayload != null;
+    }
+
+    /**
+     * Gets the index of the first character of `d` in the payload, or of its tag for an ETF payload.
+     *
+     * @return The start of `d`, or -1 if the payload doesn't have it.
+     */
+    public int getDataStart() {
+        return dataStart;
+    }
+
+    /**
+     * Gets the index following the last character, or byte, of `d` in the payload.
+     *
+     * @return The end of `d`, or -1 if the payload doesn't have it.
+     */
+    public int getDataEnd() {
+        return dataEnd;
+    }
+
+    /**
+     * Checks if `d` is the literal `true`, as used by OP_INVALID_SESSION.
+     *
+     * @return true if `d` is true, false otherwise.
+     */
+    public boolean isDataTrue() {
+        if (dataStart < 0) return false;
+        return etfPayload != null ? EtfDecoder.isName(etfPayload, dataStart, "true") : payload.startsWith("true", dataStart);
+    }
+
+    /**
+     * Parses `d`, for the few payloads besides dispatches whose content is needed, such as OP_HELLO.
+     *
+     * @return The content of `d`.
+     * @throws IllegalArgumentException If the payload doesn't have `d`, or it isn't an object.
+     */
+    public JSONObject parseData() {
+        if (dataStart < 0) throw new IllegalArgumentException("The gateway payload doesn't have data");
+        if (etfPayload == null) return new JSONObject(payload.substring(dataStart, dataEnd));
+        if (EtfDecoder.decode(etfPayload, dataStart) instanceof JSONObject data) return data;
+        throw new IllegalArgumentException("The data of the gateway payload isn't a map");
+    }
+
+    /**
+     * Finds a snowflake among the fields of `d`, such as the `guild_id` of a dispatch, without parsing the rest of `d`.
+     *
+     * @param payload   The JSON payload.
+     * @param dataStart The index of the first character of `d`.
+     * @param key       The name of the field, which is only looked for at the top level of `d`.
+     * @return The snowflake, or 0 if `d` isn't an object, doesn't have the field, or the field is null.
+     * @throws IllegalArgumentException If the payload is malformed.
+     */
+    static long findSnowflake(String payload, int dataStart, String key) {
+        if (dataStart < 0 || payload.charAt(dataStart) != '{') return 0;
+        try {
+            int i = skipWhitespace(payload, dataStart + 1);
+            while (i < payload.length() && payload.charAt(i) == '"') {
+                int keyEnd = endOfString(payload, i);
+                boolean matches = keyEnd - i - 1 == key.length() && payload.startsWith(key, i + 1);
+                int valueStart = skipWhitespace(payload, skipWhitespace(payload, keyEnd + 1) + 1);
+                int valueEnd = skipValue(payload, valueStart);
+                if (matches) return parseSnowflake(payload, valueStart, valueEnd);
+                i = skipWhitespace(payload, valueEnd);
+                if (payload.charAt(i) != ',') return 0;
+                i = skipWhitespace(payload, i + 1);
+            }
+            return 0;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated gateway payload", e);
+        }
+    }
+
+    /**
+     * Finds a snowflake among the fields of the `d` map of an ETF payload, without decoding the rest of `d`.
+     *
+     * @param payload   The ETF payload.
+     * @param dataStart The offset of the tag of `d`.
+     * @param key       The name of the field, which is only looked for at the top level of `d`.
+     * @return The snowflake, or 0 if `d` isn't a map, doesn't have the field, or the field is nil.
+     * @throws IllegalArgumentException If the payload is malformed.
+     */
+    static long findSnowflake(ByteBuffer payload, int dataStart, String key) {
+        if (dataStart < 0) return 0;
+        try {
+            if ((payload.get(dataStart) & 0xFF) != EtfDecoder.MAP_EXT) return 0;
+            int arity = payload.getInt(dataStart + 1);
+            int i = dataStart + 5;
+            for (int field = 0; field < arity; field++) {
+                boolean matches = EtfDecoder.isName(payload, i, key);
+                int valueStart = EtfDecoder.skip(payload, i);
+                if (matches) {
+                    Object value = EtfDecoder.decode(payload, valueStart);
+                    if (value instanceof Number number) return number.longValue();
+                    return value instanceof String string ? parseSnowflake(string, 0, string.length()) : 0;
+                }
+                i = EtfDecoder.skip(payload, valueStart);
+            }
+            return 0;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated gateway payload", e);
+        }
+    }
+
+    private static long parseSnowflake(String payload, int start, int end) {
+        if (payload.charAt(start) == '"') {
+            start++;
+            end--;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = payload.charAt(i);
+            if (c < '0' || c > '9') return 0;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void expect(int index, char expected) {
+        if (payload.charAt(index) != expected) {
+            throw new IllegalArgumentException(String.format("Malformed gateway payload: expected `%c` at %d", expected, index));
+        }
+    }
+
+    private static int skipWhitespace(String payload, int index) {
+        while (index < payload.length() && Character.isWhitespace(payload.charAt(index))) index++;
+        return index;
+    }
+
+    /**
+     * Finds the closing quote of a string.
+     *
+     * @param index The index of the opening quote.
+     * @return The index of the closing quote.
+     */
+    private static int endOfString(String payload, int index) {
+        for (int i = index + 1; ; i++) {
+            char c = payload.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Skips a value of any type, including nested objects and arrays, without reading it.
+     *
+     * @param index The index of the first character of the value.
+     * @return The index following the last character of the value.
+     */
+    private static int skipValue(String payload, int index) {
+        char first = payload.charAt(index);
+        if (first == '"') return endOfString(payload, index) + 1;
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            for (int i = index; ; i++) {
+                char c = payload.charAt(i);
+                if (c == '"') {
+                    i = endOfString(payload, i);
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if ((c == '}' || c == ']') && --depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        int i = index;
+        while (i < payload.length()) {
+            char c = payload.charAt(i);
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) break;
+            i++;
+        }
+        return i;
+    }
+
+    private int parseInt(int start, int end) {
+        int value = 0;
+        boolean negative = payload.charAt(start) == '-';
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            char c = payload.charAt(i);
+            if (c < '0' || c > '9') throw new IllegalArgumentException(String.format("Malformed gateway payload: expected a number at %d", start));
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,139 @@
+package internals;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A dispatch event received from the Discord gateway, as handed to the {@link EventListener}s registered on the {@link EventDispatcher}.
+ * The payload of the event is kept as received, and is only parsed the first time {@link GatewayEvent#getData()} is called,
+ * so events whose listeners only need their type never pay for a JSON tree.
+ * <p>
+ * Events received with `encoding=etf` are decoded to the same JSON objects, snowflakes included: the gateway sends them as 64-bit
+ * integers, which are decoded to strings like in the JSON encoding, see {@link EtfDecoder}.
+ */
+public final class GatewayEvent {
+    private final GatewayEventType type;
+    private final int sequenceNumber;
+    private final String source;
+    private final ByteBuffer etfSource;
+    private final int dataStart;
+    private final int dataEnd;
+    private volatile JSONObject data;
+
+    /**
+     * The id of the guild the event belongs to, 0 if it doesn't belong to one, or -1 until it is looked up.
+     */
+    private volatile long guildId = -1;
+
+    /**
+     * Instantiates a new GatewayEvent whose payload is a region of the message received from the gateway.
+     *
+     * @param type           The type of the event.
+     * @param sequenceNumber The sequence number of the event.
+     * @param source         The message received from the gateway.
+     * @param dataStart      The index of the first character of the payload in the message, or -1 if there is no payload.
+     * @param dataEnd        The index following the last character of the payload in the message.
+     */
+    protected GatewayEvent(GatewayEventType type, int sequenceNumber, String source, int dataStart, int dataEnd) {
+        this.type = type;
+        this.sequenceNumber = sequenceNumber;
+        this.source = source;
+        this.etfSource = null;
+        this.dataStart = dataStart;
+        this.dataEnd = dataEnd;
+    }
+
+    /**
+     * Instantiates a new GatewayEvent whose payload is a term of an ETF message received from the gateway.
+     *
+     * @param type           The type of the event.
+     * @param sequenceNumber The sequence number of the event.
+     * @param source         The message received from the gateway, which must not be modified afterwards.
+     * @param dataStart      The offset of the tag of the payload in the message, or -1 if there is no payload.
+     * @param dataEnd        The offset following the last byte of the payload in the message.
+     */
+    protected GatewayEvent(GatewayEventType type, int sequenceNumber, ByteBuffer source, int dataStart, int dataEnd) {
+        this.type = type;
+        this.sequenceNumber = sequenceNumber;
+        this.source = null;
+        this.etfSource = source;
+        this.dataStart = dataStart;
+        this.dataEnd = dataEnd;
+    }
+
+    /**
+     * Gets the type of the event.
+     *
+     * @return The type of the event.
+     */
+    public GatewayEventType getType() {
+        return type;
+    }
+
+    /**
+     * Gets the sequence number the gateway attached to this event.
+     *
+     * @return The sequence number of the event.
+     */
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Gets the id of the guild the event belongs to, which is the `id` of the guild for the GUILD_CREATE, GUILD_UPDATE and GUILD_DELETE
+     * events, and the `guild_id` field of the payload for the others. It is found without parsing the payload, unless it already was.
+     *
+     * @return The id of the guild, or 0 if the event doesn't belong to a guild, such as a direct message.
+     */
+    public long getGuildId() {
+        long id = guildId;
+        if (id < 0) {
+            String key = type == GatewayEventType.GUILD_CREATE || type == GatewayEventType.GUILD_UPDATE
+                    || type == GatewayEventType.GUILD_DELETE ? "id" : "guild_id";
+            JSONObject parsed = data;
+            if (parsed != null) {
+                id = parsed.optLong(key);
+            } else if (etfSource != null) {
+                id = GatewayEnvelope.findSnowflake(etfSource, dataStart, key);
+            } else {
+                id = GatewayEnvelope.findSnowflake(source, dataStart, key);
+            }
+            guildId = id;
+        }
+        return id;
+    }
+
+    /**
+     * Gets the payload of the event, which is the `d` field of the dispatch. It is parsed on the first call, then reused.
+     *
+     * @return The payload of the event, or null if the event doesn't have one.
+     */
+    public JSONObject getData() {
+        JSONObject parsed = data;
+        if (parsed == null && dataStart >= 0) {
+            // Parsing twice in case of a race is harmless, as both results are equal.
+            if (etfSource != null) {
+                if ((etfSource.get(dataStart) & 0xFF) != EtfDecoder.MAP_EXT) return null;
+                parsed = (JSONObject) EtfDecoder.decode(etfSource, dataStart);
+            } else {
+                if (source.charAt(dataStart) != '{') return null;
+                parsed = new JSONObject(getRawData());
+            }
+            data = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * Gets the payload of the event as it was received, for listeners which want to parse it themselves.
+     * The payload of an ETF event is converted to JSON text.
+     *
+     * @return The JSON text of the payload, or null if the event doesn't have one.
+     */
+    public String getRawData() {
+        if (dataStart < 0) return null;
+        if (etfSource != null) return JSONObject.valueToString(EtfDecoder.decode(etfSource, dataStart));
+        return source.substring(dataStart, dataEnd);
+    }
+}
@@ -0,0 +1,183 @@
+package internals;
+
+import java.nio.ByteBuffer;
+
+/**
+ * All the dispatch events that can be received from the Discord gateway, as named in the `t` field of an OP_DISPATCH payload.
+ * The ordinal of each type is used by {@link EventDispatcher} as an index into its listener table.
+ * Each type lists the intents which make Discord send it, none meaning it is always sent.
+ */
+public enum GatewayEventType {
+    READY,
+    RESUMED,
+    APPLICATION_COMMAND_PERMISSIONS_UPDATE,
+    AUTO_MODERATION_RULE_CREATE(GatewayIntent.AUTO_MODERATION_CONFIGURATION),
+    AUTO_MODERATION_RULE_UPDATE(GatewayIntent.AUTO_MODERATION_CONFIGURATION),
+    AUTO_MODERATION_RULE_DELETE(GatewayIntent.AUTO_MODERATION_CONFIGURATION),
+    AUTO_MODERATION_ACTION_EXECUTION(GatewayIntent.AUTO_MODERATION_EXECUTION),
+    CHANNEL_CREATE(GatewayIntent.GUILDS),
+    CHANNEL_UPDATE(GatewayIntent.GUILDS),
+    CHANNEL_DELETE(GatewayIntent.GUILDS),
+    CHANNEL_PINS_UPDATE(GatewayIntent.GUILDS, GatewayIntent.DIRECT_MESSAGES),
+    THREAD_CREATE(GatewayIntent.GUILDS),
+    THREAD_UPDATE(GatewayIntent.GUILDS),
+    THREAD_DELETE(GatewayIntent.GUILDS),
+    THREAD_LIST_SYNC(GatewayIntent.GUILDS),
+    THREAD_MEMBER_UPDATE(GatewayIntent.GUILDS),
+    THREAD_MEMBERS_UPDATE(GatewayIntent.GUILDS, GatewayIntent.GUILD_MEMBERS),
+    GUILD_CREATE(GatewayIntent.GUILDS),
+    GUILD_UPDATE(GatewayIntent.GUILDS),
+    GUILD_DELETE(GatewayIntent.GUILDS),
+    GUILD_BAN_ADD(GatewayIntent.GUILD_MODERATION),
+    GUILD_BAN_REMOVE(GatewayIntent.GUILD_MODERATION),
+    GUILD_EMOJIS_UPDATE(GatewayIntent.GUILD_EMOJIS_AND_STICKERS),
+    GUILD_STICKERS_UPDATE(GatewayIntent.GUILD_EMOJIS_AND_STICKERS),
+    GUILD_INTEGRATIONS_UPDATE(GatewayIntent.GUILD_INTEGRATIONS),
+    GUILD_MEMBER_ADD(GatewayIntent.GUILD_MEMBERS),
+    GUILD_MEMBER_REMOVE(GatewayIntent.GUILD_MEMBERS),
+    GUILD_MEMBER_UPDATE(GatewayIntent.GUILD_MEMBERS),
+    GUILD_MEMBERS_CHUNK,
+    GUILD_ROLE_CREATE(GatewayIntent.GUILDS),
+    GUILD_ROLE_UPDATE(GatewayIntent.GUILDS),
+    GUILD_ROLE_DELETE(GatewayIntent.GUILDS),
+    GUILD_SCHEDULED_EVENT_CREATE(GatewayIntent.GUILD_SCHEDULED_EVENTS),
+    GUILD_SCHEDULED_EVENT_UPDATE(GatewayIntent.GUILD_SCHEDULED_EVENTS),
+    GUILD_SCHEDULED_EVENT_DELETE(GatewayIntent.GUILD_SCHEDULED_EVENTS),
+    GUILD_SCHEDULED_EVENT_USER_ADD(GatewayIntent.GUILD_SCHEDULED_EVENTS),
+    GUILD_SCHEDULED_EVENT_USER_REMOVE(GatewayIntent.GUILD_SCHEDULED_EVENTS),
+    INTEGRATION_CREATE(GatewayIntent.GUILD_INTEGRATIONS),
+    INTEGRATION_UPDATE(GatewayIntent.GUILD_INTEGRATIONS),
+    INTEGRATION_DELETE(GatewayIntent.GUILD_INTEGRATIONS),
+    INTERACTION_CREATE,
+    INVITE_CREATE(GatewayIntent.GUILD_INVITES),
+    INVITE_DELETE(GatewayIntent.GUILD_INVITES),
+    MESSAGE_CREATE(GatewayIntent.GUILD_MESSAGES, GatewayIntent.DIRECT_MESSAGES),
+    MESSAGE_UPDATE(GatewayIntent.GUILD_MESSAGES, GatewayIntent.DIRECT_MESSAGES),
+    MESSAGE_DELETE(GatewayIntent.GUILD_MESSAGES, GatewayIntent.DIRECT_MESSAGES),
+    MESSAGE_DELETE_BULK(GatewayIntent.GUILD_MESSAGES),
+    MESSAGE_REACTION_ADD(GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.DIRECT_MESSAGE_REACTIONS),
+    MESSAGE_REACTION_REMOVE(GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.DIRECT_MESSAGE_REACTIONS),
+    MESSAGE_REACTION_REMOVE_ALL(GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.DIRECT_MESSAGE_REACTIONS),
+    MESSAGE_REACTION_REMOVE_EMOJI(GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.DIRECT_MESSAGE_REACTIONS),
+    PRESENCE_UPDATE(GatewayIntent.GUILD_PRESENCES),
+    STAGE_INSTANCE_CREATE(GatewayIntent.GUILDS),
+    STAGE_INSTANCE_UPDATE(GatewayIntent.GUILDS),
+    STAGE_INSTANCE_DELETE(GatewayIntent.GUILDS),
+    TYPING_START(GatewayIntent.GUILD_MESSAGE_TYPING, GatewayIntent.DIRECT_MESSAGE_TYPING),
+    USER_UPDATE,
+    VOICE_STATE_UPDATE(GatewayIntent.GUILD_VOICE_STATES),
+    VOICE_SERVER_UPDATE,
+    WEBHOOKS_UPDATE(GatewayIntent.GUILD_WEBHOOKS);
+
+    /**
+     * The bitmask of the intents which make Discord send this event, or 0 if it is always sent.
+     */
+    private final int intents;
+
+    GatewayEventType(GatewayIntent... intents) {
+        int bitmask = 0;
+        for (GatewayIntent intent : intents) {
+            bitmask |= intent.getBit();
+        }
+        this.intents = bitmask;
+    }
+
+    /**
+     * Gets the intents which make Discord send this event.
+     *
+     * @return The bitmask of the intents, or 0 if the event is always sent.
+     */
+    public int getIntents() {
+        return intents;
+    }
+
+    /**
+     * Checks if this event can be received with the given intents.
+     *
+     * @param intents The bitmask of the intents sent in IDENTIFY.
+     * @return true if the event can be received, false otherwise.
+     */
+    public boolean isEnabledBy(int intents) {
+        return this.intents == 0 || (this.intents & intents) != 0;
+    }
+
+    /**
+     * An open-addressing hash table of all types by name, so that a name can be looked up directly from a region of a payload,
+     * without extracting it as a string first.
+     */
+    private static final GatewayEventType[] BY_NAME;
+
+    static {
+        GatewayEventType[] types = values();
+        BY_NAME = new GatewayEventType[Integer.highestOneBit(types.length * 4)];
+        int mask = BY_NAME.length - 1;
+        for (GatewayEventType type : types) {
+            int slot = spread(type.name().hashCode()) & mask;
+            while (BY_NAME[slot] != null) slot = (slot + 1) & mask;
+            BY_NAME[slot] = type;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Gets the event type matching the name sent by the gateway.
+     *
+     * @param name The value of the `t` field of a dispatch payload.
+     * @return The matching event type, or null if the event is not known to CuteCord.
+     */
+    public static GatewayEventType fromName(String name) {
+        return name == null ? null : fromName(name, 0, name.length());
+    }
+
+    /**
+     * Gets the event type whose name is found in a region of a string.
+     *
+     * @param source The string containing the name, such as a whole gateway payload.
+     * @param start  The index of the first character of the name.
+     * @param end    The index following the last character of the name.
+     * @return The matching event type, or null if the event is not known to CuteCord.
+     */
+    public static GatewayEventType fromName(String source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = BY_NAME.length - 1;
+        for (int slot = spread(hash) & mask; BY_NAME[slot] != null; slot = (slot + 1) & mask) {
+            String name = BY_NAME[slot].name();
+            if (name.length() == end - start && source.startsWith(name, start)) return BY_NAME[slot];
+        }
+        return null;
+    }
+
+    /**
+     * Gets the event type whose name is found in a region of a buffer, such as the `t` atom of an ETF payload.
+     *
+     * @param source The buffer containing the name, encoded in ASCII.
+     * @param start  The offset of the first byte of the name.
+     * @param end    The offset following the last byte of the name.
+     * @return The matching event type, or null if the event is not known to CuteCord.
+     */
+    public static GatewayEventType fromName(ByteBuffer source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + (source.get(i) & 0xFF);
+        }
+        int mask = BY_NAME.length - 1;
+        for (int slot = spread(hash) & mask; BY_NAME[slot] != null; slot = (slot + 1) & mask) {
+            String name = BY_NAME[slot].name();
+            if (name.length() == end - start && matches(source, start, name)) return BY_NAME[slot];
+        }
+        return null;
+    }
+
+    private static boolean matches(ByteBuffer source, int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (source.get(start + i) != name.charAt(i)) return false;
+        }
+        return true;
+    }
+}
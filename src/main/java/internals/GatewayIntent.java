@@ -0,0 +1,86 @@
+package internals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The gateway intents, which select the groups of events Discord sends to the bot.
+ * Modules declare the intents they need in the `Module-Intents` attribute of their manifest, as a comma separated list of names.
+ */
+public enum GatewayIntent {
+    GUILDS(0, false),
+    GUILD_MEMBERS(1, true),
+    GUILD_MODERATION(2, false),
+    GUILD_EMOJIS_AND_STICKERS(3, false),
+    GUILD_INTEGRATIONS(4, false),
+    GUILD_WEBHOOKS(5, false),
+    GUILD_INVITES(6, false),
+    GUILD_VOICE_STATES(7, false),
+    GUILD_PRESENCES(8, true),
+    GUILD_MESSAGES(9, false),
+    GUILD_MESSAGE_REACTIONS(10, false),
+    GUILD_MESSAGE_TYPING(11, false),
+    DIRECT_MESSAGES(12, false),
+    DIRECT_MESSAGE_REACTIONS(13, false),
+    DIRECT_MESSAGE_TYPING(14, false),
+    MESSAGE_CONTENT(15, true),
+    GUILD_SCHEDULED_EVENTS(16, false),
+    AUTO_MODERATION_CONFIGURATION(20, false),
+    AUTO_MODERATION_EXECUTION(21, false);
+
+    private final int bit;
+    private final boolean privileged;
+
+    GatewayIntent(int offset, boolean privileged) {
+        this.bit = 1 << offset;
+        this.privileged = privileged;
+    }
+
+    /**
+     * Gets the bit of this intent in the intents bitmask sent in IDENTIFY.
+     *
+     * @return The bit of the intent.
+     */
+    public int getBit() {
+        return bit;
+    }
+
+    /**
+     * Checks if the intent is privileged, in which case it must be enabled for the bot in the Discord developer portal.
+     *
+     * @return true if the intent is privileged, false otherwise.
+     */
+    public boolean isPrivileged() {
+        return privileged;
+    }
+
+    /**
+     * Parses a comma separated list of intent names, such as `GUILDS, GUILD_MESSAGES`.
+     *
+     * @param names The list of names.
+     * @return The bitmask of the intents.
+     * @throws IllegalArgumentException If a name isn't a known intent.
+     */
+    public static int parse(String names) {
+        int intents = 0;
+        for (String name : names.split(",")) {
+            if (name.isBlank()) continue;
+            intents |= valueOf(name.trim()).getBit();
+        }
+        return intents;
+    }
+
+    /**
+     * Gets the privileged intents which are part of a bitmask.
+     *
+     * @param intents The bitmask of intents.
+     * @return The privileged intents of the bitmask.
+     */
+    public static List<GatewayIntent> getPrivileged(int intents) {
+        List<GatewayIntent> privilegedIntents = new ArrayList<>();
+        for (GatewayIntent intent : values()) {
+            if (intent.privileged && (intents & intent.bit) != 0) privilegedIntents.add(intent);
+        }
+        return privilegedIntents;
+    }
+}
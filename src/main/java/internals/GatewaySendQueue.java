@@ -0,0 +1,171 @@
+package internals;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The outbound pipeline of a gateway connection, which enforces the limit of 120 messages per 60 seconds without blocking senders.
+ * Messages are put in lock-free queues by any thread, and written to the socket by a single writer running on the scheduler.
+ * The send times of the last 120 messages are kept in a ring buffer, so the oldest one tells when the window frees a slot.
+ * Priority messages (heartbeats, identify, resume) are always written first, and a few slots of the window are reserved for them,
+ * so that a burst of presence updates or member requests can never delay a heartbeat until the connection is considered dead.
+ * <p>
+ * Normal messages are also held while the connection isn't authenticated, from the time it is opened until READY or RESUMED
+ * is received, as the gateway closes connections which send anything else before IDENTIFY or RESUME.
+ *
+ * @param <M> The type of the messages, as accepted by the socket.
+ */
+class GatewaySendQueue<M> {
+    private static final int LIMIT = 120;
+    private static final long WINDOW = 60000;
+
+    /**
+     * The number of slots of the window which normal messages can't use.
+     */
+    private static final int RESERVED_FOR_PRIORITY = 10;
+
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    private static final int WAITING = 2;
+
+    private final Queue<OutboundMessage<M>> priorityQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<OutboundMessage<M>> normalQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The send times of the last {@link GatewaySendQueue#LIMIT} messages, the oldest being at {@link GatewaySendQueue#windowIndex}.
+     * Only ever accessed by the writer.
+     */
+    private final long[] window = new long[LIMIT];
+    private int windowIndex;
+
+    /**
+     * Whether the writer is idle, running, or waiting for a slot of the window to be freed.
+     * Only the thread which moves the state to RUNNING may write.
+     */
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+
+    /**
+     * Whether normal messages may be written, which is only the case once the session is established.
+     */
+    private volatile boolean authenticated;
+
+    private final ScheduledExecutorService scheduler;
+    private final Consumer<M> socket;
+
+    /**
+     * Instantiates a new GatewaySendQueue.
+     *
+     * @param scheduler The scheduler on which the writer runs.
+     * @param socket    The function writing a message to the socket.
+     */
+    public GatewaySendQueue(ScheduledExecutorService scheduler, Consumer<M> socket) {
+        this.scheduler = scheduler;
+        this.socket = socket;
+        Arrays.fill(window, -WINDOW);
+    }
+
+    /**
+     * Queues a message to be written to the socket as soon as the rate limit allows it.
+     *
+     * @param payload  The message to send.
+     * @param priority Whether the message goes before all normal messages, and may use the reserved slots of the window.
+     * @return A future completed once the message has been written, or completed exceptionally if it couldn't be.
+     */
+    public CompletableFuture<Void> submit(M payload, boolean priority) {
+        OutboundMessage<M> message = new OutboundMessage<>(payload);
+        (priority ? priorityQueue : normalQueue).add(message);
+        // A writer waiting for the window is woken up for priority messages, which may be allowed to use a reserved slot.
+        if (state.compareAndSet(IDLE, RUNNING) || (priority && state.compareAndSet(WAITING, RUNNING))) {
+            scheduler.execute(this::drain);
+        }
+        return message.future;
+    }
+
+    /**
+     * Holds normal messages until {@link GatewaySendQueue#release()} is called, such as when a connection is opened or closed.
+     * Priority messages are still written.
+     */
+    public void hold() {
+        authenticated = false;
+    }
+
+    /**
+     * Lets normal messages be written again, once the session is established.
+     */
+    public void release() {
+        authenticated = true;
+        if (state.compareAndSet(IDLE, RUNNING) || state.compareAndSet(WAITING, RUNNING)) {
+            scheduler.execute(this::drain);
+        }
+    }
+
+    /**
+     * Gets the number of messages waiting to be written.
+     *
+     * @return The number of queued messages.
+     */
+    public int size() {
+        return priorityQueue.size() + normalQueue.size();
+    }
+
+    /**
+     * Writes queued messages until the queues are empty, or the window is full in which case the writer is woken up again once
+     * the oldest slot it needs is freed. Must only be called by the thread which moved the state to RUNNING.
+     */
+    private void drain() {
+        while (true) {
+            long now = System.currentTimeMillis();
+            Queue<OutboundMessage<M>> queue;
+            long freeAt;
+            if (!priorityQueue.isEmpty()) {
+                queue = priorityQueue;
+                freeAt = window[windowIndex] + WINDOW;
+            } else if (authenticated && !normalQueue.isEmpty()) {
+                queue = normalQueue;
+                freeAt = window[(windowIndex + RESERVED_FOR_PRIORITY) % LIMIT] + WINDOW;
+            } else {
+                state.set(IDLE);
+                // A message may have been queued, or the queue released, after the queues were checked but before the state was set.
+                if (priorityQueue.isEmpty() && (!authenticated || normalQueue.isEmpty()) || !state.compareAndSet(IDLE, RUNNING)) return;
+                continue;
+            }
+            if (freeAt > now) {
+                state.set(WAITING);
+                // A priority message queued after the queues were checked, but before the state was set, didn't wake the writer up,
+                // and may be allowed to use a reserved slot now.
+                if (queue == normalQueue && !priorityQueue.isEmpty()) {
+                    if (!state.compareAndSet(WAITING, RUNNING)) return;
+                    continue;
+                }
+                scheduler.schedule(() -> {
+                    if (state.compareAndSet(WAITING, RUNNING)) drain();
+                }, freeAt - now, TimeUnit.MILLISECONDS);
+                return;
+            }
+            OutboundMessage<M> message = queue.poll();
+            window[windowIndex] = now;
+            windowIndex = (windowIndex + 1) % LIMIT;
+            try {
+                socket.accept(message.payload);
+                message.future.complete(null);
+            } catch (RuntimeException e) {
+                message.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class OutboundMessage<M> {
+        private final M payload;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private OutboundMessage(M payload) {
+            this.payload = payload;
+        }
+    }
+}
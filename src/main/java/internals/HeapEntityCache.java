@@ -0,0 +1,214 @@
+package internals;
+
+import java.util.Arrays;
+
+/**
+ * An {@link EntityCache} keeping its entities on the heap, as they are given.
+ * Entries are stored in parallel arrays of primitives, indexed by an open-addressing hash table of entry indices,
+ * so no object is allocated per entry besides the entity itself. Entries are linked in least recently used order,
+ * which is used to evict entries when the {@link CachePolicy} limits the size of the cache.
+ */
+class HeapEntityCache<V> extends EntityCache<V> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] scopes;
+    private long[] ids;
+    private long[] owners;
+    private long[] writeTimes;
+    private Object[] values;
+
+    /**
+     * The links of the least recently used list, the head being the most recently used entry.
+     * {@link HeapEntityCache#next} also links the free entries together.
+     */
+    private int[] previous;
+    private int[] next;
+    private int head = -1;
+    private int tail = -1;
+    private int free = -1;
+    private int allocated;
+    private int size;
+
+    /**
+     * The hash table, which contains the index of an entry plus one, or 0 for an empty slot.
+     */
+    private int[] table;
+
+    /**
+     * Instantiates a new HeapEntityCache.
+     *
+     * @param policy The policy deciding which entities are kept.
+     */
+    HeapEntityCache(CachePolicy policy) {
+        super(policy);
+        scopes = new long[INITIAL_CAPACITY];
+        ids = new long[INITIAL_CAPACITY];
+        owners = new long[INITIAL_CAPACITY];
+        writeTimes = new long[INITIAL_CAPACITY];
+        values = new Object[INITIAL_CAPACITY];
+        previous = new int[INITIAL_CAPACITY];
+        next = new int[INITIAL_CAPACITY];
+        table = new int[INITIAL_CAPACITY * 2];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized V get(long scope, long id) {
+        int entry = find(scope, id);
+        if (entry >= 0 && isExpired(writeTimes[entry], System.currentTimeMillis())) {
+            removeEntry(entry);
+            recordEviction();
+            entry = -1;
+        }
+        if (entry < 0) {
+            recordMiss();
+            return null;
+        }
+        recordHit();
+        unlink(entry);
+        linkHead(entry);
+        return (V) values[entry];
+    }
+
+    @Override
+    protected synchronized void put(long scope, long id, long owner, V value) {
+        CachePolicy policy = getPolicy();
+        if (!policy.isEnabled()) return;
+        int entry = find(scope, id);
+        if (entry >= 0) {
+            unlink(entry);
+        } else {
+            entry = allocate();
+            scopes[entry] = scope;
+            ids[entry] = id;
+            insert(entry);
+            size++;
+        }
+        owners[entry] = owner;
+        values[entry] = value;
+        if (policy.getTtl() > 0) writeTimes[entry] = System.currentTimeMillis();
+        linkHead(entry);
+        while (policy.getMaxSize() > 0 && size > policy.getMaxSize()) {
+            removeEntry(tail);
+            recordEviction();
+        }
+    }
+
+    @Override
+    protected synchronized void remove(long scope, long id) {
+        int entry = find(scope, id);
+        if (entry >= 0) removeEntry(entry);
+    }
+
+    @Override
+    protected synchronized void removeOwnedBy(long owner) {
+        for (int entry = 0; entry < allocated; entry++) {
+            if (values[entry] != null && owners[entry] == owner) removeEntry(entry);
+        }
+    }
+
+    @Override
+    protected synchronized void removeExpired() {
+        if (getPolicy().getTtl() <= 0) return;
+        long now = System.currentTimeMillis();
+        for (int entry = 0; entry < allocated; entry++) {
+            if (values[entry] != null && isExpired(writeTimes[entry], now)) {
+                removeEntry(entry);
+                recordEviction();
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    private int find(long scope, long id) {
+        int mask = table.length - 1;
+        for (int slot = hash(scope, id) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (entry < 0) return -1;
+            if (ids[entry] == id && scopes[entry] == scope) return entry;
+        }
+    }
+
+    private void insert(int entry) {
+        if ((size + 1) * 2 > table.length) rehash(table.length * 2);
+        int mask = table.length - 1;
+        int slot = hash(scopes[entry], ids[entry]) & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = entry + 1;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int entry = head; entry >= 0; entry = next[entry]) {
+            int slot = hash(scopes[entry], ids[entry]) & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = entry + 1;
+        }
+    }
+
+    /**
+     * Removes an entry from the hash table, shifting back the entries of the same probe sequence so that no tombstone is needed.
+     */
+    private void removeFromTable(int entry) {
+        int mask = table.length - 1;
+        int gap = hash(scopes[entry], ids[entry]) & mask;
+        while (table[gap] != entry + 1) gap = (gap + 1) & mask;
+        for (int slot = (gap + 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int other = table[slot] - 1;
+            int home = hash(scopes[other], ids[other]) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                table[gap] = table[slot];
+                gap = slot;
+            }
+        }
+        table[gap] = 0;
+    }
+
+    private int allocate() {
+        if (free >= 0) {
+            int entry = free;
+            free = next[entry];
+            return entry;
+        }
+        if (allocated == values.length) {
+            int capacity = values.length * 2;
+            scopes = Arrays.copyOf(scopes, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            writeTimes = Arrays.copyOf(writeTimes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+        return allocated++;
+    }
+
+    private void removeEntry(int entry) {
+        removeFromTable(entry);
+        unlink(entry);
+        values[entry] = null;
+        next[entry] = free;
+        free = entry;
+        size--;
+    }
+
+    private void linkHead(int entry) {
+        previous[entry] = -1;
+        next[entry] = head;
+        if (head >= 0) previous[head] = entry;
+        head = entry;
+        if (tail < 0) tail = entry;
+    }
+
+    private void unlink(int entry) {
+        int before = previous[entry];
+        int after = next[entry];
+        if (before >= 0) next[before] = after; else head = after;
+        if (after >= 0) previous[after] = before; else tail = before;
+    }
+}
@@ -0,0 +1,246 @@
+package internals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The variable-length values of the entities of an {@link OffHeapEntityCache}, such as names and role id arrays, stored once each
+ * in an {@link OffHeapRegion} and referenced from the fixed-size records by their offset. Equal values share the same entry,
+ * which is counted as long as a record references it. Entries nothing references anymore are garbage, which is reclaimed by copying
+ * the live entries to a new table once garbage takes half of it.
+ * <p>
+ * An entry is made of its hash, its reference count and its length, followed by its bytes, padded to 4 bytes.
+ * The table of entries is indexed by an open-addressing hash table outside the heap, rebuilt from the entries when the table is opened.
+ */
+final class InternTable implements AutoCloseable {
+    private static final int MAGIC = 0x43435354;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_USED = 4;
+    private static final int HEADER_GARBAGE = 8;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int ENTRY_HASH = 0;
+    private static final int ENTRY_REFERENCES = 4;
+    private static final int ENTRY_LENGTH = 8;
+    private static final int ENTRY_BYTES = 12;
+
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private final OffHeapRegion region;
+
+    /**
+     * The end of the last entry, where the next one is appended.
+     */
+    private int used;
+
+    /**
+     * The total size of the entries which aren't referenced anymore.
+     */
+    private int garbage;
+
+    /**
+     * The hash table of entries, which contains the offset of an entry, or 0 for an empty slot.
+     */
+    private ByteBuffer index;
+    private int indexCapacity;
+    private int entries;
+
+    /**
+     * Opens the table of a region, or starts an empty one.
+     *
+     * @param region The region holding the entries.
+     * @param reset  Whether the previous content of the region is discarded.
+     */
+    InternTable(OffHeapRegion region, boolean reset) {
+        this.region = region;
+        ByteBuffer buffer = region.buffer();
+        if (reset || region.isCreated() || buffer.getInt(HEADER_MAGIC) != MAGIC) {
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            used = HEADER_SIZE;
+            garbage = 0;
+        } else {
+            used = buffer.getInt(HEADER_USED);
+            garbage = buffer.getInt(HEADER_GARBAGE);
+        }
+        int capacity = INITIAL_INDEX_CAPACITY;
+        for (int entry = HEADER_SIZE; entry < used; entry += entrySize(buffer.getInt(entry + ENTRY_LENGTH))) {
+            entries++;
+        }
+        while (entries * 2 >= capacity) capacity *= 2;
+        rebuildIndex(capacity);
+    }
+
+    /**
+     * References a value, adding it to the table if it isn't already there.
+     *
+     * @param bytes The value.
+     * @return The reference to the value, which is never 0.
+     */
+    int intern(byte[] bytes) {
+        int hash = Arrays.hashCode(bytes);
+        int mask = indexCapacity - 1;
+        int slot = mix(hash) & mask;
+        for (int entry; (entry = index.getInt(slot * 4)) != 0; slot = (slot + 1) & mask) {
+            if (matches(entry, hash, bytes)) {
+                retain(entry);
+                return entry;
+            }
+        }
+        int size = entrySize(bytes.length);
+        region.grow((long) used + size);
+        ByteBuffer buffer = region.buffer();
+        int entry = used;
+        buffer.putInt(entry + ENTRY_HASH, hash);
+        buffer.putInt(entry + ENTRY_REFERENCES, 1);
+        buffer.putInt(entry + ENTRY_LENGTH, bytes.length);
+        buffer.put(entry + ENTRY_BYTES, bytes);
+        used += size;
+        index.putInt(slot * 4, entry);
+        if (++entries * 2 >= indexCapacity) rebuildIndex(indexCapacity * 2);
+        return entry;
+    }
+
+    /**
+     * References a string, adding it to the table if it isn't already there.
+     *
+     * @param value The string, or null.
+     * @return The reference to the string, or 0 if it is null.
+     */
+    int intern(String value) {
+        return value == null ? 0 : intern(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Drops a reference to a value, which becomes garbage if nothing references it anymore.
+     *
+     * @param entry The reference to the value, or 0.
+     */
+    void release(int entry) {
+        if (entry == 0) return;
+        ByteBuffer buffer = region.buffer();
+        int references = buffer.getInt(entry + ENTRY_REFERENCES) - 1;
+        buffer.putInt(entry + ENTRY_REFERENCES, references);
+        if (references == 0) garbage += entrySize(buffer.getInt(entry + ENTRY_LENGTH));
+    }
+
+    private void retain(int entry) {
+        ByteBuffer buffer = region.buffer();
+        int references = buffer.getInt(entry + ENTRY_REFERENCES);
+        buffer.putInt(entry + ENTRY_REFERENCES, references + 1);
+        if (references == 0) garbage -= entrySize(buffer.getInt(entry + ENTRY_LENGTH));
+    }
+
+    /**
+     * Gets a value.
+     *
+     * @param entry The reference to the value.
+     * @return The bytes of the value.
+     */
+    byte[] get(int entry) {
+        ByteBuffer buffer = region.buffer();
+        byte[] bytes = new byte[buffer.getInt(entry + ENTRY_LENGTH)];
+        buffer.get(entry + ENTRY_BYTES, bytes);
+        return bytes;
+    }
+
+    /**
+     * Gets a string.
+     *
+     * @param entry The reference to the string, or 0.
+     * @return The string, or null if the reference is 0.
+     */
+    String getString(int entry) {
+        return entry == 0 ? null : new String(get(entry), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks if garbage takes half of the table, in which case it is worth copying the live entries to a new table.
+     *
+     * @return true if the table should be compacted.
+     */
+    boolean needsCompaction() {
+        return garbage > HEADER_SIZE + 65536 && garbage * 2L > used;
+    }
+
+    /**
+     * Copies the referenced entries to a new table. Each entry of this table then holds the reference to its copy,
+     * read through {@link InternTable#forward(int)}, so that the records can be updated before this table is closed.
+     *
+     * @param target The region of the new table.
+     * @return The new table.
+     */
+    InternTable compact(OffHeapRegion target) {
+        InternTable compacted = new InternTable(target, true);
+        ByteBuffer buffer = region.buffer();
+        for (int entry = HEADER_SIZE; entry < used; ) {
+            int length = buffer.getInt(entry + ENTRY_LENGTH);
+            int references = buffer.getInt(entry + ENTRY_REFERENCES);
+            if (references > 0) {
+                int copy = compacted.intern(get(entry));
+                compacted.region.buffer().putInt(copy + ENTRY_REFERENCES, references);
+                buffer.putInt(entry + ENTRY_HASH, copy);
+            }
+            entry += entrySize(length);
+        }
+        return compacted;
+    }
+
+    /**
+     * Gets the reference to the copy of an entry, after {@link InternTable#compact(OffHeapRegion)}.
+     *
+     * @param entry The reference to the entry in this table, or 0.
+     * @return The reference to the entry in the new table, or 0.
+     */
+    int forward(int entry) {
+        return entry == 0 ? 0 : region.buffer().getInt(entry + ENTRY_HASH);
+    }
+
+    int getUsed() {
+        return used;
+    }
+
+    /**
+     * Writes the header of the table, and its changes to its file if it has one.
+     */
+    void force() {
+        ByteBuffer buffer = region.buffer();
+        buffer.putInt(HEADER_USED, used);
+        buffer.putInt(HEADER_GARBAGE, garbage);
+        region.force();
+    }
+
+    @Override
+    public void close() {
+        force();
+        region.close();
+    }
+
+    private boolean matches(int entry, int hash, byte[] bytes) {
+        ByteBuffer buffer = region.buffer();
+        return buffer.getInt(entry + ENTRY_HASH) == hash && buffer.getInt(entry + ENTRY_LENGTH) == bytes.length
+                && buffer.slice(entry + ENTRY_BYTES, bytes.length).mismatch(ByteBuffer.wrap(bytes)) == -1;
+    }
+
+    private void rebuildIndex(int capacity) {
+        index = ByteBuffer.allocateDirect(capacity * 4);
+        indexCapacity = capacity;
+        int mask = capacity - 1;
+        ByteBuffer buffer = region.buffer();
+        for (int entry = HEADER_SIZE; entry < used; entry += entrySize(buffer.getInt(entry + ENTRY_LENGTH))) {
+            int slot = mix(buffer.getInt(entry + ENTRY_HASH)) & mask;
+            while (index.getInt(slot * 4) != 0) slot = (slot + 1) & mask;
+            index.putInt(slot * 4, entry);
+        }
+    }
+
+    private static int entrySize(int length) {
+        return (ENTRY_BYTES + length + 3) & ~3;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
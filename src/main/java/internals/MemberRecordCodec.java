@@ -0,0 +1,153 @@
+package internals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * The record of a guild member, with its user. Timestamps are stored as microseconds, the discriminator as a number,
+ * and the names, avatars and role ids are interned, so that members sharing the same roles share the same role array.
+ * Fields which aren't listed here, such as banners or avatar decorations, aren't kept.
+ */
+final class MemberRecordCodec implements RecordCodec {
+    private static final int JOINED_AT = 0;
+    private static final int PREMIUM_SINCE = 8;
+    private static final int COMMUNICATION_DISABLED_UNTIL = 16;
+    private static final int PUBLIC_FLAGS = 24;
+    private static final int FLAGS = 28;
+    private static final int USERNAME = 32;
+    private static final int GLOBAL_NAME = 36;
+    private static final int USER_AVATAR = 40;
+    private static final int NICK = 44;
+    private static final int AVATAR = 48;
+    private static final int ROLES = 52;
+    private static final int DISCRIMINATOR = 56;
+    private static final int BOOLEANS = 58;
+    private static final int SIZE = 64;
+
+    private static final int[] REFERENCES = {USERNAME, GLOBAL_NAME, USER_AVATAR, NICK, AVATAR, ROLES};
+
+    private static final int BOT = 1;
+    private static final int SYSTEM = 1 << 1;
+    private static final int DEAF = 1 << 2;
+    private static final int MUTE = 1 << 3;
+    private static final int PENDING = 1 << 4;
+
+    /**
+     * The value of a timestamp which is null or missing.
+     */
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSxxx")
+            .withZone(ZoneOffset.UTC);
+
+    @Override
+    public int getLayout() {
+        return 1;
+    }
+
+    @Override
+    public int getSize() {
+        return SIZE;
+    }
+
+    @Override
+    public int[] getReferenceOffsets() {
+        return REFERENCES;
+    }
+
+    @Override
+    public void write(JSONObject member, ByteBuffer buffer, int offset, InternTable strings) {
+        JSONObject user = member.getJSONObject("user");
+        buffer.putLong(offset + JOINED_AT, parseTimestamp(member.optString("joined_at", null)));
+        buffer.putLong(offset + PREMIUM_SINCE, parseTimestamp(member.optString("premium_since", null)));
+        buffer.putLong(offset + COMMUNICATION_DISABLED_UNTIL, parseTimestamp(member.optString("communication_disabled_until", null)));
+        buffer.putInt(offset + PUBLIC_FLAGS, user.optInt("public_flags"));
+        buffer.putInt(offset + FLAGS, member.optInt("flags"));
+        buffer.putInt(offset + USERNAME, strings.intern(user.optString("username", null)));
+        buffer.putInt(offset + GLOBAL_NAME, strings.intern(user.optString("global_name", null)));
+        buffer.putInt(offset + USER_AVATAR, strings.intern(user.optString("avatar", null)));
+        buffer.putInt(offset + NICK, strings.intern(member.optString("nick", null)));
+        buffer.putInt(offset + AVATAR, strings.intern(member.optString("avatar", null)));
+        buffer.putInt(offset + ROLES, internRoles(member.optJSONArray("roles"), strings));
+        String discriminator = user.optString("discriminator", null);
+        buffer.putShort(offset + DISCRIMINATOR, discriminator == null ? -1 : Short.parseShort(discriminator));
+        int booleans = (user.optBoolean("bot") ? BOT : 0) | (user.optBoolean("system") ? SYSTEM : 0)
+                | (member.optBoolean("deaf") ? DEAF : 0) | (member.optBoolean("mute") ? MUTE : 0)
+                | (member.optBoolean("pending") ? PENDING : 0);
+        buffer.put(offset + BOOLEANS, (byte) booleans);
+    }
+
+    @Override
+    public JSONObject read(long id, ByteBuffer buffer, int offset, InternTable strings) {
+        int booleans = buffer.get(offset + BOOLEANS);
+        short discriminator = buffer.getShort(offset + DISCRIMINATOR);
+        JSONObject user = new JSONObject()
+                .put("id", String.valueOf(id))
+                .put("username", nullable(strings.getString(buffer.getInt(offset + USERNAME))))
+                .put("global_name", nullable(strings.getString(buffer.getInt(offset + GLOBAL_NAME))))
+                .put("avatar", nullable(strings.getString(buffer.getInt(offset + USER_AVATAR))))
+                .put("public_flags", buffer.getInt(offset + PUBLIC_FLAGS));
+        if (discriminator >= 0) user.put("discriminator", discriminator == 0 ? "0" : String.format("%04d", discriminator));
+        if ((booleans & BOT) != 0) user.put("bot", true);
+        if ((booleans & SYSTEM) != 0) user.put("system", true);
+        return new JSONObject()
+                .put("user", user)
+                .put("nick", nullable(strings.getString(buffer.getInt(offset + NICK))))
+                .put("avatar", nullable(strings.getString(buffer.getInt(offset + AVATAR))))
+                .put("roles", readRoles(buffer.getInt(offset + ROLES), strings))
+                .put("joined_at", formatTimestamp(buffer.getLong(offset + JOINED_AT)))
+                .put("premium_since", formatTimestamp(buffer.getLong(offset + PREMIUM_SINCE)))
+                .put("communication_disabled_until", formatTimestamp(buffer.getLong(offset + COMMUNICATION_DISABLED_UNTIL)))
+                .put("flags", buffer.getInt(offset + FLAGS))
+                .put("deaf", (booleans & DEAF) != 0)
+                .put("mute", (booleans & MUTE) != 0)
+                .put("pending", (booleans & PENDING) != 0);
+    }
+
+    /**
+     * Interns the role ids of a member as an array of longs, sorted so that members with the same roles share the same entry.
+     */
+    private static int internRoles(JSONArray roles, InternTable strings) {
+        if (roles == null || roles.isEmpty()) return 0;
+        long[] ids = new long[roles.length()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = roles.getLong(i);
+        }
+        Arrays.sort(ids);
+        ByteBuffer bytes = ByteBuffer.allocate(ids.length * 8);
+        bytes.asLongBuffer().put(ids);
+        return strings.intern(bytes.array());
+    }
+
+    private static JSONArray readRoles(int reference, InternTable strings) {
+        JSONArray roles = new JSONArray();
+        if (reference == 0) return roles;
+        ByteBuffer bytes = ByteBuffer.wrap(strings.get(reference));
+        while (bytes.hasRemaining()) {
+            roles.put(String.valueOf(bytes.getLong()));
+        }
+        return roles;
+    }
+
+    private static long parseTimestamp(String timestamp) {
+        if (timestamp == null) return NO_TIMESTAMP;
+        Instant instant = OffsetDateTime.parse(timestamp).toInstant();
+        return instant.getEpochSecond() * 1_000_000 + instant.getNano() / 1000;
+    }
+
+    private static Object formatTimestamp(long micros) {
+        if (micros == NO_TIMESTAMP) return JSONObject.NULL;
+        return TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000), Math.floorMod(micros, 1_000_000) * 1000));
+    }
+
+    private static Object nullable(String value) {
+        return value == null ? JSONObject.NULL : value;
+    }
+}
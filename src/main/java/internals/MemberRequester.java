@@ -0,0 +1,285 @@
+package internals;
+
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests the members of guilds through the gateway (REQUEST_GUILD_MEMBERS), and streams the GUILD_MEMBERS_CHUNK events answering them.
+ * Each guild is requested separately on the shard receiving its events, with a nonce used to route the chunks back to their request.
+ * The member cache is fed by the chunks as they arrive, like with any other chunk, so a guild is never buffered as a whole.
+ * <p>
+ * Requests wait in a queue per shard, and only a few of them are answered at once on each shard, as set by the
+ * `member_request_concurrency` field of the configuration. This keeps the number of chunks in flight bounded however many guilds
+ * are requested, and leaves room in the rate limit of the connection for other messages.
+ */
+public class MemberRequester {
+    /**
+     * The number of chunks which may wait for a slow subscriber, beyond which its stream fails.
+     */
+    private static final int CHUNK_BUFFER = 64;
+
+    /**
+     * The time after which a request is given up if it didn't receive any chunk, in milliseconds.
+     */
+    private static final long CHUNK_TIMEOUT = 30000;
+
+    private final ShardManager shardManager;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final int concurrency;
+
+    /**
+     * The requests waiting to be sent on each shard, and the number of requests sent and not answered yet.
+     */
+    private final ShardRequests[] shards;
+
+    /**
+     * The requests which have been sent and are waiting for chunks, by nonce.
+     */
+    private final Map<String, GuildRequest> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong nonces = new AtomicLong();
+
+    /**
+     * Instantiates a new MemberRequester.
+     *
+     * @param shardManager The manager of the shards the requests are sent through.
+     * @param scheduler    The scheduler on which requests time out.
+     * @param executor     The executor on which subscribers receive the chunks.
+     * @param concurrency  The maximum number of requests being answered at once on each shard.
+     */
+    public MemberRequester(ShardManager shardManager, ScheduledExecutorService scheduler, Executor executor, int concurrency) {
+        this.shardManager = shardManager;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+        this.shards = new ShardRequests[shardManager.getShardCount()];
+        for (int shardId = 0; shardId < shards.length; shardId++) {
+            shards[shardId] = new ShardRequests(shardId);
+        }
+    }
+
+    /**
+     * Registers the listener routing chunks to their request.
+     *
+     * @param dispatcher The dispatcher of the gateway events.
+     */
+    public void register(EventDispatcher dispatcher) {
+        dispatcher.register(GatewayEventType.GUILD_MEMBERS_CHUNK, this::onGuildMembersChunk);
+    }
+
+    /**
+     * Requests all the members of some guilds, which requires the GUILD_MEMBERS intent. Nothing is sent until the returned
+     * publisher is subscribed to, and it only accepts one subscriber. The subscriber receives the GUILD_MEMBERS_CHUNK events of all
+     * the guilds, in no particular order, and is completed once every chunk of every guild has been received.
+     * It fails with a {@link TimeoutException} if a guild stops receiving chunks, as happens when its shard reconnects.
+     * <p>
+     * Chunks are delivered from the event lanes, which can't wait for a subscriber without stalling the other guilds of the lane
+     * and, once it is full, the shard itself. A subscriber which lets more than 64 chunks pile up fails with an
+     * {@link IllegalStateException} instead, so slow work should be handed over to another thread.
+     *
+     * @param guildIds  The ids of the guilds.
+     * @param presences Whether the presences of the members are requested too, which requires the GUILD_PRESENCES intent.
+     * @return The publisher of the chunks.
+     * @throws IllegalStateException If the bot didn't identify with the intents the request needs.
+     */
+    public Flow.Publisher<GatewayEvent> requestMembers(Collection<Long> guildIds, boolean presences) {
+        int intents = shardManager.getIntents();
+        if ((intents & GatewayIntent.GUILD_MEMBERS.getBit()) == 0) {
+            throw new IllegalStateException("Requesting all the members of a guild requires the GUILD_MEMBERS intent");
+        }
+        if (presences && (intents & GatewayIntent.GUILD_PRESENCES.getBit()) == 0) {
+            throw new IllegalStateException("Requesting the presences of members requires the GUILD_PRESENCES intent");
+        }
+        return new MemberStream(guildIds.stream().mapToLong(Long::longValue).distinct().toArray(), presences);
+    }
+
+    private void onGuildMembersChunk(GatewayEvent event) {
+        JSONObject chunk = event.getData();
+        String nonce = chunk.optString("nonce", null);
+        GuildRequest request = nonce == null ? null : pending.get(nonce);
+        if (request == null) return;
+        request.lastChunkAt = System.currentTimeMillis();
+        MemberStream stream = request.stream;
+        if (!stream.failed.get()) {
+            try {
+                // The chunk is dropped rather than waited for when the buffer of the subscriber is full, which fails the stream.
+                stream.publisher.offer(event, (subscriber, dropped) -> {
+                    System.err.printf("ERROR: The subscriber of the members of guild %d didn't keep up with the chunks.%n", request.guildId);
+                    stream.fail(new IllegalStateException("The subscriber didn't keep up with the members of guild " + request.guildId));
+                    return false;
+                });
+            } catch (IllegalStateException ignored) {
+                // The stream failed while this chunk was being delivered.
+            }
+        }
+        if (request.receivedChunks.incrementAndGet() == chunk.getInt("chunk_count")) complete(request);
+    }
+
+    /**
+     * Sends the next waiting requests of a shard, as long as it has free slots.
+     */
+    private void sendNext(ShardRequests shard) {
+        while (true) {
+            GuildRequest request;
+            synchronized (shard) {
+                if (shard.outstanding >= concurrency) return;
+                do {
+                    request = shard.waiting.poll();
+                } while (request != null && request.stream.isAbandoned());
+                if (request == null) return;
+                shard.outstanding++;
+            }
+            request.lastChunkAt = System.currentTimeMillis();
+            pending.put(request.nonce, request);
+            scheduleTimeout(request, CHUNK_TIMEOUT);
+            GuildRequest sent = request;
+            shardManager.getShard(shard.shardId).requestGuildMembers(request.guildId, request.nonce, request.stream.presences)
+                    .whenComplete((ignored, error) -> {
+                        if (error == null) return;
+                        // A request which couldn't be written won't be answered, so its slot is freed right away rather than after the timeout.
+                        // This runs on the scheduler, as the write may have failed within this loop.
+                        scheduler.execute(() -> {
+                            System.err.printf("ERROR: Could not request the members of guild %d: %s%n", sent.guildId, error.getMessage());
+                            sent.stream.fail(error);
+                            complete(sent);
+                        });
+                    });
+        }
+    }
+
+    /**
+     * Checks that a request received a chunk recently, once its timeout is due, and fails its stream otherwise.
+     */
+    private void scheduleTimeout(GuildRequest request, long delay) {
+        scheduler.schedule(() -> {
+            if (pending.get(request.nonce) != request) return;
+            long idle = System.currentTimeMillis() - request.lastChunkAt;
+            if (idle < CHUNK_TIMEOUT) {
+                scheduleTimeout(request, CHUNK_TIMEOUT - idle);
+                return;
+            }
+            System.err.printf("ERROR: The members of guild %d stopped arriving after %d chunk(s).%n", request.guildId, request.receivedChunks.get());
+            request.stream.fail(new TimeoutException("No members of guild " + request.guildId + " were received for " + CHUNK_TIMEOUT + " ms"));
+            complete(request);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Frees the slot of a request which received all its chunks or timed out, and completes its stream if it was the last one.
+     */
+    private void complete(GuildRequest request) {
+        if (!pending.remove(request.nonce, request)) return;
+        ShardRequests shard = shards[request.shardId];
+        synchronized (shard) {
+            shard.outstanding--;
+        }
+        if (request.stream.remainingGuilds.decrementAndGet() == 0) request.stream.publisher.close();
+        sendNext(shard);
+    }
+
+    /**
+     * The requests of one shard.
+     */
+    private static class ShardRequests {
+        private final int shardId;
+        private final Queue<GuildRequest> waiting = new ArrayDeque<>();
+        private int outstanding;
+
+        private ShardRequests(int shardId) {
+            this.shardId = shardId;
+        }
+    }
+
+    /**
+     * The request of the members of one guild.
+     */
+    private static class GuildRequest {
+        private final MemberStream stream;
+        private final long guildId;
+        private final int shardId;
+        private final String nonce;
+        private final AtomicInteger receivedChunks = new AtomicInteger();
+        private volatile long lastChunkAt;
+
+        private GuildRequest(MemberStream stream, long guildId, int shardId, String nonce) {
+            this.stream = stream;
+            this.guildId = guildId;
+            this.shardId = shardId;
+            this.nonce = nonce;
+        }
+    }
+
+    /**
+     * The chunks of the guilds of one call to {@link MemberRequester#requestMembers(Collection, boolean)}.
+     * The requests are only queued once a subscriber is there to receive their chunks.
+     */
+    private class MemberStream implements Flow.Publisher<GatewayEvent> {
+        private final long[] guildIds;
+        private final boolean presences;
+        private final SubmissionPublisher<GatewayEvent> publisher = new SubmissionPublisher<>(executor, CHUNK_BUFFER);
+        private final AtomicInteger remainingGuilds;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        private MemberStream(long[] guildIds, boolean presences) {
+            this.guildIds = guildIds;
+            this.presences = presences;
+            this.remainingGuilds = new AtomicInteger(guildIds.length);
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super GatewayEvent> subscriber) {
+            if (!subscribed.compareAndSet(false, true)) {
+                SubmissionPublisher<GatewayEvent> rejected = new SubmissionPublisher<>(Runnable::run, 1);
+                rejected.subscribe(subscriber);
+                rejected.closeExceptionally(new IllegalStateException("The members of these guilds are already streamed to another subscriber"));
+                return;
+            }
+            publisher.subscribe(subscriber);
+            if (guildIds.length == 0) {
+                publisher.close();
+                return;
+            }
+            for (long guildId : guildIds) {
+                int shardId = shardManager.getShardIdForGuild(guildId);
+                ShardRequests shard = shards[shardId];
+                synchronized (shard) {
+                    shard.waiting.add(new GuildRequest(this, guildId, shardId, Long.toString(nonces.incrementAndGet(), 36)));
+                }
+            }
+            for (ShardRequests shard : shards) {
+                sendNext(shard);
+            }
+        }
+
+        /**
+         * Checks if the remaining requests of the stream don't need to be sent, because it failed or its subscriber cancelled.
+         */
+        private boolean isAbandoned() {
+            if (failed.get() || publisher.getNumberOfSubscribers() == 0) {
+                if (remainingGuilds.decrementAndGet() == 0) publisher.close();
+                return true;
+            }
+            return false;
+        }
+
+        private void fail(Throwable error) {
+            if (failed.compareAndSet(false, true)) publisher.closeExceptionally(error);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package internals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of CuteCord, for the gateway connections, the REST requests and the listeners of modules, which modules can add their
+ * own metrics to. A metric is identified by its name and labels, and is created the first time it is asked for, so that each component
+ * keeps the metrics it updates in fields, and updating a metric never goes through the registry.
+ * Metrics are exposed through JMX, and in the Prometheus text format on the port set in the `metrics_port` field of the configuration.
+ */
+public final class MetricsRegistry {
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    /**
+     * The quantiles of histograms which are exposed.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private enum Type {COUNTER, GAUGE, SUMMARY}
+
+    /**
+     * The metrics sharing a name, with their labels as key.
+     */
+    private record Family(String name, String help, Type type, Map<String, Object> metrics) {}
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * Gets the registry of the metrics of CuteCord.
+     *
+     * @return The registry.
+     */
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets a counter, creating it if it doesn't exist yet.
+     *
+     * @param name   The name of the counter, which should end with `_total`.
+     * @param help   The description of the counter.
+     * @param labels The labels of the counter, as names followed by their value.
+     * @return The counter.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) getOrCreate(name, help, Type.COUNTER, labels, Counter::new);
+    }
+
+    /**
+     * Gets a histogram of durations, creating it if it doesn't exist yet. Durations are recorded in nanoseconds, and exposed in seconds.
+     *
+     * @param name   The name of the histogram, which should end with `_seconds`.
+     * @param help   The description of the histogram.
+     * @param labels The labels of the histogram, as names followed by their value.
+     * @return The histogram.
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) getOrCreate(name, help, Type.SUMMARY, labels, Histogram::new);
+    }
+
+    /**
+     * Registers a gauge, whose value is read when the metrics are exposed, replacing the gauge with the same name and labels if there is one.
+     *
+     * @param name   The name of the gauge.
+     * @param help   The description of the gauge.
+     * @param value  The function reading the value of the gauge.
+     * @param labels The labels of the gauge, as names followed by their value.
+     */
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        getFamily(name, help, Type.GAUGE).metrics().put(formatLabels(labels), value);
+    }
+
+    /**
+     * Removes a metric, such as the gauge of something which doesn't exist anymore.
+     *
+     * @param name   The name of the metric.
+     * @param labels The labels of the metric, as names followed by their value.
+     */
+    public void remove(String name, String... labels) {
+        Family family = families.get(name);
+        if (family != null) family.metrics().remove(formatLabels(labels));
+    }
+
+    private Object getOrCreate(String name, String help, Type type, String[] labels, Supplier<Object> factory) {
+        return getFamily(name, help, type).metrics().computeIfAbsent(formatLabels(labels), key -> factory.get());
+    }
+
+    private Family getFamily(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type, new ConcurrentHashMap<>()));
+        if (family.type() != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type().name().toLowerCase());
+        }
+        return family;
+    }
+
+    /**
+     * Formats labels as they appear in the Prometheus text format, such as `shard="0",type="READY"`.
+     */
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be names followed by their value");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) builder.append(',');
+            builder.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return builder.toString();
+    }
+
+    private static String withLabels(String name, String labels, String extraLabel) {
+        if (labels.isEmpty() && extraLabel == null) return name;
+        if (labels.isEmpty()) return name + "{" + extraLabel + "}";
+        if (extraLabel == null) return name + "{" + labels + "}";
+        return name + "{" + labels + "," + extraLabel + "}";
+    }
+
+    private List<Family> sortedFamilies() {
+        List<Family> sorted = new ArrayList<>(families.values());
+        sorted.sort((first, second) -> first.name().compareTo(second.name()));
+        return sorted;
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format. Histograms are written as summaries, with their 50th, 90th and 99th percentiles.
+     *
+     * @return The metrics in the Prometheus text format.
+     */
+    public String toPrometheusText() {
+        StringBuilder builder = new StringBuilder();
+        for (Family family : sortedFamilies()) {
+            builder.append("# HELP ").append(family.name()).append(' ').append(family.help().replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            builder.append("# TYPE ").append(family.name()).append(' ').append(family.type().name().toLowerCase()).append('\n');
+            for (Map.Entry<String, Object> entry : new TreeMap<>(family.metrics()).entrySet()) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                if (metric instanceof Counter counter) {
+                    builder.append(withLabels(family.name(), labels, null)).append(' ').append(counter.get()).append('\n');
+                } else if (metric instanceof LongSupplier gauge) {
+                    builder.append(withLabels(family.name(), labels, null)).append(' ').append(gauge.getAsLong()).append('\n');
+                } else if (metric instanceof Histogram histogram) {
+                    for (double quantile : QUANTILES) {
+                        builder.append(withLabels(family.name(), labels, "quantile=\"" + quantile + "\"")).append(' ')
+                                .append(histogram.getQuantile(quantile) / 1e9).append('\n');
+                    }
+                    builder.append(withLabels(family.name() + "_sum", labels, null)).append(' ').append(histogram.getSum() / 1e9).append('\n');
+                    builder.append(withLabels(family.name() + "_count", labels, null)).append(' ').append(histogram.getCount()).append('\n');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads the current value of all the metrics, as exposed through JMX. Histograms are read as their count, and their 50th,
+     * 90th and 99th percentiles in seconds.
+     *
+     * @return The values of the metrics, with their names and labels as key, in the same order as in the Prometheus text format.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        for (Family family : sortedFamilies()) {
+            for (Map.Entry<String, Object> entry : new TreeMap<>(family.metrics()).entrySet()) {
+                String name = withLabels(family.name(), entry.getKey(), null);
+                Object metric = entry.getValue();
+                if (metric instanceof Counter counter) {
+                    snapshot.put(name, counter.get());
+                } else if (metric instanceof LongSupplier gauge) {
+                    snapshot.put(name, gauge.getAsLong());
+                } else if (metric instanceof Histogram histogram) {
+                    snapshot.put(name + ".count", histogram.getCount());
+                    for (double quantile : QUANTILES) {
+                        snapshot.put(name + ".p" + Math.round(quantile * 100), histogram.getQuantile(quantile) / 1e9);
+                    }
+                }
+            }
+        }
+        return snapshot;
+    }
+}
@@ -5,17 +5,23 @@ import annotations.OnModuleInitialize;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.jar.Attributes;
 import java.util.jar.JarFile;
-import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
+import java.util.jar.Manifest;
 
 /**
  * The Module class contains all internal logic for individual modules in CuteCord.
+ * Each module has its own class loader over its jar, whose parent is the class loader of CuteCord, and its classes are only
+ * loaded when they are first needed.
  */
 public class Module {
     /**
@@ -24,44 +30,101 @@ public class Module {
     private String name;
 
     /**
-     * The Jar file object, from which the manifest can be read, and classes loaded.
+     * The jar file of the module.
      */
-    JarFile jarFile;
+    private final File moduleFile;
 
     /**
-     * The classes that belong to the module. Used for {@link Module#start()} and {@link Module#stop()}, may be used for other hooks in the future.
+     * The main attributes of the manifest of the module, read once when the module is instantiated.
      */
-    Map<String, Class<?>> classes = new HashMap<>();
+    private final Attributes attributes;
 
     /**
-     * Instantiates a new Module. The Module doesn't get loaded right away, instead it is loaded whenever {@link Module#load()}
+     * The class loader of the module, created by {@link Module#load()}.
+     */
+    private ModuleClassLoader classLoader;
+
+    /**
+     * The classes of the module which have been loaded so far. Used for {@link Module#start()} and {@link Module#stop()}, may be used for other hooks in the future.
+     */
+    private final Map<String, Class<?>> classes = new ConcurrentHashMap<>();
+
+    /**
+     * The hooks and listeners of the module, indexed by {@link Module#load()}.
+     */
+    private ModuleHooks hooks;
+
+    /**
+     * The listeners registered on the event dispatcher by {@link Module#start()}, which may wrap the listeners of the hooks.
+     */
+    private final List<ModuleHooks.Listener> registeredListeners = new ArrayList<>();
+
+    /**
+     * Instantiates a new Module, reading its manifest. The Module doesn't get loaded right away, instead it is loaded whenever {@link Module#load()}
      * is called, so that conflicts can be resolved more easily.
      *
      * @param moduleFile the module file
+     * @throws IOException if the jar can't be opened or doesn't have a manifest.
+     * @throws IllegalStateException if the manifest doesn't have a `Module-Name` attribute.
      */
-    public Module(File moduleFile) {
-        try {
-            this.jarFile = new JarFile(moduleFile);
-        } catch (IOException ignored) {
-            System.err.printf("ERROR: Could not retrieve JarFile instance for %s%n", moduleFile.getName());
-            System.exit(1);
+    public Module(File moduleFile) throws IOException {
+        this.moduleFile = moduleFile;
+        Manifest manifest;
+        try (JarFile jarFile = new JarFile(moduleFile)) {
+            manifest = jarFile.getManifest();
         }
+        if (manifest == null) throw new IOException("No manifest in " + moduleFile.getName());
+        this.attributes = manifest.getMainAttributes();
         this.name = this.getName();
     }
 
     /**
-     * Loads the classes for the module.
+     * Creates the class loader of the module, then builds the index of its hooks and listeners.
+     * Only the classes named in the `Module-Start`, `Module-Stop` and `Module-Listeners` attributes of the manifest are loaded,
+     * the other classes are loaded when they are first needed.
      */
     protected void load() {
-        Set<String> classes = this.getClassesInJar();
-        classes.forEach(clazz -> {
-            try {
-                this.classes.put(clazz, CuteCord.moduleLoader.loadClass(clazz));
-            } catch (ClassNotFoundException ignored) {
-                System.err.printf("ERROR: Could not load class %s from module %s%n", clazz, this.getName());
-                System.exit(1);
+        try {
+            classLoader = new ModuleClassLoader(this.getName(), moduleFile.toURI().toURL(), CuteCord.class.getClassLoader());
+        } catch (MalformedURLException e) {
+            System.err.printf("ERROR: Could not create class loader for module %s%n", this.getName());
+            System.exit(1);
+        }
+        String startClassName = getAttribute("Module-Start");
+        String stopClassName = getAttribute("Module-Stop");
+        Class<?> startClass = startClassName == null ? null : getModuleClass(startClassName);
+        Class<?> stopClass = stopClassName == null ? null : getModuleClass(stopClassName);
+        Set<Class<?>> listenerClasses = new LinkedHashSet<>();
+        if (startClass != null) listenerClasses.add(startClass);
+        if (stopClass != null) listenerClasses.add(stopClass);
+        String listenerClassNames = getAttribute("Module-Listeners");
+        if (listenerClassNames != null) {
+            for (String className : listenerClassNames.split(",")) {
+                if (className.isBlank()) continue;
+                Class<?> clazz = getModuleClass(className.trim());
+                if (clazz != null) listenerClasses.add(clazz);
             }
-        });
+        }
+        hooks = new ModuleHooks(this.getName(), classLoader, startClass, stopClass, listenerClasses);
+    }
+
+    /**
+     * Gets a class of the module, loading it if it wasn't already.
+     *
+     * @param className The binary name of the class.
+     * @return The class, or null if the module doesn't contain it.
+     */
+    public Class<?> getModuleClass(String className) {
+        Class<?> clazz = classes.get(className);
+        if (clazz != null) return clazz;
+        try {
+            clazz = Class.forName(className, true, classLoader);
+        } catch (ClassNotFoundException e) {
+            System.err.printf("ERROR: Could not load class %s from module %s%n", className, this.getName());
+            return null;
+        }
+        classes.put(className, clazz);
+        return clazz;
     }
 
     /**
@@ -70,14 +133,7 @@ public class Module {
      * @return The attribute as a String
      */
     public String getAttribute(String attribute) {
-        String value = null;
-        try {
-            value = this.jarFile.getManifest().getMainAttributes().getValue(attribute);
-        } catch (IOException e) {
-            System.err.printf("ERROR: Could not read manifest for module %s%n", this.getName());
-            System.exit(1);
-        }
-        return value;
+        return attributes.getValue(attribute);
     }
 
     /**
@@ -91,48 +147,180 @@ public class Module {
         return name;
     }
 
-    private Set<String> getClassesInJar() {
-        Set<String> classes;
-        classes = jarFile.stream()
-                .map(ZipEntry::getName)
-                .filter(name -> name.endsWith(".class"))
-                .map(name -> name.replace("/", "."))
-                .map(name -> name.replace(".class", ""))
-                .collect(Collectors.toSet());
-        return classes;
+    /**
+     * Gets the version of the module, from the `Module-Version` attribute of its manifest.
+     *
+     * @return The version of the module, or null if it doesn't declare one.
+     */
+    public String getVersion() {
+        return getAttribute("Module-Version");
     }
 
     /**
-     * Invoke the method specified to be called when the bot starts in the manifest.
+     * Gets the jar file the module was read from.
+     *
+     * @return The jar file of the module.
+     */
+    public File getFile() {
+        return moduleFile;
+    }
+
+    /**
+     * Checks if this module has a higher version than another module. Versions are compared part by part, parts being separated
+     * by dots or dashes, numerically when both parts are numbers and lexicographically otherwise, so that `1.10` is newer than `1.9`.
+     * A module without a version is older than any module with one.
+     *
+     * @param other The module to compare to.
+     * @return true if this module is newer than the other module, false otherwise.
+     */
+    public boolean isNewerThan(Module other) {
+        String version = getVersion();
+        String otherVersion = other.getVersion();
+        if (version == null) return false;
+        if (otherVersion == null) return true;
+        String[] parts = version.split("[.-]");
+        String[] otherParts = otherVersion.split("[.-]");
+        for (int i = 0; i < Math.min(parts.length, otherParts.length); i++) {
+            int comparison;
+            if (parts[i].matches("\\d+") && otherParts[i].matches("\\d+")) {
+                comparison = new BigInteger(parts[i]).compareTo(new BigInteger(otherParts[i]));
+            } else {
+                comparison = parts[i].compareTo(otherParts[i]);
+            }
+            if (comparison != 0) return comparison > 0;
+        }
+        return parts.length > otherParts.length;
+    }
+
+    /**
+     * Gets the intents the module needs, from the `Module-Intents` attribute of its manifest, which is a comma separated list
+     * of {@link GatewayIntent} names.
+     *
+     * @return The bitmask of the intents needed by the module, 0 if it doesn't declare any.
+     */
+    public int getIntents() {
+        String intents = getAttribute("Module-Intents");
+        if (intents == null) return 0;
+        try {
+            return GatewayIntent.parse(intents);
+        } catch (IllegalArgumentException e) {
+            System.err.printf("ERROR: Module %s declares an unknown intent: %s%n", this.getName(), intents);
+            System.exit(1);
+            return 0;
+        }
+    }
+
+    /**
+     * Invoke the methods annotated with {@link OnModuleInitialize} in the class specified in the manifest, then registers
+     * the listeners of the module on the event dispatcher.
      */
     public void start() {
-        String startClass = getAttribute("Module-Start");
-        if (startClass != null && classes.containsKey(startClass)) {
-            for (Method method : classes.get(startClass).getDeclaredMethods()) {
-                if (!method.isAnnotationPresent(OnModuleInitialize.class)) continue;
-                try {
-                    method.invoke(null);
-                } catch (IllegalAccessException | InvocationTargetException e) {
-                    System.err.printf("ERROR: Could not invoke start method %s from module %s%n", method.getName(), this.getName());
-                }
+        for (Runnable initializer : hooks.getInitializers()) {
+            try {
+                initializer.run();
+            } catch (RuntimeException e) {
+                System.err.printf("ERROR: Could not invoke start method from module %s%n", this.getName());
+                e.printStackTrace();
             }
         }
+        EventDispatcher dispatcher = CuteCord.getEventDispatcher();
+        Semaphore permits = CuteCord.isVirtualThreadsEnabled() ? new Semaphore(getConcurrency()) : null;
+        Histogram listenerTime = MetricsRegistry.getInstance().histogram("cutecord_module_listener_seconds",
+                "Time spent by the listeners of a module handling an event.", "module", this.getName());
+        for (ModuleHooks.Listener listener : hooks.getListeners()) {
+            EventListener eventListener = time(listener.listener(), listenerTime);
+            if (permits != null) eventListener = limit(eventListener, permits);
+            dispatcher.register(listener.type(), eventListener);
+            registeredListeners.add(new ModuleHooks.Listener(listener.type(), eventListener));
+        }
+    }
+
+    /**
+     * Gets the maximum number of events the listeners of the module may handle at once when virtual threads are enabled,
+     * from the `Module-Concurrency` attribute of its manifest, or else the `module_concurrency` field of the configuration.
+     *
+     * @return The maximum number of events handled at once by the module.
+     */
+    public int getConcurrency() {
+        int defaultConcurrency = CuteCord.getConfigInt("module_concurrency", 64);
+        String concurrency = getAttribute("Module-Concurrency");
+        if (concurrency == null) return defaultConcurrency;
+        try {
+            return Math.max(1, Integer.parseInt(concurrency.trim()));
+        } catch (NumberFormatException e) {
+            System.err.printf("ERROR: Module %s declares an invalid concurrency: %s%n", this.getName(), concurrency);
+            return defaultConcurrency;
+        }
+    }
+
+    /**
+     * Wraps a listener so that the time it spends handling each event is recorded.
+     */
+    private static EventListener time(EventListener listener, Histogram histogram) {
+        return event -> {
+            long start = System.nanoTime();
+            try {
+                listener.onEvent(event);
+            } finally {
+                histogram.recordSince(start);
+            }
+        };
     }
 
     /**
-     * Invoke the method specified to be called when the bot stops in the manifest.
+     * Wraps a listener so that it waits for a permit before handling an event, which bounds the events handled at once by
+     * all the listeners sharing the permits. Waiting is cheap on a virtual thread, so events are never dropped because a module is slow.
+     */
+    private static EventListener limit(EventListener listener, Semaphore permits) {
+        return event -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                listener.onEvent(event);
+            } finally {
+                permits.release();
+            }
+        };
+    }
+
+    /**
+     * Unregisters the listeners of the module from the event dispatcher and cancels its scheduled tasks, then invoke the methods
+     * annotated with {@link OnModuleHalt} in the class specified in the manifest.
      */
     public void stop() {
-        String stopClass = getAttribute("Module-Stop");
-        if (stopClass != null && classes.containsKey(stopClass)) {
-            for (Method method : classes.get(stopClass).getDeclaredMethods()) {
-                if (!method.isAnnotationPresent(OnModuleHalt.class)) continue;
-                try {
-                    method.invoke(null);
-                } catch (IllegalAccessException | InvocationTargetException e) {
-                    System.err.printf("ERROR: Could not invoke stop method %s from module %s%n", method.getName(), this.getName());
-                }
+        EventDispatcher dispatcher = CuteCord.getEventDispatcher();
+        for (ModuleHooks.Listener listener : registeredListeners) {
+            dispatcher.unregister(listener.type(), listener.listener());
+        }
+        registeredListeners.clear();
+        CuteCord.getTaskScheduler().cancelAll(classLoader);
+        for (Runnable halter : hooks.getHalters()) {
+            try {
+                halter.run();
+            } catch (RuntimeException e) {
+                System.err.printf("ERROR: Could not invoke stop method from module %s%n", this.getName());
+                e.printStackTrace();
             }
         }
     }
+
+    /**
+     * Drops the classes and hooks of the module and closes its class loader, so that the classes of the module can be
+     * garbage collected once nothing else references them. The module must have been stopped with {@link Module#stop()} before.
+     */
+    protected void unload() {
+        hooks = null;
+        classes.clear();
+        if (classLoader == null) return;
+        try {
+            classLoader.close();
+        } catch (IOException e) {
+            System.err.printf("ERROR: Could not close class loader of module %s%n", this.getName());
+        }
+        classLoader = null;
+    }
 }
@@ -0,0 +1,55 @@
+package internals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.function.Supplier;
+
+/**
+ * The class loader of a module, which loads classes from the jar of the module, and delegates to the class loader of CuteCord first.
+ * Each class loader has its own unnamed module, so a lookup made from CuteCord can't have full privilege access to the classes
+ * of a module. This class loader can hand out such lookups, by defining its own copy of {@link ModuleLookup}.
+ */
+class ModuleClassLoader extends URLClassLoader {
+    private Supplier<MethodHandles.Lookup> lookupProvider;
+
+    /**
+     * Instantiates a new ModuleClassLoader.
+     *
+     * @param moduleName The name of the module.
+     * @param jar        The url of the jar of the module.
+     * @param parent     The class loader of CuteCord.
+     */
+    ModuleClassLoader(String moduleName, URL jar, ClassLoader parent) {
+        super(moduleName, new URL[]{jar}, parent);
+    }
+
+    /**
+     * Gets a lookup with full privilege access on a class of the module.
+     *
+     * @param target A class loaded by this class loader.
+     * @return The lookup.
+     * @throws ReflectiveOperationException If the lookup can't be created.
+     */
+    MethodHandles.Lookup lookupIn(Class<?> target) throws ReflectiveOperationException {
+        return MethodHandles.privateLookupIn(target, getLookupProvider().get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized Supplier<MethodHandles.Lookup> getLookupProvider() throws ReflectiveOperationException {
+        if (lookupProvider == null) {
+            byte[] bytes;
+            try (InputStream stream = ModuleLookup.class.getResourceAsStream("ModuleLookup.class")) {
+                if (stream == null) throw new ClassNotFoundException(ModuleLookup.class.getName());
+                bytes = stream.readAllBytes();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(ModuleLookup.class.getName(), e);
+            }
+            Class<?> clazz = defineClass(ModuleLookup.class.getName(), bytes, 0, bytes.length);
+            lookupProvider = (Supplier<MethodHandles.Lookup>) clazz.getConstructor().newInstance();
+        }
+        return lookupProvider;
+    }
+}
@@ -0,0 +1,110 @@
+package internals;
+
+import annotations.OnEvent;
+import annotations.OnModuleHalt;
+import annotations.OnModuleInitialize;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The index of the annotated methods of a module, built once when the module is loaded.
+ * Each annotated method is turned into an implementation of a functional interface by {@link LambdaMetafactory},
+ * so that invoking a hook or a listener is a plain interface call, which the JIT can inline, instead of a reflective one.
+ */
+final class ModuleHooks {
+    private static final MethodType HOOK_TYPE = MethodType.methodType(void.class);
+    private static final MethodType LISTENER_TYPE = MethodType.methodType(void.class, GatewayEvent.class);
+
+    private final List<Runnable> initializers = new ArrayList<>();
+    private final List<Runnable> halters = new ArrayList<>();
+    private final List<Listener> listeners = new ArrayList<>();
+
+    /**
+     * A listener of the module, with the type of event it listens to.
+     */
+    record Listener(GatewayEventType type, EventListener listener) {}
+
+    /**
+     * Builds the index of a module.
+     *
+     * @param moduleName      The name of the module, for error messages.
+     * @param classLoader     The class loader of the module.
+     * @param startClass      The class containing the {@link OnModuleInitialize} methods, or null.
+     * @param stopClass       The class containing the {@link OnModuleHalt} methods, or null.
+     * @param listenerClasses The classes containing {@link OnEvent} methods.
+     */
+    ModuleHooks(String moduleName, ModuleClassLoader classLoader, Class<?> startClass, Class<?> stopClass, Collection<Class<?>> listenerClasses) {
+        if (startClass != null) {
+            for (Method method : startClass.getDeclaredMethods()) {
+                if (!method.isAnnotationPresent(OnModuleInitialize.class)) continue;
+                Runnable hook = createHook(moduleName, classLoader, method, Runnable.class, "run", HOOK_TYPE);
+                if (hook != null) initializers.add(hook);
+            }
+        }
+        if (stopClass != null) {
+            for (Method method : stopClass.getDeclaredMethods()) {
+                if (!method.isAnnotationPresent(OnModuleHalt.class)) continue;
+                Runnable hook = createHook(moduleName, classLoader, method, Runnable.class, "run", HOOK_TYPE);
+                if (hook != null) halters.add(hook);
+            }
+        }
+        for (Class<?> clazz : listenerClasses) {
+            for (Method method : clazz.getDeclaredMethods()) {
+                OnEvent onEvent = method.getAnnotation(OnEvent.class);
+                if (onEvent == null) continue;
+                EventListener listener = createHook(moduleName, classLoader, method, EventListener.class, "onEvent", LISTENER_TYPE);
+                if (listener == null) continue;
+                for (GatewayEventType type : onEvent.value()) {
+                    listeners.add(new Listener(type, listener));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an implementation of a functional interface calling a static method.
+     *
+     * @return The implementation, or null if the method doesn't have the right signature.
+     */
+    private static <T> T createHook(String moduleName, ModuleClassLoader classLoader, Method method, Class<T> functionalInterface, String interfaceMethod, MethodType interfaceType) {
+        if (!Modifier.isStatic(method.getModifiers()) || !method.getReturnType().equals(void.class)
+                || !MethodType.methodType(void.class, method.getParameterTypes()).equals(interfaceType)) {
+            System.err.printf("ERROR: Method %s of module %s must be static, return void, and take %s%n",
+                    method.getName(), moduleName, interfaceType.parameterCount() == 0 ? "no parameter" : interfaceType.parameterList());
+            return null;
+        }
+        try {
+            // The lookup must be made in the class of the method, as the generated class is defined next to it, in the class loader of the module.
+            MethodHandles.Lookup lookup = classLoader.lookupIn(method.getDeclaringClass());
+            MethodHandle handle = lookup.unreflect(method);
+            CallSite callSite = LambdaMetafactory.metafactory(lookup, interfaceMethod, MethodType.methodType(functionalInterface),
+                    interfaceType, handle, interfaceType);
+            return functionalInterface.cast(callSite.getTarget().invoke());
+        } catch (Throwable e) {
+            System.err.printf("ERROR: Could not create hook for method %s of module %s%n", method.getName(), moduleName);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    List<Runnable> getInitializers() {
+        return initializers;
+    }
+
+    List<Runnable> getHalters() {
+        return halters;
+    }
+
+    List<Listener> getListeners() {
+        return listeners;
+    }
+}
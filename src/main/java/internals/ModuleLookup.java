@@ -0,0 +1,16 @@
+package internals;
+
+import java.lang.invoke.MethodHandles;
+import java.util.function.Supplier;
+
+/**
+ * Provides a lookup with full privilege access from within the class loader of a module.
+ * This class is defined again in the class loader of each module by {@link ModuleClassLoader}, so that the lookup it returns is
+ * in the same unnamed module as the classes of the module, which {@link java.lang.invoke.LambdaMetafactory} requires.
+ */
+public final class ModuleLookup implements Supplier<MethodHandles.Lookup> {
+    @Override
+    public MethodHandles.Lookup get() {
+        return MethodHandles.lookup();
+    }
+}
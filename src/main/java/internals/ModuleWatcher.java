@@ -0,0 +1,151 @@
+package internals;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches the module folder and all its subfolders, and reloads a module through {@link CuteCord#reloadModule(java.io.File)}
+ * whenever its jar is created, modified or deleted.
+ * Copying a jar usually fires several events, so a jar is only reloaded once it hasn't changed for {@link ModuleWatcher#SETTLE_DELAY} ms.
+ * The reloads happen on the thread of the watcher, so that a slow module never delays the timers of the gateway connections.
+ */
+final class ModuleWatcher implements Runnable, AutoCloseable {
+    /**
+     * The time a jar must stay unchanged before it is reloaded, in milliseconds.
+     */
+    private static final long SETTLE_DELAY = 1000;
+
+    private final Path folder;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * The jars which changed and are waiting to settle, with the time at which they can be reloaded.
+     */
+    private final Map<Path, Long> pending = new HashMap<>();
+
+    /**
+     * Creates a watcher over the given module folder and all its subfolders. The watcher only starts with {@link ModuleWatcher#start()}.
+     *
+     * @param folder The module folder.
+     * @throws IOException if the folder can't be watched.
+     */
+    ModuleWatcher(Path folder) throws IOException {
+        this.folder = folder;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this, "CuteCord-ModuleWatcher");
+        this.thread.setDaemon(true);
+        registerAll(folder);
+    }
+
+    /**
+     * Starts watching the module folder.
+     */
+    void start() {
+        thread.start();
+        System.out.println("INFO: Watching module folder " + folder.toAbsolutePath() + " for changes.");
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long wait = pending.values().stream().mapToLong(Long::longValue).min().getAsLong() - System.currentTimeMillis();
+                    key = watchService.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                }
+                if (key != null) {
+                    handleEvents(key);
+                }
+                reloadSettledJars();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            // The watcher was closed.
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                System.err.printf("ERROR: Too many changes in module folder %s, some module changes may have been missed.%n", directory);
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                // A new subfolder may already contain jars when it is moved in, which won't fire any event of their own.
+                try {
+                    registerAll(path);
+                    try (Stream<Path> paths = Files.walk(path)) {
+                        paths.filter(ModuleWatcher::isJar).forEach(this::schedule);
+                    }
+                } catch (IOException e) {
+                    System.err.printf("ERROR: Could not watch module folder %s%n", path);
+                }
+            } else if (isJar(path)) {
+                schedule(path);
+            }
+        }
+        key.reset();
+    }
+
+    private void schedule(Path jar) {
+        pending.put(jar, System.currentTimeMillis() + SETTLE_DELAY);
+    }
+
+    private void reloadSettledJars() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Long>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Long> entry = iterator.next();
+            if (entry.getValue() > now) continue;
+            iterator.remove();
+            try {
+                CuteCord.reloadModule(entry.getKey().toFile());
+            } catch (RuntimeException e) {
+                System.err.printf("ERROR: Could not reload module %s%n", entry.getKey().getFileName());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void registerAll(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path directory : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+    }
+
+    private static boolean isJar(Path path) {
+        return path.getFileName().toString().endsWith(".jar");
+    }
+
+    /**
+     * Stops watching the module folder. Pending reloads are dropped.
+     */
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException ignored) {
+        }
+        thread.interrupt();
+    }
+}
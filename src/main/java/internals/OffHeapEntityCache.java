@@ -0,0 +1,426 @@
+package internals;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * An {@link EntityCache} keeping its entities outside the heap, for the millions of members and presences of large bots,
+ * which would otherwise cost gigabytes of heap and long garbage collections. Each entity is a fixed-size record, written and read
+ * by a {@link RecordCodec}, whose variable-length fields are stored in an {@link InternTable}. Entities are converted back to JSON
+ * each time they are read, so every lookup returns a new object, with the fields the codec keeps.
+ * <p>
+ * Records are stored in an {@link OffHeapRegion}, either allocated directly or mapped from a file. When mapped from files,
+ * the entities survive restarts: the records and intern table are written to their files when the bot stops, and read back
+ * when it starts. Files which weren't closed properly, because the bot crashed, are discarded.
+ * <p>
+ * A record starts with the key, owner and write time of the entity, and the links of the least recently used list,
+ * followed by the fields of the codec. Records are indexed by an open-addressing hash table outside the heap, rebuilt on start.
+ */
+class OffHeapEntityCache extends EntityCache<JSONObject> {
+    private static final int MAGIC = 0x43434543;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_LAYOUT = 8;
+    private static final int HEADER_RECORD_SIZE = 12;
+    private static final int HEADER_ALLOCATED = 16;
+    private static final int HEADER_HEAD = 20;
+    private static final int HEADER_TAIL = 24;
+    private static final int HEADER_FREE = 28;
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_CLEAN = 36;
+    private static final int HEADER_LENGTH = 64;
+
+    private static final int RECORD_SCOPE = 0;
+    private static final int RECORD_ID = 8;
+    private static final int RECORD_OWNER = 16;
+    private static final int RECORD_WRITE_TIME = 24;
+    private static final int RECORD_PREVIOUS = 32;
+    private static final int RECORD_NEXT = 36;
+    private static final int RECORD_USED = 40;
+    private static final int RECORD_FIELDS = 48;
+
+    private static final int INITIAL_RECORDS = 1024;
+    private static final int INITIAL_STRINGS = 1 << 20;
+
+    private final RecordCodec codec;
+    private final int recordSize;
+
+    /**
+     * The fields of the record being written.
+     */
+    private final ByteBuffer scratch;
+
+    /**
+     * The directory of the files of the cache, or null if it is allocated directly.
+     */
+    private final Path directory;
+    private final String name;
+
+    private final OffHeapRegion records;
+    private InternTable strings;
+
+    /**
+     * The hash table, which contains the index of a record plus one, or 0 for an empty slot.
+     */
+    private ByteBuffer table;
+    private int tableCapacity;
+
+    /**
+     * The links of the least recently used list, the head being the most recently used record, and the list of free records.
+     */
+    private int head = -1;
+    private int tail = -1;
+    private int free = -1;
+    private int allocated;
+    private int size;
+    private boolean closed;
+
+    private OffHeapEntityCache(CachePolicy policy, RecordCodec codec, Path directory, String name) throws IOException {
+        super(policy);
+        this.codec = codec;
+        this.recordSize = (RECORD_FIELDS + codec.getSize() + 7) & ~7;
+        this.scratch = ByteBuffer.allocate(codec.getSize());
+        this.directory = directory;
+        this.name = name;
+        if (directory == null) {
+            records = OffHeapRegion.allocate(HEADER_LENGTH + INITIAL_RECORDS * recordSize);
+            strings = new InternTable(OffHeapRegion.allocate(INITIAL_STRINGS), true);
+            rebuildTable(INITIAL_RECORDS * 2);
+            return;
+        }
+        Files.createDirectories(directory);
+        records = OffHeapRegion.map(directory.resolve(name + ".records"), HEADER_LENGTH + INITIAL_RECORDS * recordSize);
+        ByteBuffer header = records.buffer();
+        boolean reusable = !records.isCreated() && header.getInt(HEADER_MAGIC) == MAGIC && header.getInt(HEADER_VERSION) == VERSION
+                && header.getInt(HEADER_LAYOUT) == codec.getLayout() && header.getInt(HEADER_RECORD_SIZE) == recordSize
+                && header.getInt(HEADER_CLEAN) == 1;
+        if (!records.isCreated() && !reusable) {
+            System.out.printf("INFO: The %s cache in `%s` wasn't closed properly or has another layout, it starts empty.%n", name, directory);
+        }
+        strings = new InternTable(OffHeapRegion.map(directory.resolve(name + ".strings"), INITIAL_STRINGS), !reusable);
+        if (reusable) {
+            allocated = header.getInt(HEADER_ALLOCATED);
+            head = header.getInt(HEADER_HEAD);
+            tail = header.getInt(HEADER_TAIL);
+            free = header.getInt(HEADER_FREE);
+            size = header.getInt(HEADER_SIZE);
+        } else {
+            header.putInt(HEADER_MAGIC, MAGIC);
+            header.putInt(HEADER_VERSION, VERSION);
+            header.putInt(HEADER_LAYOUT, codec.getLayout());
+            header.putInt(HEADER_RECORD_SIZE, recordSize);
+        }
+        // Until it is closed, the files are only consistent between two writes.
+        header.putInt(HEADER_CLEAN, 0);
+        records.force();
+        int capacity = INITIAL_RECORDS * 2;
+        while (size * 2 >= capacity) capacity *= 2;
+        rebuildTable(capacity);
+        if (reusable && size > 0) System.out.printf("INFO: Loaded %d entities in the %s cache from `%s`.%n", size, name, directory);
+    }
+
+    /**
+     * Creates a cache allocated outside the heap, which is lost when the bot stops.
+     *
+     * @param policy The policy deciding which entities are kept.
+     * @param codec  The codec of the records of the entities.
+     * @return The cache.
+     */
+    static OffHeapEntityCache allocate(CachePolicy policy, RecordCodec codec) {
+        try {
+            return new OffHeapEntityCache(policy, codec, null, null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Opens a cache mapped from files, which keeps its entities across restarts.
+     *
+     * @param policy    The policy deciding which entities are kept.
+     * @param codec     The codec of the records of the entities.
+     * @param directory The directory of the files of the cache, created if needed.
+     * @param name      The name of the cache, which prefixes its files.
+     * @return The cache, with the entities it had when it was last closed.
+     * @throws IOException If the files can't be opened.
+     */
+    static OffHeapEntityCache open(CachePolicy policy, RecordCodec codec, Path directory, String name) throws IOException {
+        return new OffHeapEntityCache(policy, codec, directory, name);
+    }
+
+    @Override
+    public synchronized JSONObject get(long scope, long id) {
+        int record = closed ? -1 : find(scope, id);
+        ByteBuffer buffer = records.buffer();
+        if (record >= 0 && isExpired(buffer.getLong(offset(record) + RECORD_WRITE_TIME), System.currentTimeMillis())) {
+            removeRecord(record);
+            recordEviction();
+            record = -1;
+        }
+        if (record < 0) {
+            recordMiss();
+            return null;
+        }
+        recordHit();
+        unlink(record);
+        linkHead(record);
+        return codec.read(id, buffer, offset(record) + RECORD_FIELDS, strings);
+    }
+
+    @Override
+    protected synchronized void put(long scope, long id, long owner, JSONObject value) {
+        CachePolicy policy = getPolicy();
+        if (!policy.isEnabled() || closed) return;
+        // The fields are written to the scratch record first, so that an entity which can't be written leaves the cache unchanged.
+        Arrays.fill(scratch.array(), (byte) 0);
+        try {
+            codec.write(value, scratch, 0, strings);
+        } catch (RuntimeException e) {
+            for (int referenceOffset : codec.getReferenceOffsets()) {
+                strings.release(scratch.getInt(referenceOffset));
+            }
+            throw e;
+        }
+        int record = find(scope, id);
+        int[] previousReferences = null;
+        if (record >= 0) {
+            previousReferences = readReferences(record);
+            unlink(record);
+        } else {
+            record = allocate();
+            ByteBuffer buffer = records.buffer();
+            buffer.putLong(offset(record) + RECORD_SCOPE, scope);
+            buffer.putLong(offset(record) + RECORD_ID, id);
+            // The record is only marked used once inserted, as a table rebuilt by the insertion adds every used record.
+            insert(record);
+            buffer.putInt(offset(record) + RECORD_USED, 1);
+            size++;
+        }
+        ByteBuffer buffer = records.buffer();
+        buffer.putLong(offset(record) + RECORD_OWNER, owner);
+        buffer.putLong(offset(record) + RECORD_WRITE_TIME, policy.getTtl() > 0 ? System.currentTimeMillis() : 0);
+        buffer.put(offset(record) + RECORD_FIELDS, scratch, 0, codec.getSize());
+        // The previous values are only released now, so that the values which didn't change are never garbage in between.
+        if (previousReferences != null) {
+            for (int reference : previousReferences) {
+                strings.release(reference);
+            }
+        }
+        linkHead(record);
+        while (policy.getMaxSize() > 0 && size > policy.getMaxSize()) {
+            removeRecord(tail);
+            recordEviction();
+        }
+        if (strings.needsCompaction()) compactStrings();
+    }
+
+    @Override
+    protected synchronized void remove(long scope, long id) {
+        if (closed) return;
+        int record = find(scope, id);
+        if (record >= 0) removeRecord(record);
+    }
+
+    @Override
+    protected synchronized void removeOwnedBy(long owner) {
+        if (closed) return;
+        ByteBuffer buffer = records.buffer();
+        for (int record = 0; record < allocated; record++) {
+            if (buffer.getInt(offset(record) + RECORD_USED) != 0 && buffer.getLong(offset(record) + RECORD_OWNER) == owner) {
+                removeRecord(record);
+            }
+        }
+    }
+
+    @Override
+    protected synchronized void removeExpired() {
+        if (getPolicy().getTtl() <= 0 || closed) return;
+        long now = System.currentTimeMillis();
+        ByteBuffer buffer = records.buffer();
+        for (int record = 0; record < allocated; record++) {
+            if (buffer.getInt(offset(record) + RECORD_USED) != 0 && isExpired(buffer.getLong(offset(record) + RECORD_WRITE_TIME), now)) {
+                removeRecord(record);
+                recordEviction();
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Writes the records and intern table to their files, and marks them as consistent so that they are read back on the next start.
+     */
+    @Override
+    protected synchronized void close() {
+        if (closed) return;
+        closed = true;
+        strings.close();
+        ByteBuffer header = records.buffer();
+        header.putInt(HEADER_ALLOCATED, allocated);
+        header.putInt(HEADER_HEAD, head);
+        header.putInt(HEADER_TAIL, tail);
+        header.putInt(HEADER_FREE, free);
+        header.putInt(HEADER_SIZE, size);
+        header.putInt(HEADER_CLEAN, 1);
+        records.close();
+    }
+
+    private int offset(int record) {
+        return HEADER_LENGTH + record * recordSize;
+    }
+
+    private int[] readReferences(int record) {
+        int[] offsets = codec.getReferenceOffsets();
+        int[] references = new int[offsets.length];
+        ByteBuffer buffer = records.buffer();
+        for (int i = 0; i < offsets.length; i++) {
+            references[i] = buffer.getInt(offset(record) + RECORD_FIELDS + offsets[i]);
+        }
+        return references;
+    }
+
+    /**
+     * Copies the values still referenced to a new intern table, and updates the references of the records to their copies.
+     * For a cache mapped from files, the new table is written to a temporary file which then replaces the previous one.
+     */
+    private void compactStrings() {
+        OffHeapRegion target;
+        Path file = null;
+        Path compactedFile = null;
+        try {
+            if (directory == null) {
+                target = OffHeapRegion.allocate(Math.max(INITIAL_STRINGS, strings.getUsed() / 2));
+            } else {
+                file = directory.resolve(name + ".strings");
+                compactedFile = directory.resolve(name + ".strings.compacted");
+                Files.deleteIfExists(compactedFile);
+                target = OffHeapRegion.map(compactedFile, Math.max(INITIAL_STRINGS, strings.getUsed() / 2));
+            }
+        } catch (IOException e) {
+            System.err.printf("ERROR: Could not compact the %s cache: %s%n", name, e.getMessage());
+            return;
+        }
+        InternTable compacted = strings.compact(target);
+        int[] offsets = codec.getReferenceOffsets();
+        ByteBuffer buffer = records.buffer();
+        for (int record = 0; record < allocated; record++) {
+            if (buffer.getInt(offset(record) + RECORD_USED) == 0) continue;
+            for (int referenceOffset : offsets) {
+                int position = offset(record) + RECORD_FIELDS + referenceOffset;
+                buffer.putInt(position, strings.forward(buffer.getInt(position)));
+            }
+        }
+        strings.close();
+        strings = compacted;
+        if (compactedFile != null) {
+            try {
+                Files.move(compactedFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // The cache keeps working on the compacted file, but it won't be read back on the next start.
+                System.err.printf("ERROR: Could not replace the intern table of the %s cache: %s%n", name, e.getMessage());
+            }
+        }
+    }
+
+    private int find(long scope, long id) {
+        ByteBuffer buffer = records.buffer();
+        int mask = tableCapacity - 1;
+        for (int slot = hash(scope, id) & mask; ; slot = (slot + 1) & mask) {
+            int record = table.getInt(slot * 4) - 1;
+            if (record < 0) return -1;
+            if (buffer.getLong(offset(record) + RECORD_ID) == id && buffer.getLong(offset(record) + RECORD_SCOPE) == scope) return record;
+        }
+    }
+
+    private void insert(int record) {
+        if ((size + 1) * 2 > tableCapacity) rebuildTable(tableCapacity * 2);
+        ByteBuffer buffer = records.buffer();
+        int mask = tableCapacity - 1;
+        int slot = hash(buffer.getLong(offset(record) + RECORD_SCOPE), buffer.getLong(offset(record) + RECORD_ID)) & mask;
+        while (table.getInt(slot * 4) != 0) slot = (slot + 1) & mask;
+        table.putInt(slot * 4, record + 1);
+    }
+
+    private void rebuildTable(int capacity) {
+        table = ByteBuffer.allocateDirect(capacity * 4);
+        tableCapacity = capacity;
+        ByteBuffer buffer = records.buffer();
+        int mask = capacity - 1;
+        for (int record = 0; record < allocated; record++) {
+            if (buffer.getInt(offset(record) + RECORD_USED) == 0) continue;
+            int slot = hash(buffer.getLong(offset(record) + RECORD_SCOPE), buffer.getLong(offset(record) + RECORD_ID)) & mask;
+            while (table.getInt(slot * 4) != 0) slot = (slot + 1) & mask;
+            table.putInt(slot * 4, record + 1);
+        }
+    }
+
+    /**
+     * Removes a record from the hash table, shifting back the records of the same probe sequence so that no tombstone is needed.
+     */
+    private void removeFromTable(int record) {
+        ByteBuffer buffer = records.buffer();
+        int mask = tableCapacity - 1;
+        int gap = hash(buffer.getLong(offset(record) + RECORD_SCOPE), buffer.getLong(offset(record) + RECORD_ID)) & mask;
+        while (table.getInt(gap * 4) != record + 1) gap = (gap + 1) & mask;
+        for (int slot = (gap + 1) & mask; table.getInt(slot * 4) != 0; slot = (slot + 1) & mask) {
+            int other = table.getInt(slot * 4) - 1;
+            int home = hash(buffer.getLong(offset(other) + RECORD_SCOPE), buffer.getLong(offset(other) + RECORD_ID)) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                table.putInt(gap * 4, table.getInt(slot * 4));
+                gap = slot;
+            }
+        }
+        table.putInt(gap * 4, 0);
+    }
+
+    private int allocate() {
+        if (free >= 0) {
+            int record = free;
+            free = records.buffer().getInt(offset(record) + RECORD_NEXT);
+            return record;
+        }
+        records.grow((long) HEADER_LENGTH + (long) (allocated + 1) * recordSize);
+        return allocated++;
+    }
+
+    private void removeRecord(int record) {
+        removeFromTable(record);
+        unlink(record);
+        for (int reference : readReferences(record)) {
+            strings.release(reference);
+        }
+        ByteBuffer buffer = records.buffer();
+        buffer.putInt(offset(record) + RECORD_USED, 0);
+        buffer.putInt(offset(record) + RECORD_NEXT, free);
+        free = record;
+        size--;
+    }
+
+    private void linkHead(int record) {
+        ByteBuffer buffer = records.buffer();
+        buffer.putInt(offset(record) + RECORD_PREVIOUS, -1);
+        buffer.putInt(offset(record) + RECORD_NEXT, head);
+        if (head >= 0) buffer.putInt(offset(head) + RECORD_PREVIOUS, record);
+        head = record;
+        if (tail < 0) tail = record;
+    }
+
+    private void unlink(int record) {
+        ByteBuffer buffer = records.buffer();
+        int before = buffer.getInt(offset(record) + RECORD_PREVIOUS);
+        int after = buffer.getInt(offset(record) + RECORD_NEXT);
+        if (before >= 0) buffer.putInt(offset(before) + RECORD_NEXT, after); else head = after;
+        if (after >= 0) buffer.putInt(offset(after) + RECORD_PREVIOUS, before); else tail = before;
+    }
+}
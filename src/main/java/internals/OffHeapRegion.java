@@ -0,0 +1,126 @@
+package internals;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A growable block of memory outside the heap, either allocated directly or mapped from a file so that its content survives restarts.
+ * Offsets are stable: growing copies or remaps the content to a larger block, at the same offsets.
+ * A region is limited to 2 GB, the largest buffer Java can address.
+ */
+final class OffHeapRegion implements AutoCloseable {
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    /**
+     * The file the region is mapped from, or null if it is allocated directly.
+     */
+    private final FileChannel channel;
+    private final boolean created;
+    private ByteBuffer buffer;
+
+    private OffHeapRegion(FileChannel channel, ByteBuffer buffer, boolean created) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.created = created;
+    }
+
+    /**
+     * Allocates a region outside the heap, which is lost when the bot stops.
+     *
+     * @param capacity The initial size of the region, in bytes.
+     * @return The region, filled with zeros.
+     */
+    static OffHeapRegion allocate(int capacity) {
+        return new OffHeapRegion(null, ByteBuffer.allocateDirect(capacity), true);
+    }
+
+    /**
+     * Maps a region from a file, creating the file if it doesn't exist.
+     *
+     * @param file     The file backing the region.
+     * @param capacity The minimum size of the region, in bytes. A larger file is mapped as a whole.
+     * @return The region, with the content of the file.
+     * @throws IOException If the file can't be opened or mapped.
+     */
+    static OffHeapRegion map(Path file, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size > MAX_CAPACITY) throw new IOException("The file " + file + " is larger than 2 GB");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, capacity));
+            return new OffHeapRegion(channel, buffer, size == 0);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the buffer of the region, which is replaced when the region grows. It must only be accessed with absolute offsets.
+     *
+     * @return The buffer of the region.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Checks if the region is new, which is always the case for a region allocated directly, and for an empty file.
+     *
+     * @return true if the region didn't exist before.
+     */
+    boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * Grows the region to at least the given size, doubling it to keep the number of copies low.
+     *
+     * @param required The minimum size of the region, in bytes.
+     * @throws IllegalStateException If the region would grow past 2 GB.
+     */
+    void grow(long required) {
+        if (required <= buffer.capacity()) return;
+        if (required > MAX_CAPACITY) throw new IllegalStateException("An off-heap region can't grow past 2 GB");
+        int capacity = (int) Math.min(MAX_CAPACITY, Math.max(required, buffer.capacity() * 2L));
+        if (channel == null) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            grown.put(0, buffer, 0, buffer.capacity());
+            buffer = grown;
+            return;
+        }
+        try {
+            // The previous mapping is released once it is garbage collected.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the changes of a file-backed region to its file.
+     */
+    void force() {
+        if (buffer instanceof MappedByteBuffer mapped) mapped.force();
+    }
+
+    @Override
+    public void close() {
+        if (channel == null) return;
+        force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package internals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The record of a presence. The status, the status of each client and the activities are interned as they are received,
+ * as most members share the same few statuses, and many of them the same activities.
+ */
+final class PresenceRecordCodec implements RecordCodec {
+    private static final int STATUS = 0;
+    private static final int CLIENT_STATUS = 4;
+    private static final int ACTIVITIES = 8;
+    private static final int SIZE = 16;
+
+    private static final int[] REFERENCES = {STATUS, CLIENT_STATUS, ACTIVITIES};
+
+    @Override
+    public int getLayout() {
+        return 1;
+    }
+
+    @Override
+    public int getSize() {
+        return SIZE;
+    }
+
+    @Override
+    public int[] getReferenceOffsets() {
+        return REFERENCES;
+    }
+
+    @Override
+    public void write(JSONObject presence, ByteBuffer buffer, int offset, InternTable strings) {
+        JSONObject clientStatus = presence.optJSONObject("client_status");
+        JSONArray activities = presence.optJSONArray("activities");
+        buffer.putInt(offset + STATUS, strings.intern(presence.optString("status", null)));
+        buffer.putInt(offset + CLIENT_STATUS, clientStatus == null || clientStatus.isEmpty() ? 0 : strings.intern(clientStatus.toString()));
+        buffer.putInt(offset + ACTIVITIES, activities == null || activities.isEmpty() ? 0 : strings.intern(activities.toString()));
+    }
+
+    @Override
+    public JSONObject read(long id, ByteBuffer buffer, int offset, InternTable strings) {
+        String status = strings.getString(buffer.getInt(offset + STATUS));
+        String clientStatus = strings.getString(buffer.getInt(offset + CLIENT_STATUS));
+        String activities = strings.getString(buffer.getInt(offset + ACTIVITIES));
+        return new JSONObject()
+                .put("user", new JSONObject().put("id", String.valueOf(id)))
+                .put("status", status == null ? "offline" : status)
+                .put("client_status", clientStatus == null ? new JSONObject() : new JSONObject(clientStatus))
+                .put("activities", activities == null ? new JSONArray() : new JSONArray(activities));
+    }
+}
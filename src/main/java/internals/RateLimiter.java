@@ -0,0 +1,359 @@
+package internals;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Keeps track of the rate limits of the Discord REST API, and queues requests until their limits allow them to be sent.
+ * Each route is identified by its method and path, where ids are replaced by a placeholder except for the major parameters
+ * (channel, guild and webhook ids), as requests with different major parameters are limited separately.
+ * Discord tells which bucket a route belongs to in the X-RateLimit-Bucket header, so routes sharing a bucket also share its state.
+ * Until then, a route has a provisional bucket of its own, which is forwarded to the shared bucket once the hash is known.
+ * Each bucket has its own queue with at most one request in flight, so requests to the same bucket are sent one after the other,
+ * while requests to different buckets are sent concurrently. No thread is blocked while a request waits for its limit to be reset,
+ * the queue is drained again from the scheduler instead.
+ * On top of the buckets, all requests are subject to a global limit of 50 requests per second, enforced with a token bucket.
+ */
+class RateLimiter {
+    private static final int GLOBAL_REQUESTS_PER_SECOND = 50;
+
+    /**
+     * How many times a request is retried after being rate limited, before its response is handed out as is.
+     */
+    private static final int MAX_RETRIES = 3;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Sends a request over the network, once the rate limits allow it.
+     */
+    private final Function<RestRequest, CompletableFuture<RestResponse>> transport;
+
+    /**
+     * The bucket hash of each route, as learned from the responses of the Discord API.
+     */
+    private final Map<String, String> routeBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * The state of each bucket, by bucket hash (or route while the hash is unknown) and major parameter.
+     */
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private double globalTokens = GLOBAL_REQUESTS_PER_SECOND;
+    private long globalLastRefill = System.nanoTime();
+
+    /**
+     * The time until which all requests are paused, in milliseconds, after a global rate limit was hit.
+     */
+    private volatile long globalPausedUntil;
+
+    /**
+     * Instantiates a new RateLimiter.
+     *
+     * @param scheduler The scheduler on which queues are drained once a limit has been reset.
+     * @param transport The function sending a request over the network.
+     */
+    public RateLimiter(ScheduledExecutorService scheduler, Function<RestRequest, CompletableFuture<RestResponse>> transport) {
+        this.scheduler = scheduler;
+        this.transport = transport;
+    }
+
+    /**
+     * Queues a request in its bucket, to be sent as soon as the rate limits allow it.
+     *
+     * @param request The request to send.
+     * @return A future completed with the response of the Discord API.
+     */
+    public CompletableFuture<RestResponse> submit(RestRequest request) {
+        Bucket bucket = getBucket(request.getMethod(), request.getPath());
+        PendingRequest pending = new PendingRequest(request);
+        while (true) {
+            synchronized (bucket) {
+                if (bucket.forwardTo == null) {
+                    bucket.queue.add(pending);
+                    break;
+                }
+            }
+            // The bucket was forwarded after it was looked up.
+            bucket = bucket.forwardTo;
+        }
+        drain(bucket);
+        return pending.future;
+    }
+
+    /**
+     * Gets the bucket a request belongs to.
+     *
+     * @param method The HTTP method of the request.
+     * @param path   The path of the request.
+     * @return The bucket of the request.
+     */
+    private Bucket getBucket(String method, String path) {
+        StringBuilder route = new StringBuilder(method).append(' ');
+        String majorParameter = "";
+        String previous = "";
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) continue;
+            route.append('/');
+            boolean isId = Character.isDigit(segment.charAt(0));
+            if (isId && majorParameter.isEmpty() && (previous.equals("channels") || previous.equals("guilds") || previous.equals("webhooks"))) {
+                majorParameter = segment;
+                route.append(segment);
+            } else if (isId) {
+                route.append("{id}");
+            } else if (previous.equals("reactions")) {
+                route.append("{emoji}");
+            } else {
+                route.append(segment);
+            }
+            previous = segment;
+        }
+        String routeKey = route.toString();
+        String bucketHash = routeBuckets.getOrDefault(routeKey, routeKey);
+        String finalMajorParameter = majorParameter;
+        return buckets.computeIfAbsent(bucketHash + ":" + majorParameter, key -> new Bucket(routeKey, finalMajorParameter));
+    }
+
+    /**
+     * Sends the next request of a bucket if its limit allows it and no other request of the bucket is in flight,
+     * or schedules the bucket to be drained again once its limit is reset.
+     *
+     * @param bucket The bucket to drain.
+     */
+    private void drain(Bucket bucket) {
+        PendingRequest next;
+        synchronized (bucket) {
+            if (bucket.inFlight || bucket.drainScheduled || bucket.queue.isEmpty()) return;
+            long now = System.currentTimeMillis();
+            if (bucket.remaining <= 0 && bucket.resetAt > now) {
+                bucket.drainScheduled = true;
+                scheduler.schedule(() -> {
+                    synchronized (bucket) {
+                        bucket.drainScheduled = false;
+                    }
+                    drain(bucket);
+                }, bucket.resetAt - now, TimeUnit.MILLISECONDS);
+                return;
+            }
+            next = bucket.queue.poll();
+            bucket.inFlight = true;
+            bucket.remaining--;
+        }
+        long delay = reserveGlobal();
+        if (delay > 0) {
+            scheduler.schedule(() -> send(bucket, next), delay, TimeUnit.MILLISECONDS);
+        } else {
+            send(bucket, next);
+        }
+    }
+
+    private void send(Bucket bucket, PendingRequest pending) {
+        long start = System.nanoTime();
+        CompletableFuture<RestResponse> response;
+        try {
+            response = transport.apply(pending.request);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((result, transportError) -> {
+            Throwable error = transportError;
+            long retryAfter = -1;
+            if (error == null) {
+                bucket.latency.recordSince(start);
+                // Whatever the headers contain, the bucket must be released below, or it would never be drained again.
+                try {
+                    retryAfter = update(bucket, result);
+                } catch (RuntimeException e) {
+                    System.err.printf("ERROR: Invalid rate limit headers in a response of %s: %s%n", bucket.routeKey, e.getMessage());
+                    error = e;
+                }
+            }
+            boolean retry = retryAfter >= 0 && pending.attempts++ < MAX_RETRIES;
+            synchronized (bucket) {
+                bucket.inFlight = false;
+            }
+            // The response may have forwarded the bucket, in which case the request is retried from the shared bucket.
+            Bucket current = bucket.resolve();
+            if (retry) {
+                synchronized (current) {
+                    current.queue.addFirst(pending);
+                    current.remaining = 0;
+                    current.resetAt = Math.max(current.resetAt, System.currentTimeMillis() + retryAfter);
+                }
+            }
+            if (error != null) {
+                pending.future.completeExceptionally(error);
+            } else if (!retry) {
+                pending.future.complete(result);
+            }
+            drain(current);
+        });
+    }
+
+    /**
+     * Takes a token from the global token bucket.
+     * Tokens can go below zero, in which case the request reserved a token which will only be available in the future.
+     *
+     * @return The time to wait before the reserved token is available, in milliseconds.
+     */
+    private long reserveGlobal() {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            globalTokens = Math.min(GLOBAL_REQUESTS_PER_SECOND,
+                    globalTokens + (now - globalLastRefill) * GLOBAL_REQUESTS_PER_SECOND / 1e9);
+            globalLastRefill = now;
+            globalTokens -= 1;
+            wait = globalTokens >= 0 ? 0 : (long) Math.ceil(-globalTokens * 1000 / GLOBAL_REQUESTS_PER_SECOND);
+        }
+        return Math.max(wait, globalPausedUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * Updates the state of a bucket from the rate limit headers of a response.
+     *
+     * @param bucket   The bucket the request was sent to.
+     * @param response The response of the Discord API.
+     * @return The time to wait before retrying the request in milliseconds if the request was rate limited, -1 otherwise.
+     */
+    private long update(Bucket bucket, RestResponse response) {
+        long now = System.currentTimeMillis();
+        String bucketHash = response.getHeader("X-RateLimit-Bucket");
+        Bucket target = bucket;
+        String previousHash = bucketHash != null ? routeBuckets.put(bucket.routeKey, bucketHash) : null;
+        if (bucketHash != null && !bucketHash.equals(previousHash)) {
+            // First response for this route, later requests go to the bucket shared with the other routes having this hash.
+            target = buckets.computeIfAbsent(bucketHash + ":" + bucket.majorParameter, key -> new Bucket(bucket.routeKey, bucket.majorParameter));
+            // The requests queued in the provisional bucket of the route move to the shared bucket, so that the two don't both
+            // have requests in flight against the same limit. A bucket whose hash changed is left as is, as other routes may use it.
+            if (previousHash == null && target != bucket) bucket.forwardTo(target);
+        }
+        String remaining = response.getHeader("X-RateLimit-Remaining");
+        String resetAfter = response.getHeader("X-RateLimit-Reset-After");
+        if (remaining != null && resetAfter != null) {
+            long resetAt = now + (long) Math.ceil(Double.parseDouble(resetAfter) * 1000);
+            bucket.setState(Integer.parseInt(remaining), resetAt);
+            if (target != bucket) target.setState(Integer.parseInt(remaining), resetAt);
+        }
+        if (response.getStatusCode() != 429) return -1;
+
+        String retryAfter = response.getHeader("Retry-After");
+        long wait = retryAfter != null ? (long) Math.ceil(Double.parseDouble(retryAfter) * 1000)
+                : resetAfter != null ? (long) Math.ceil(Double.parseDouble(resetAfter) * 1000) : 1000;
+        if ("true".equalsIgnoreCase(response.getHeader("X-RateLimit-Global"))) {
+            bucket.globallyRateLimited.increment();
+            globalPausedUntil = now + wait;
+            System.err.printf("ERROR: Hit the global rate limit of the Discord API, pausing all requests for %d ms.%n", wait);
+        } else {
+            bucket.rateLimited.increment();
+            System.err.printf("ERROR: Hit the rate limit of %s, retrying in %d ms.%n", bucket.routeKey, wait);
+        }
+        return wait;
+    }
+
+    /**
+     * Forgets the buckets whose limit has been reset and which have nothing queued, so that buckets of major parameters which
+     * aren't used anymore don't accumulate.
+     */
+    public void removeExpiredBuckets() {
+        long now = System.currentTimeMillis();
+        buckets.values().removeIf(bucket -> bucket.isIdle(now));
+    }
+
+    /**
+     * A request waiting in the queue of its bucket.
+     */
+    private static class PendingRequest {
+        private final RestRequest request;
+        private final CompletableFuture<RestResponse> future = new CompletableFuture<>();
+        private int attempts;
+
+        private PendingRequest(RestRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * The state of a rate limit bucket, and the requests waiting for it.
+     */
+    private static class Bucket {
+        private final String routeKey;
+        private final String majorParameter;
+        private final ArrayDeque<PendingRequest> queue = new ArrayDeque<>();
+        private boolean inFlight;
+        private boolean drainScheduled;
+        private int remaining = 1;
+        private long resetAt;
+
+        /**
+         * The shared bucket the requests of this provisional bucket go to, once the hash of its route is known.
+         */
+        private volatile Bucket forwardTo;
+
+        /**
+         * The metrics of the route, shared by the buckets of all major parameters.
+         */
+        private final Histogram latency;
+        private final Counter rateLimited;
+        private final Counter globallyRateLimited;
+
+        private Bucket(String routeKey, String majorParameter) {
+            this.routeKey = routeKey;
+            this.majorParameter = majorParameter;
+            String route = majorParameter.isEmpty() ? routeKey : routeKey.replace(majorParameter, "{id}");
+            MetricsRegistry metrics = MetricsRegistry.getInstance();
+            this.latency = metrics.histogram("cutecord_rest_latency_seconds",
+                    "Time between sending a request to the Discord API and receiving its response.", "route", route);
+            this.rateLimited = metrics.counter("cutecord_rest_rate_limited_total",
+                    "Responses of the Discord API with the status 429.", "route", route, "scope", "route");
+            this.globallyRateLimited = metrics.counter("cutecord_rest_rate_limited_total",
+                    "Responses of the Discord API with the status 429.", "route", route, "scope", "global");
+        }
+
+        private synchronized void setState(int remaining, long resetAt) {
+            this.remaining = remaining;
+            this.resetAt = resetAt;
+        }
+
+        /**
+         * Forwards this bucket to another, moving its queued requests ahead of the ones of the other bucket,
+         * as they were submitted first. Requests submitted to this bucket afterwards go to the other bucket.
+         *
+         * @param target The bucket to forward to.
+         */
+        private void forwardTo(Bucket target) {
+            ArrayDeque<PendingRequest> moved;
+            synchronized (this) {
+                moved = new ArrayDeque<>(queue);
+                queue.clear();
+                forwardTo = target;
+            }
+            synchronized (target) {
+                for (Iterator<PendingRequest> iterator = moved.descendingIterator(); iterator.hasNext(); ) {
+                    target.queue.addFirst(iterator.next());
+                }
+            }
+        }
+
+        /**
+         * Gets the bucket the requests of this bucket currently go to.
+         *
+         * @return The bucket this one is forwarded to, or this bucket if it isn't forwarded.
+         */
+        private Bucket resolve() {
+            Bucket bucket = this;
+            while (bucket.forwardTo != null) bucket = bucket.forwardTo;
+            return bucket;
+        }
+
+        private synchronized boolean isIdle(long now) {
+            return resetAt < now && !inFlight && !drainScheduled && queue.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package internals;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the entities of an {@link OffHeapEntityCache} to and from the fixed-size part of their record. Fixed-size fields,
+ * such as snowflakes, timestamps and flags, are stored in the record itself, and variable-length fields, such as names and role ids,
+ * in the {@link InternTable} of the cache, the record only holding their reference.
+ */
+interface RecordCodec {
+    /**
+     * Gets the identifier of the layout of the records, stored in the file of the cache, so that a file written with another layout
+     * is discarded instead of being misread. It must change whenever the layout does.
+     *
+     * @return The identifier of the layout.
+     */
+    int getLayout();
+
+    /**
+     * Gets the size of the fields of a record, in bytes.
+     *
+     * @return The size of the fields.
+     */
+    int getSize();
+
+    /**
+     * Gets the offsets of the fields holding references to the intern table, so that the cache can release and move them.
+     *
+     * @return The offsets of the references, relative to the fields of the record.
+     */
+    int[] getReferenceOffsets();
+
+    /**
+     * Writes an entity to a record, interning its variable-length fields.
+     *
+     * @param value   The entity, as received from Discord.
+     * @param buffer  The buffer of the records.
+     * @param offset  The offset of the fields of the record.
+     * @param strings The intern table of the cache.
+     */
+    void write(JSONObject value, ByteBuffer buffer, int offset, InternTable strings);
+
+    /**
+     * Reads an entity from a record.
+     *
+     * @param id      The id of the entity.
+     * @param buffer  The buffer of the records.
+     * @param offset  The offset of the fields of the record.
+     * @param strings The intern table of the cache.
+     * @return The entity, with the fields the record keeps.
+     */
+    JSONObject read(long id, ByteBuffer buffer, int offset, InternTable strings);
+}
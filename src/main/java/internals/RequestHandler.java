@@ -1,47 +1,148 @@
 package internals;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-
-import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * This class is used to send requests to the Discord API.
- *
+ * This class is used to send requests to the Discord API, while respecting its rate limits.
+ * Requests to the same rate limit bucket are sent one after the other, while requests to different buckets are sent concurrently.
+ * Requests are sent asynchronously through a single {@link HttpClient}, which multiplexes them over pooled HTTP/2 connections,
+ * so no thread is held for a request in flight. Responses are handled on a pool of `rest_threads` threads, or on a virtual thread each
+ * when virtual threads are enabled.
+ * <p>
+ * Identical GET requests sent concurrently share a single request, and the responses of the routes listed in the `rest_cache` field
+ * of the configuration are cached for a short time. See {@link RestResponseCache}.
  */
 public class RequestHandler {
+    private static final String DEFAULT_API_BASE_URL = "https://discordapp.com/api/v9";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
     private static RequestHandler instance;
-    private final CloseableHttpClient httpClient;
+
+    /**
+     * The url the paths of requests are appended to, read from the `api_base_url` field of the configuration,
+     * so that the bot can be pointed at another server than the Discord API, such as a local one for testing.
+     */
+    private final String apiBaseUrl;
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+    private final RateLimiter rateLimiter;
+    private final RestResponseCache responseCache;
+
     private RequestHandler() {
-        httpClient = HttpClients.createDefault();
+        String configUrl = CuteCord.getConfig().get("api_base_url");
+        apiBaseUrl = configUrl != null ? configUrl : DEFAULT_API_BASE_URL;
+        if (CuteCord.isVirtualThreadsEnabled()) {
+            executor = VirtualThreads.newExecutor("CuteCord-Rest-");
+        } else {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(CuteCord.getConfigInt("rest_threads", 4), runnable -> {
+                Thread thread = new Thread(runnable, "CuteCord-Rest-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .executor(executor)
+                .build();
+        rateLimiter = new RateLimiter(CuteCord.getScheduler(), this::execute);
+        CuteCord.getScheduler().scheduleAtFixedRate(rateLimiter::removeExpiredBuckets, 1, 1, TimeUnit.MINUTES);
+        String cachedRoutes = CuteCord.getConfig().get("rest_cache");
+        Map<String, Long> ttls = Map.of();
+        if (cachedRoutes != null) {
+            try {
+                ttls = RestResponseCache.parseRoutes(cachedRoutes);
+            } catch (IllegalArgumentException e) {
+                System.err.printf("ERROR: Invalid rest_cache in config: %s. Expected a list such as /channels/{id}:5,/users/{id}:60%n",
+                        e.getMessage());
+                System.exit(1);
+            }
+        }
+        responseCache = new RestResponseCache(ttls, CuteCord.getConfigInt("rest_cache_size", 10000));
+        if (!ttls.isEmpty()) {
+            CuteCord.getScheduler().scheduleAtFixedRate(responseCache::removeExpired, 1, 1, TimeUnit.MINUTES);
+        }
     }
 
-    protected static RequestHandler getInstance() {
+    public static synchronized RequestHandler getInstance() {
         if (instance == null) instance = new RequestHandler();
         return instance;
     }
 
-    protected HttpResponse sendRequest(HttpUriRequest request) {
-        // TODO: Implement ratelimiting for HTTP requests: 50 requests per second.
+    /**
+     * Queues a request to the Discord API, which is sent as soon as its rate limit bucket and the global rate limit allow it.
+     * If the request is rate limited anyway, it is retried once the limit has been reset.
+     * A GET request without headers of its own may be answered from the response cache, or share the response of an identical
+     * request in flight, in which case the same {@link RestResponse} is handed to every caller.
+     *
+     * @param request The request to send.
+     * @return A future completed with the response of the Discord API, whose body has been read in full.
+     */
+    public CompletableFuture<RestResponse> submit(RestRequest request) {
+        // Headers such as X-Audit-Log-Reason could make identical paths return different responses.
+        if (!"GET".equals(request.getMethod()) || !request.getHeaders().isEmpty()) return rateLimiter.submit(request);
+        return responseCache.get(request, rateLimiter::submit);
+    }
 
-        request.addHeader("user-agent", String.format("DiscordBot (%s, %s)", "https://github.com/SRAZKVT/CuteCord", "@VERSION@"));
-        request.addHeader("authorization", String.format("Bot %s", CuteCord.AUTH_TOKEN));
-        HttpResponse response;
+    /**
+     * Registers the listeners removing cached responses when the gateway tells that their entity changed.
+     *
+     * @param dispatcher The dispatcher of the gateway events.
+     */
+    protected void register(EventDispatcher dispatcher) {
+        responseCache.register(dispatcher);
+    }
+
+    /**
+     * Sends a request to the Discord API, and waits for its response. See {@link RequestHandler#submit(RestRequest)}.
+     *
+     * @param request The request to send.
+     * @return The response of the Discord API.
+     */
+    public RestResponse sendRequest(RestRequest request) {
         try {
-            response = this.httpClient.execute(request);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            return submit(request).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException(e.getCause());
         }
-        return response;
     }
 
-    protected void close() {
-        try {
-            this.httpClient.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Sends a request over the network, without any regard for rate limits.
+     *
+     * @param request The request to send.
+     * @return A future completed with the response of the Discord API.
+     */
+    private CompletableFuture<RestResponse> execute(RestRequest request) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(apiBaseUrl + request.getPath()))
+                .timeout(REQUEST_TIMEOUT)
+                .header("user-agent", String.format("DiscordBot (%s, %s)", "https://github.com/SRAZKVT/CuteCord", "@VERSION@"))
+                .header("authorization", String.format("Bot %s", CuteCord.AUTH_TOKEN));
+        request.getHeaders().forEach(builder::header);
+        if (request.getBody() != null) {
+            builder.header("content-type", "application/json")
+                    .method(request.getMethod(), HttpRequest.BodyPublishers.ofString(request.getBody()));
+        } else {
+            builder.method(request.getMethod(), HttpRequest.BodyPublishers.noBody());
         }
+        return httpClient.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> new RestResponse(response.statusCode(), response.headers(), response.body()));
+    }
+
+    protected void close() {
+        executor.shutdown();
     }
 }
@@ -0,0 +1,115 @@
+package internals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A request to the Discord REST API, to be sent through {@link RequestHandler#submit(RestRequest)}.
+ */
+public final class RestRequest {
+    private final String method;
+    private final String path;
+    private final String body;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    private RestRequest(String method, String path, String body) {
+        this.method = method;
+        this.path = path;
+        this.body = body;
+    }
+
+    /**
+     * Creates a GET request.
+     *
+     * @param path The path of the endpoint, relative to the base url of the API, for example `/channels/123`.
+     * @return The request.
+     */
+    public static RestRequest get(String path) {
+        return new RestRequest("GET", path, null);
+    }
+
+    /**
+     * Creates a DELETE request.
+     *
+     * @param path The path of the endpoint, relative to the base url of the API.
+     * @return The request.
+     */
+    public static RestRequest delete(String path) {
+        return new RestRequest("DELETE", path, null);
+    }
+
+    /**
+     * Creates a POST request.
+     *
+     * @param path The path of the endpoint, relative to the base url of the API.
+     * @param body The JSON body of the request, or null if it has none.
+     * @return The request.
+     */
+    public static RestRequest post(String path, JSONObject body) {
+        return new RestRequest("POST", path, body == null ? null : body.toString());
+    }
+
+    /**
+     * Creates a PATCH request.
+     *
+     * @param path The path of the endpoint, relative to the base url of the API.
+     * @param body The JSON body of the request, or null if it has none.
+     * @return The request.
+     */
+    public static RestRequest patch(String path, JSONObject body) {
+        return new RestRequest("PATCH", path, body == null ? null : body.toString());
+    }
+
+    /**
+     * Creates a PUT request.
+     *
+     * @param path The path of the endpoint, relative to the base url of the API.
+     * @param body The JSON body of the request, or null if it has none.
+     * @return The request.
+     */
+    public static RestRequest put(String path, JSONObject body) {
+        return new RestRequest("PUT", path, body == null ? null : body.toString());
+    }
+
+    /**
+     * Creates a PUT request with an array as body.
+     *
+     * @param path The path of the endpoint, relative to the base url of the API.
+     * @param body The JSON body of the request.
+     * @return The request.
+     */
+    public static RestRequest put(String path, JSONArray body) {
+        return new RestRequest("PUT", path, body.toString());
+    }
+
+    /**
+     * Adds a header to the request, such as `X-Audit-Log-Reason`.
+     *
+     * @param name  The name of the header.
+     * @param value The value of the header.
+     * @return This request.
+     */
+    public RestRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+}
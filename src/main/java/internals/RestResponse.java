@@ -0,0 +1,66 @@
+package internals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.http.HttpHeaders;
+
+/**
+ * A response of the Discord REST API. The body has already been read in full when the response is handed out.
+ */
+public final class RestResponse {
+    private final int statusCode;
+    private final HttpHeaders headers;
+    private final String body;
+
+    protected RestResponse(int statusCode, HttpHeaders headers, String body) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Checks if the request succeeded, which is the case for all 2xx status codes.
+     *
+     * @return true if the request succeeded, false otherwise.
+     */
+    public boolean isSuccess() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    /**
+     * Gets the first value of a header.
+     *
+     * @param name The name of the header, case-insensitive.
+     * @return The value of the header, or null if the response doesn't have it.
+     */
+    public String getHeader(String name) {
+        return headers.firstValue(name).orElse(null);
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Parses the body of the response as a JSON object.
+     *
+     * @return The body as a JSON object.
+     */
+    public JSONObject getJson() {
+        return new JSONObject(body);
+    }
+
+    /**
+     * Parses the body of the response as a JSON array.
+     *
+     * @return The body as a JSON array.
+     */
+    public JSONArray getJsonArray() {
+        return new JSONArray(body);
+    }
+}
@@ -0,0 +1,222 @@
+package internals;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Shares the responses of identical GET requests to the Discord REST API. GET requests for a path which is already being fetched
+ * wait for the response of the request in flight instead of being sent again, so a burst of identical requests costs a single
+ * request of the rate limit. Responses of the routes listed in the `rest_cache` field of the configuration are also kept for
+ * a short time, in a cache bounded by `rest_cache_size` entries, the least recently used ones being evicted first.
+ * <p>
+ * Cached responses are removed as soon as a gateway event tells that their entity changed: CHANNEL_UPDATE, CHANNEL_DELETE,
+ * THREAD_UPDATE and THREAD_DELETE for `/channels/{id}`, GUILD_UPDATE and GUILD_DELETE for `/guilds/{id}`, GUILD_MEMBER_UPDATE
+ * and GUILD_MEMBER_REMOVE for `/guilds/{id}/members/{id}`, and USER_UPDATE for `/users/{id}` and `/users/@me`. Member events
+ * are only received with the GUILD_MEMBERS intent, without which cached members only expire with their time to live.
+ */
+class RestResponseCache {
+    private static final Counter HITS = MetricsRegistry.getInstance().counter("cutecord_rest_cache_hits_total",
+            "GET requests answered from the response cache.");
+    private static final Counter COALESCED = MetricsRegistry.getInstance().counter("cutecord_rest_coalesced_total",
+            "GET requests which shared the response of an identical request in flight.");
+
+    /**
+     * The time to live of the responses of each cached route, in milliseconds, by route such as `/channels/{id}`.
+     */
+    private final Map<String, Long> ttls;
+
+    /**
+     * The GET requests in flight, by path. A request is removed from this map when its response is received,
+     * or when its entity is invalidated, in which case its response isn't cached.
+     */
+    private final Map<String, CompletableFuture<RestResponse>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * The cached responses by path, in least recently used order.
+     */
+    private final LinkedHashMap<String, CachedResponse> responses;
+
+    /**
+     * Instantiates a new RestResponseCache.
+     *
+     * @param ttls    The time to live of the responses of each cached route, in milliseconds. Empty to only coalesce requests.
+     * @param maxSize The maximum number of cached responses.
+     */
+    RestResponseCache(Map<String, Long> ttls, int maxSize) {
+        this.ttls = Map.copyOf(ttls);
+        this.responses = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return size() > maxSize;
+            }
+        };
+        MetricsRegistry.getInstance().gauge("cutecord_rest_cache_size", "Responses kept in the REST response cache.", this::size);
+    }
+
+    /**
+     * Parses the routes to cache, as written in the configuration: a comma-separated list of routes and times to live in seconds,
+     * such as `/channels/{id}:5,/users/{id}:60`. Ids in the routes may be written `{id}` or as any other placeholder.
+     *
+     * @param value The routes to cache.
+     * @return The time to live of each route, in milliseconds.
+     * @throws IllegalArgumentException If the value isn't a valid list of routes.
+     */
+    static Map<String, Long> parseRoutes(String value) {
+        Map<String, Long> ttls = new HashMap<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int separator = entry.lastIndexOf(':');
+            if (separator <= 0 || !entry.startsWith("/")) throw new IllegalArgumentException("Invalid cached route: " + entry);
+            long ttl;
+            try {
+                ttl = Long.parseLong(entry.substring(separator + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid time to live: " + entry, e);
+            }
+            if (ttl <= 0) throw new IllegalArgumentException("Invalid time to live: " + entry);
+            ttls.put(routeOf(entry.substring(0, separator).trim().replaceAll("\\{[^}/]*}", "0")), ttl * 1000);
+        }
+        return ttls;
+    }
+
+    /**
+     * Registers the listeners invalidating the cached responses whose entity changed.
+     *
+     * @param dispatcher The dispatcher of the gateway events.
+     */
+    void register(EventDispatcher dispatcher) {
+        if (ttls.isEmpty()) return;
+        EventListener channel = event -> invalidate("/channels/" + event.getData().getLong("id"));
+        dispatcher.register(GatewayEventType.CHANNEL_UPDATE, channel);
+        dispatcher.register(GatewayEventType.CHANNEL_DELETE, channel);
+        dispatcher.register(GatewayEventType.THREAD_UPDATE, channel);
+        dispatcher.register(GatewayEventType.THREAD_DELETE, channel);
+        EventListener guild = event -> invalidate("/guilds/" + event.getData().getLong("id"));
+        dispatcher.register(GatewayEventType.GUILD_UPDATE, guild);
+        dispatcher.register(GatewayEventType.GUILD_DELETE, guild);
+        EventListener member = event -> invalidate("/guilds/" + event.getData().getLong("guild_id")
+                + "/members/" + event.getData().getJSONObject("user").getLong("id"));
+        dispatcher.register(GatewayEventType.GUILD_MEMBER_UPDATE, member);
+        dispatcher.register(GatewayEventType.GUILD_MEMBER_REMOVE, member);
+        dispatcher.register(GatewayEventType.USER_UPDATE, event -> {
+            // USER_UPDATE is only sent for the bot itself.
+            JSONObject user = event.getData();
+            invalidate("/users/" + user.getLong("id"));
+            invalidate("/users/@me");
+        });
+    }
+
+    /**
+     * Gets the response of a GET request from the cache, or from an identical request in flight, or else sends it.
+     *
+     * @param request The GET request, without headers of its own.
+     * @param sender  The function sending a request through the rate limits.
+     * @return A future completed with the response.
+     */
+    CompletableFuture<RestResponse> get(RestRequest request, Function<RestRequest, CompletableFuture<RestResponse>> sender) {
+        String path = request.getPath();
+        // Paths with a query string aren't cached, as the events only tell which entity changed.
+        long ttl = ttls.isEmpty() || path.indexOf('?') >= 0 ? 0 : ttls.getOrDefault(routeOf(path), 0L);
+        if (ttl > 0) {
+            RestResponse cached = lookup(path);
+            if (cached != null) {
+                HITS.increment();
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        CompletableFuture<RestResponse> future = new CompletableFuture<>();
+        CompletableFuture<RestResponse> existing = inFlight.putIfAbsent(path, future);
+        if (existing != null) {
+            COALESCED.increment();
+            // Each caller gets its own future, so that one cancelling it doesn't affect the others.
+            return existing.copy();
+        }
+        sender.apply(request).whenComplete((response, error) -> {
+            boolean current = inFlight.remove(path, future);
+            if (error != null) {
+                future.completeExceptionally(error);
+                return;
+            }
+            // A response whose entity was invalidated while it was in flight may already be outdated.
+            if (current && ttl > 0 && response.isSuccess()) store(path, response, ttl);
+            future.complete(response);
+        });
+        return future.copy();
+    }
+
+    /**
+     * Removes the cached response of a path, and detaches the request in flight for it so that its response isn't cached.
+     *
+     * @param path The path, such as `/channels/123`.
+     */
+    void invalidate(String path) {
+        inFlight.remove(path);
+        synchronized (responses) {
+            responses.remove(path);
+        }
+    }
+
+    /**
+     * Removes the responses which outlived their time to live.
+     */
+    void removeExpired() {
+        long now = System.currentTimeMillis();
+        synchronized (responses) {
+            for (Iterator<CachedResponse> iterator = responses.values().iterator(); iterator.hasNext(); ) {
+                if (iterator.next().expiresAt <= now) iterator.remove();
+            }
+        }
+    }
+
+    int size() {
+        synchronized (responses) {
+            return responses.size();
+        }
+    }
+
+    private RestResponse lookup(String path) {
+        synchronized (responses) {
+            CachedResponse cached = responses.get(path);
+            if (cached == null) return null;
+            if (cached.expiresAt > System.currentTimeMillis()) return cached.response;
+            responses.remove(path);
+            return null;
+        }
+    }
+
+    private void store(String path, RestResponse response, long ttl) {
+        synchronized (responses) {
+            responses.put(path, new CachedResponse(response, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * Gets the route of a path, where ids are replaced by `{id}`, such as `/guilds/{id}/members/{id}`.
+     */
+    private static String routeOf(String path) {
+        StringBuilder route = new StringBuilder(path.length());
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) continue;
+            route.append('/').append(Character.isDigit(segment.charAt(0)) ? "{id}" : segment);
+        }
+        return route.toString();
+    }
+
+    private static class CachedResponse {
+        private final RestResponse response;
+        private final long expiresAt;
+
+        private CachedResponse(RestResponse response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package internals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manages the gateway connections of the bot, one {@link DiscordWebSocketHandler} per shard.
+ * All shards connect at once, and their IDENTIFY payloads are spread over the concurrency buckets given by Discord:
+ * shard `i` belongs to bucket `i % max_concurrency`, and each bucket may only identify once every 5 seconds.
+ * Shards share the event dispatcher and the scheduler used for their heartbeats. Reconnections, which block until the connection
+ * is established, run on threads of their own, so that a gateway outage never holds the threads of the scheduler.
+ */
+public class ShardManager {
+    /**
+     * The minimum delay between two identifies in the same concurrency bucket, in milliseconds.
+     */
+    private static final long IDENTIFY_INTERVAL = 5000;
+
+    private final DiscordWebSocketHandler[] shards;
+    private final EventDispatcher eventDispatcher;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService reconnectExecutor;
+    private final int intents;
+
+    /**
+     * The journal to which the shards append the dispatch messages they receive, or null if there is none.
+     */
+    private volatile EventJournal eventJournal;
+
+    /**
+     * The earliest time at which the next identify of each concurrency bucket may be sent.
+     */
+    private final long[] nextIdentify;
+
+    /**
+     * Instantiates a new ShardManager. The shards don't connect until {@link ShardManager#start()} is called.
+     *
+     * @param gatewayUrl      The base url of the gateway, as returned by the Discord API.
+     * @param shardCount      The number of shards to run.
+     * @param maxConcurrency  The number of shards allowed to identify concurrently, as returned by the Discord API.
+     * @param intents         The bitmask of the intents the shards identify with.
+     * @param eventDispatcher The dispatcher to which the events of all shards are handed over.
+     * @param scheduler       The scheduler shared by all shards for their timers.
+     * @param compress        Whether the connections use the zlib-stream transport compression.
+     * @param etf             Whether the connections use the ETF encoding instead of JSON.
+     */
+    public ShardManager(String gatewayUrl, int shardCount, int maxConcurrency, int intents, EventDispatcher eventDispatcher,
+                        ScheduledExecutorService scheduler, boolean compress, boolean etf) {
+        this.intents = intents;
+        this.eventDispatcher = eventDispatcher;
+        this.scheduler = scheduler;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.reconnectExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "CuteCord-Reconnect-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.nextIdentify = new long[maxConcurrency];
+        this.shards = new DiscordWebSocketHandler[shardCount];
+        for (int shardId = 0; shardId < shardCount; shardId++) {
+            shards[shardId] = new DiscordWebSocketHandler(gatewayUrl, shardId, this, compress, etf);
+        }
+    }
+
+    /**
+     * Opens the connection of every shard. This doesn't wait for the connections to be established.
+     */
+    public void start() {
+        System.out.printf("INFO: Starting %d shard(s) in %d concurrency bucket(s).%n", shards.length, nextIdentify.length);
+        for (DiscordWebSocketHandler shard : shards) {
+            shard.connect();
+        }
+    }
+
+    /**
+     * Closes the connection of every shard, and waits for them to be closed.
+     */
+    public void stop() {
+        for (DiscordWebSocketHandler shard : shards) {
+            try {
+                shard.shutdown();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        reconnectExecutor.shutdownNow();
+    }
+
+    /**
+     * Schedules the identify of a shard in the first free slot of its concurrency bucket.
+     *
+     * @param shardId  The id of the shard that wants to identify.
+     * @param identify The action sending the identify payload.
+     */
+    protected synchronized void scheduleIdentify(int shardId, Runnable identify) {
+        int bucket = shardId % nextIdentify.length;
+        long now = System.currentTimeMillis();
+        long slot = Math.max(now, nextIdentify[bucket]);
+        nextIdentify[bucket] = slot + IDENTIFY_INTERVAL;
+        scheduler.schedule(identify, slot - now, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the number of shards.
+     *
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the connection of a shard.
+     *
+     * @param shardId The id of the shard.
+     * @return The connection of the shard.
+     */
+    public DiscordWebSocketHandler getShard(int shardId) {
+        return shards[shardId];
+    }
+
+    /**
+     * Gets the connection of the shard receiving the events of a guild.
+     *
+     * @param guildId The id of the guild.
+     * @return The connection of the shard handling this guild.
+     */
+    public DiscordWebSocketHandler getShardForGuild(long guildId) {
+        return shards[getShardIdForGuild(guildId)];
+    }
+
+    /**
+     * Gets the id of the shard receiving the events of a guild.
+     *
+     * @param guildId The id of the guild.
+     * @return The id of the shard handling this guild.
+     */
+    public int getShardIdForGuild(long guildId) {
+        return (int) ((guildId >>> 22) % shards.length);
+    }
+
+    /**
+     * Gets the intents the shards identify with.
+     *
+     * @return The bitmask of the intents.
+     */
+    public int getIntents() {
+        return intents;
+    }
+
+    /**
+     * Sets the journal to which the shards append the dispatch messages they receive.
+     *
+     * @param eventJournal The journal, or null to stop journaling.
+     */
+    public void setEventJournal(EventJournal eventJournal) {
+        this.eventJournal = eventJournal;
+    }
+
+    protected EventJournal getEventJournal() {
+        return eventJournal;
+    }
+
+    protected EventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    protected ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Gets the executor on which the shards reconnect, which starts a thread for each reconnection in progress.
+     *
+     * @return The executor of the reconnections.
+     */
+    protected ExecutorService getReconnectExecutor() {
+        return reconnectExecutor;
+    }
+}
@@ -0,0 +1,271 @@
+package internals;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks on a fixed number of lanes, each being a single thread with its own bounded queue. Tasks are assigned to a lane by a key,
+ * so tasks with the same key run one after the other in the order they were submitted, while tasks with different keys run in parallel.
+ * The events of a guild are keyed by its id, so a MESSAGE_UPDATE never runs before its MESSAGE_CREATE, without any lock between guilds.
+ * <p>
+ * The queues are lock-free ring buffers, which any number of threads can add to. A lane only sleeps when its queue is empty, and is
+ * woken up by the next submitter. When a queue is full, the submitter waits for a slot instead of dropping the task, which slows
+ * the gateway connection down until the listeners catch up.
+ * <p>
+ * The threads of the lanes are platform threads by default, and may be virtual threads, in which case a listener blocking
+ * on I/O only holds up the events of its own lane, while the other lanes keep running on the carrier threads.
+ */
+final class StripedExecutor {
+    private static final Counter FULL_LANES = MetricsRegistry.getInstance().counter("cutecord_event_lane_full_total",
+            "Times an event had to wait for room in the queue of its lane.");
+
+    /**
+     * The number of times a submitter checks a full queue again before sleeping between checks.
+     */
+    private static final int SPINS = 100;
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Lane[] lanes;
+    private volatile boolean shutdown;
+
+    /**
+     * Instantiates a new StripedExecutor and starts its lanes, each on a platform daemon thread.
+     *
+     * @param name         The prefix of the names of the threads of the lanes.
+     * @param laneCount    The number of lanes.
+     * @param laneCapacity The maximum number of tasks waiting in each lane, rounded up to a power of two.
+     */
+    StripedExecutor(String name, int laneCount, int laneCapacity) {
+        this(platformThreads(name), laneCount, laneCapacity);
+    }
+
+    /**
+     * Instantiates a new StripedExecutor and starts its lanes, each on a thread created by the given factory.
+     *
+     * @param threadFactory The factory of the threads of the lanes, such as a factory of virtual threads.
+     * @param laneCount     The number of lanes.
+     * @param laneCapacity  The maximum number of tasks waiting in each lane, rounded up to a power of two.
+     */
+    StripedExecutor(ThreadFactory threadFactory, int laneCount, int laneCapacity) {
+        if (laneCount < 1) throw new IllegalArgumentException("A striped executor needs at least one lane");
+        int capacity = Integer.highestOneBit(Math.max(2, laneCapacity - 1)) << 1;
+        lanes = new Lane[laneCount];
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        for (int i = 0; i < laneCount; i++) {
+            Lane lane = new Lane(threadFactory, capacity);
+            lanes[i] = lane;
+            metrics.gauge("cutecord_event_lane_depth", "Events waiting in the queue of a lane of the event dispatcher.",
+                    lane::depth, "lane", String.valueOf(i));
+            lane.thread.start();
+        }
+    }
+
+    /**
+     * Queues a task on the lane of its key, waiting for room if the queue of the lane is full.
+     * A lane can't wait for itself, so a task submitted from the thread of its own lane while the queue is full runs right away.
+     *
+     * @param key  The key of the task, such as the id of a guild. Tasks with equal keys run in submission order.
+     * @param task The task.
+     * @throws RejectedExecutionException If the executor has been shut down.
+     */
+    void execute(long key, Runnable task) {
+        if (shutdown) throw new RejectedExecutionException("The executor has been shut down");
+        Lane lane = lanes[laneOf(key)];
+        if (!lane.offer(task)) {
+            FULL_LANES.increment();
+            if (Thread.currentThread() == lane.thread) {
+                task.run();
+                return;
+            }
+            for (int attempt = 0; !lane.offer(task); attempt++) {
+                if (shutdown) throw new RejectedExecutionException("The executor has been shut down");
+                if (attempt < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(WAIT_NANOS);
+                }
+            }
+        }
+        if (lane.sleeping) LockSupport.unpark(lane.thread);
+    }
+
+    /**
+     * Creates a factory of platform daemon threads, named with the given prefix followed by the number of their lane.
+     */
+    private static ThreadFactory platformThreads(String name) {
+        AtomicLong count = new AtomicLong();
+        return task -> {
+            Thread thread = new Thread(task, name + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Gets the lane a key is assigned to. Snowflakes are mixed first, as their lowest bits are a counter which is often 0.
+     */
+    private int laneOf(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (((hash >>> 32) * lanes.length) >>> 32);
+    }
+
+    int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Gets the number of tasks waiting in all the lanes.
+     *
+     * @return The number of queued tasks.
+     */
+    long size() {
+        long size = 0;
+        for (Lane lane : lanes) {
+            size += lane.depth();
+        }
+        return size;
+    }
+
+    /**
+     * Stops accepting tasks. The lanes stop once the tasks already queued have run.
+     */
+    void shutdown() {
+        shutdown = true;
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.thread);
+        }
+    }
+
+    /**
+     * Stops accepting tasks, and stops the lanes once their current task has run, dropping the tasks still queued.
+     */
+    void shutdownNow() {
+        shutdown = true;
+        for (Lane lane : lanes) {
+            lane.stopped = true;
+            lane.thread.interrupt();
+        }
+    }
+
+    /**
+     * Waits for the lanes to stop after a shutdown.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit    The unit of the timeout.
+     * @return true if all the lanes stopped, false if the timeout elapsed first.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Lane lane : lanes) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) TimeUnit.NANOSECONDS.timedJoin(lane.thread, remaining);
+            if (lane.thread.isAlive()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A thread and its queue, a bounded ring buffer with many producers and a single consumer. Each slot has a sequence number,
+     * which tells the producers when the slot is free for the position they claimed, and the consumer when its task is published.
+     */
+    private final class Lane implements Runnable {
+        private final Thread thread;
+        private final Runnable[] tasks;
+        private final AtomicLongArray sequences;
+        private final int mask;
+
+        /**
+         * The position of the next task to add, claimed by producers.
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * The position of the next task to run, only written by the thread of the lane.
+         */
+        private volatile long head;
+
+        /**
+         * Whether the thread of the lane is about to sleep, or sleeping, because its queue is empty.
+         */
+        private volatile boolean sleeping;
+        private volatile boolean stopped;
+
+        private Lane(ThreadFactory threadFactory, int capacity) {
+            tasks = new Runnable[capacity];
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+            mask = capacity - 1;
+            thread = threadFactory.newThread(this);
+        }
+
+        private boolean offer(Runnable task) {
+            long position = tail.get();
+            while (true) {
+                int slot = (int) (position & mask);
+                long difference = sequences.get(slot) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        tasks[slot] = task;
+                        sequences.set(slot, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    // The slot still holds the task from the previous lap: the queue is full.
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        private Runnable poll() {
+            long position = head;
+            int slot = (int) (position & mask);
+            if (sequences.get(slot) != position + 1) return null;
+            Runnable task = tasks[slot];
+            tasks[slot] = null;
+            sequences.set(slot, position + tasks.length);
+            head = position + 1;
+            return task;
+        }
+
+        private long depth() {
+            return Math.max(0, tail.get() - head);
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                Runnable task = poll();
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.printf("ERROR: A task of %s threw an exception.%n", thread.getName());
+                        e.printStackTrace();
+                    }
+                    continue;
+                }
+                if (shutdown) {
+                    // Tasks submitted right before the shutdown may still be being published.
+                    if (tail.get() == head) return;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                // Producers check this flag after publishing, and this thread checks the queue after setting it,
+                // so either the task is seen here, or the producer wakes this thread up.
+                sleeping = true;
+                if (sequences.get((int) (head & mask)) != head + 1 && !shutdown) LockSupport.park(this);
+                sleeping = false;
+            }
+        }
+    }
+}
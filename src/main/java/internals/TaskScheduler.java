@@ -0,0 +1,114 @@
+package internals;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Schedules the tasks of modules on the scheduler shared by the gateway connections, instead of each module creating its own timers.
+ * The scheduler only keeps the time: tasks run on a separate executor, so that a slow task never delays a heartbeat.
+ * Tasks are owned by the module which defines them, and are all cancelled when their module is stopped, so that a reloaded module
+ * doesn't leave its old tasks behind.
+ */
+public class TaskScheduler {
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+
+    /**
+     * The tasks scheduled by each module, by class loader of the module.
+     */
+    private final Map<ClassLoader, Set<ScheduledFuture<?>>> tasksByModule = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new TaskScheduler.
+     *
+     * @param scheduler The scheduler which triggers the tasks.
+     * @param executor  The executor on which the tasks run.
+     */
+    TaskScheduler(ScheduledExecutorService scheduler, Executor executor) {
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Runs a task once after the given delay.
+     *
+     * @param task  The task to run.
+     * @param delay The delay before running the task.
+     * @param unit  The unit of the delay.
+     * @return The handle of the task, which can be used to cancel it.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return track(task, false, run -> scheduler.schedule(run, delay, unit));
+    }
+
+    /**
+     * Runs a task periodically, the first time after the given delay. If a run of the task lasts longer than the period,
+     * the runs which would overlap it are skipped.
+     *
+     * @param task         The task to run.
+     * @param initialDelay The delay before the first run of the task.
+     * @param period       The period between the start of two runs of the task.
+     * @param unit         The unit of the delay and period.
+     * @return The handle of the task, which can be used to cancel it.
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return track(task, true, run -> scheduler.scheduleAtFixedRate(run, initialDelay, period, unit));
+    }
+
+    /**
+     * Cancels all the tasks of the module with the given class loader.
+     *
+     * @param classLoader The class loader of the module.
+     */
+    void cancelAll(ClassLoader classLoader) {
+        Set<ScheduledFuture<?>> tasks = tasksByModule.remove(classLoader);
+        if (tasks == null) return;
+        for (ScheduledFuture<?> task : tasks) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Schedules a task, which is handed over to the executor each time the scheduler triggers it, and tracks it if it belongs to a module.
+     * The module of a task is found through the class loader of the task, which is the class loader of the module for the lambdas
+     * and classes defined by the module.
+     */
+    private ScheduledFuture<?> track(Runnable task, boolean periodic, Function<Runnable, ScheduledFuture<?>> schedule) {
+        ClassLoader owner = task.getClass().getClassLoader();
+        Set<ScheduledFuture<?>> tasks = owner instanceof ModuleClassLoader
+                ? tasksByModule.computeIfAbsent(owner, classLoader -> ConcurrentHashMap.newKeySet())
+                : null;
+        AtomicBoolean running = new AtomicBoolean();
+        CompletableFuture<ScheduledFuture<?>> handle = new CompletableFuture<>();
+        ScheduledFuture<?> future = schedule.apply(() -> {
+            if (!running.compareAndSet(false, true)) return;
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("ERROR: A scheduled task threw an exception.");
+                        e.printStackTrace();
+                    } finally {
+                        running.set(false);
+                        if (!periodic && tasks != null) tasks.remove(handle.join());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+            }
+        });
+        if (tasks != null) tasks.add(future);
+        handle.complete(future);
+        return future;
+    }
+}
@@ -0,0 +1,104 @@
+package internals;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads when CuteCord runs on Java 21 or later. CuteCord targets Java 17, where virtual threads don't exist,
+ * so the methods creating them are looked up when this class is initialized, and {@link VirtualThreads#isSupported()} tells if they were found.
+ */
+final class VirtualThreads {
+    /**
+     * `Thread.ofVirtual()`, or null if virtual threads aren't supported.
+     */
+    private static final MethodHandle OF_VIRTUAL;
+
+    /**
+     * `Thread.Builder.OfVirtual.name(String, long)`, which names the threads with a prefix followed by a counter.
+     */
+    private static final MethodHandle NAME;
+
+    /**
+     * `Thread.Builder.factory()`.
+     */
+    private static final MethodHandle FACTORY;
+
+    /**
+     * `Executors.newThreadPerTaskExecutor(ThreadFactory)`.
+     */
+    private static final MethodHandle NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        MethodHandle ofVirtual = null;
+        MethodHandle name = null;
+        MethodHandle factory = null;
+        MethodHandle newThreadPerTaskExecutor = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtualBuilder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualBuilder));
+            name = lookup.findVirtual(ofVirtualBuilder, "name", MethodType.methodType(ofVirtualBuilder, String.class, long.class));
+            factory = lookup.findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class));
+            newThreadPerTaskExecutor = lookup.findStatic(Executors.class, "newThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class, ThreadFactory.class));
+        } catch (ReflectiveOperationException ignored) {
+            // Running on a Java version without virtual threads.
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Checks if the running Java version supports virtual threads.
+     *
+     * @return true if virtual threads can be created, false otherwise.
+     */
+    static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a factory of virtual threads, named with the given prefix followed by a counter.
+     *
+     * @param namePrefix The prefix of the names of the threads.
+     * @return The thread factory.
+     * @throws UnsupportedOperationException if virtual threads aren't supported.
+     */
+    static ThreadFactory newThreadFactory(String namePrefix) {
+        if (!isSupported()) throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        try {
+            Object builder = OF_VIRTUAL.invoke();
+            builder = NAME.invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not create a virtual thread factory", e);
+        }
+    }
+
+    /**
+     * Creates an executor which runs each task on its own virtual thread, named with the given prefix followed by a counter.
+     *
+     * @param namePrefix The prefix of the names of the threads.
+     * @return The executor.
+     * @throws UnsupportedOperationException if virtual threads aren't supported.
+     */
+    static ExecutorService newExecutor(String namePrefix) {
+        ThreadFactory threadFactory = newThreadFactory(namePrefix);
+        try {
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(threadFactory);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+}
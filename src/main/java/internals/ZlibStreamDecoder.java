@@ -0,0 +1,95 @@
+package internals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the binary frames of a gateway connection using the `zlib-stream` transport compression.
+ * The whole connection is a single zlib stream, so one {@link Inflater} is kept for its lifetime. A message may span several frames,
+ * and is only complete once a frame ends with the Z_SYNC_FLUSH suffix (00 00 FF FF).
+ * The input and output buffers are reused between messages, and only grow when a larger message is received.
+ */
+class ZlibStreamDecoder {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * Compressed data received for the message currently being decoded.
+     */
+    private byte[] input = new byte[INITIAL_BUFFER_SIZE];
+    private int inputLength;
+
+    /**
+     * Decompressed data of the message currently being decoded.
+     */
+    private byte[] output = new byte[INITIAL_BUFFER_SIZE * 4];
+
+    /**
+     * Feeds a frame received from the gateway to the decoder.
+     *
+     * @param frame The binary frame, as received from the socket.
+     * @return The decoded message if this frame completes it, null if more frames are needed.
+     * @throws DataFormatException If the frame isn't a valid part of the zlib stream.
+     */
+    public String decode(ByteBuffer frame) throws DataFormatException {
+        int outputLength = inflate(frame);
+        return outputLength < 0 ? null : new String(output, 0, outputLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Feeds a frame of a connection using `encoding=etf` to the decoder, whose messages are binaries instead of text.
+     *
+     * @param frame The binary frame, as received from the socket.
+     * @return A copy of the decoded message if this frame completes it, which outlives the decoder, null if more frames are needed.
+     * @throws DataFormatException If the frame isn't a valid part of the zlib stream.
+     */
+    public ByteBuffer decodeBinary(ByteBuffer frame) throws DataFormatException {
+        int outputLength = inflate(frame);
+        return outputLength < 0 ? null : ByteBuffer.wrap(Arrays.copyOf(output, outputLength));
+    }
+
+    /**
+     * Buffers a frame, and inflates the message into the output buffer if the frame completes it.
+     *
+     * @return The length of the message, or -1 if more frames are needed.
+     */
+    private int inflate(ByteBuffer frame) throws DataFormatException {
+        int length = frame.remaining();
+        if (inputLength + length > input.length) {
+            input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + length));
+        }
+        frame.get(input, inputLength, length);
+        inputLength += length;
+        if (!endsWithSyncFlush()) return -1;
+
+        inflater.setInput(input, 0, inputLength);
+        int outputLength = 0;
+        // The inflater only leaves room in the output buffer once all the input has been consumed.
+        do {
+            if (outputLength == output.length) output = Arrays.copyOf(output, output.length * 2);
+            outputLength += inflater.inflate(output, outputLength, output.length - outputLength);
+        } while (outputLength == output.length);
+        inputLength = 0;
+        return outputLength;
+    }
+
+    private boolean endsWithSyncFlush() {
+        return inputLength >= 4
+                && input[inputLength - 4] == 0x00
+                && input[inputLength - 3] == 0x00
+                && input[inputLength - 2] == (byte) 0xFF
+                && input[inputLength - 1] == (byte) 0xFF;
+    }
+
+    /**
+     * Resets the decoder, which must be done whenever a new connection is opened, as each connection starts a new zlib stream.
+     */
+    public void reset() {
+        inflater.reset();
+        inputLength = 0;
+    }
+}
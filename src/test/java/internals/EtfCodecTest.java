@@ -0,0 +1,167 @@
+package internals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link EtfEncoder} and {@link EtfDecoder}, and of the reading of ETF payloads by {@link GatewayEnvelope}
+ * against the JSON reading of the same payloads.
+ */
+class EtfCodecTest {
+    private static final long GUILD_ID = 81384788765712384L;
+    private static final long CHANNEL_ID = 1103730435834564709L;
+
+    @Test
+    void roundTripsNestedMapsAndLists() {
+        JSONObject message = new JSONObject()
+                .put("op", 0)
+                .put("d", new JSONObject()
+                        .put("items", new JSONArray().put(1).put(new JSONObject().put("name", "admin")).put(new JSONArray()))
+                        .put("empty", new JSONObject())
+                        .put("nested", new JSONObject().put("list", new JSONArray().put(new JSONArray().put(2).put(3)))));
+        assertTrue(message.similar(roundTrip(message)));
+    }
+
+    @Test
+    void roundTripsAtoms() {
+        JSONObject message = new JSONObject().put("nil", JSONObject.NULL).put("yes", true).put("no", false);
+        JSONObject decoded = roundTrip(message);
+        assertSame(JSONObject.NULL, decoded.get("nil"));
+        assertEquals(Boolean.TRUE, decoded.get("yes"));
+        assertEquals(Boolean.FALSE, decoded.get("no"));
+    }
+
+    @Test
+    void roundTripsIntegersOfEverySize() {
+        long[] values = {0, 255, 256, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 32, -(1L << 40), GUILD_ID, CHANNEL_ID,
+                Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            Object decoded = roundTrip(new JSONObject().put("value", value)).get("value");
+            assertEquals(value, ((Number) decoded).longValue(), "value " + value);
+        }
+        BigInteger big = BigInteger.ONE.shiftLeft(64).add(BigInteger.TEN);
+        assertEquals(big, roundTrip(new JSONObject().put("value", big)).get("value"));
+    }
+
+    @Test
+    void decodesSnowflakesAsStrings() {
+        JSONObject decoded = roundTrip(new JSONObject()
+                .put("id", GUILD_ID)
+                .put("channel_id", CHANNEL_ID)
+                .put("owner_id", 42)
+                .put("roles", new JSONArray().put(GUILD_ID).put(new JSONObject().put("id", CHANNEL_ID).put("position", 3)))
+                .put("mention_roles", new JSONArray().put(CHANNEL_ID))
+                .put("activities", new JSONArray().put(new JSONObject().put("timestamps", new JSONObject().put("start", 1L << 40)))));
+        assertEquals(String.valueOf(GUILD_ID), decoded.getString("id"));
+        assertEquals(GUILD_ID, decoded.getLong("id"));
+        assertEquals(String.valueOf(CHANNEL_ID), decoded.getString("channel_id"));
+        assertEquals("42", decoded.getString("owner_id"));
+        assertEquals(String.valueOf(GUILD_ID), decoded.getJSONArray("roles").getString(0));
+        JSONObject role = decoded.getJSONArray("roles").getJSONObject(1);
+        assertEquals(String.valueOf(CHANNEL_ID), role.getString("id"));
+        assertEquals(3, role.get("position"));
+        assertEquals(String.valueOf(CHANNEL_ID), decoded.getJSONArray("mention_roles").getString(0));
+        // Other integers stay numbers, like in the JSON encoding.
+        assertEquals(1L << 40, decoded.getJSONArray("activities").getJSONObject(0).getJSONObject("timestamps").get("start"));
+    }
+
+    @Test
+    void roundTripsUtf8Binaries() {
+        String text = "h\u00e9llo w\u00f6rld \u2014 \u65e5\u672c\u8a9e \uD83D\uDC31";
+        JSONObject decoded = roundTrip(new JSONObject().put("content", text).put(text, ""));
+        assertEquals(text, decoded.getString("content"));
+        assertEquals("", decoded.getString(text));
+    }
+
+    @Test
+    void roundTripsFloats() {
+        assertEquals(0.25, roundTrip(new JSONObject().put("value", 0.25)).getDouble("value"));
+    }
+
+    @Test
+    void envelopeMatchesJson() {
+        JSONObject data = new JSONObject()
+                .put("id", String.valueOf(CHANNEL_ID))
+                .put("guild_id", String.valueOf(GUILD_ID))
+                .put("content", "a \"quoted\" {message}");
+        String json = new JSONObject().put("op", 0).put("s", 42).put("t", "MESSAGE_CREATE").put("d", data).toString();
+        JSONObject etfData = new JSONObject(data.toString()).put("id", CHANNEL_ID).put("guild_id", GUILD_ID);
+        ByteBuffer etf = EtfEncoder.encode(new JSONObject().put("op", 0).put("s", 42).put("t", "MESSAGE_CREATE").put("d", etfData));
+
+        GatewayEnvelope jsonEnvelope = new GatewayEnvelope();
+        jsonEnvelope.read(json);
+        GatewayEnvelope etfEnvelope = new GatewayEnvelope();
+        etfEnvelope.read(etf);
+        assertEquals(jsonEnvelope.getOpCode(), etfEnvelope.getOpCode());
+        assertEquals(jsonEnvelope.getSequenceNumber(), etfEnvelope.getSequenceNumber());
+        assertEquals(GatewayEventType.MESSAGE_CREATE, etfEnvelope.getEventType());
+        assertEquals(jsonEnvelope.getEventType(), etfEnvelope.getEventType());
+        JSONObject jsonData = jsonEnvelope.parseData();
+        JSONObject decodedData = etfEnvelope.parseData();
+        assertTrue(jsonData.similar(decodedData), decodedData.toString());
+        assertEquals(jsonData.getString("id"), decodedData.getString("id"));
+        assertEquals(jsonData.optString("guild_id"), decodedData.optString("guild_id"));
+
+        for (String key : new String[]{"guild_id", "id", "content", "missing"}) {
+            long fromJson = GatewayEnvelope.findSnowflake(json, jsonEnvelope.getDataStart(), key);
+            assertEquals(fromJson, GatewayEnvelope.findSnowflake(etf, etfEnvelope.getDataStart(), key), key);
+        }
+        assertEquals(GUILD_ID, GatewayEnvelope.findSnowflake(etf, etfEnvelope.getDataStart(), "guild_id"));
+    }
+
+    @Test
+    void envelopeReadsNilFields() {
+        ByteBuffer etf = EtfEncoder.encode(new JSONObject().put("op", 11).put("s", JSONObject.NULL).put("t", JSONObject.NULL)
+                .put("d", JSONObject.NULL));
+        GatewayEnvelope envelope = new GatewayEnvelope();
+        envelope.read(etf);
+        assertEquals(11, envelope.getOpCode());
+        assertEquals(-1, envelope.getSequenceNumber());
+        assertEquals(null, envelope.getEventType());
+        assertEquals(0, GatewayEnvelope.findSnowflake(etf, envelope.getDataStart(), "guild_id"));
+    }
+
+    @Test
+    void truncatedInputThrowsIllegalArgumentException() {
+        JSONObject data = new JSONObject().put("guild_id", GUILD_ID).put("name", "g\u00e9n\u00e9ral").put("flags", new JSONArray().put(1L << 40));
+        ByteBuffer message = EtfEncoder.encode(new JSONObject().put("op", 0).put("s", 3).put("t", "GUILD_UPDATE").put("d", data));
+        byte[] bytes = Arrays.copyOf(message.array(), message.limit());
+        GatewayEnvelope complete = new GatewayEnvelope();
+        complete.read(ByteBuffer.wrap(bytes));
+        int dataStart = complete.getDataStart();
+        for (int length = 0; length < bytes.length; length++) {
+            // Both a copy of the prefix, and a buffer whose backing array goes on past its limit.
+            for (ByteBuffer truncated : new ByteBuffer[]{ByteBuffer.wrap(Arrays.copyOf(bytes, length)), ByteBuffer.wrap(bytes, 0, length)}) {
+                assertThrows(IllegalArgumentException.class, () -> EtfDecoder.decode(truncated), "length " + length);
+                assertThrows(IllegalArgumentException.class, () -> new GatewayEnvelope().read(truncated), "length " + length);
+                assertThrows(IllegalArgumentException.class, () -> EtfDecoder.skip(truncated, 1), "length " + length);
+                try {
+                    assertEquals(GUILD_ID, GatewayEnvelope.findSnowflake(truncated, dataStart, "guild_id"), "length " + length);
+                } catch (IllegalArgumentException e) {
+                    // The field may have been cut off, which is reported as such.
+                }
+            }
+        }
+    }
+
+    @Test
+    void truncatedBinaryIsNotReadPastTheLimit() {
+        byte[] binary = {(byte) EtfDecoder.BINARY_EXT, 0, 0, 0, 5, 'h', 'e', 'l', 'l', 'o'};
+        assertEquals("hello", EtfDecoder.decode(ByteBuffer.wrap(binary), 0));
+        assertThrows(IllegalArgumentException.class, () -> EtfDecoder.decode(ByteBuffer.wrap(binary, 0, 7), 0));
+    }
+
+    private static JSONObject roundTrip(JSONObject message) {
+        return (JSONObject) EtfDecoder.decode(EtfEncoder.encode(message));
+    }
+}
@@ -0,0 +1,211 @@
+package internals;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link EventJournal}, writing JSON and ETF messages alternately to a journal in a temporary directory and replaying them.
+ */
+class EventJournalTest {
+    private static final long GUILD_ID = 81384788765712384L;
+    private static final int SEGMENT_SIZE = EventJournal.MIN_SEGMENT_SIZE;
+
+    @Test
+    void replaysMessagesOfATimeRange(@TempDir Path directory) throws Exception {
+        EventJournal journal = EventJournal.open(directory, SEGMENT_SIZE, 4);
+        long[] starts = new long[4];
+        long[] ends = new long[4];
+        int sequence = 0;
+        for (int batch = 0; batch < 4; batch++) {
+            // Each batch is written in its own milliseconds, so that the bounds of the range can be told apart.
+            Thread.sleep(5);
+            starts[batch] = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                append(journal, ++sequence, 100);
+            }
+            ends[batch] = System.currentTimeMillis();
+            Thread.sleep(5);
+        }
+        journal.close();
+
+        assertEquals(range(101, 300), replay(directory, starts[1], ends[2]));
+        assertEquals(range(1, 400), replay(directory, 0, Long.MAX_VALUE));
+        assertEquals(range(301, 400), replay(directory, starts[3], Long.MAX_VALUE));
+        assertEquals(List.of(), replay(directory, 0, starts[0] - 1));
+        assertEquals(List.of(), replay(directory, ends[3] + 1, Long.MAX_VALUE));
+    }
+
+    @Test
+    void replaysTheSameDataForBothEncodings(@TempDir Path directory) throws Exception {
+        EventJournal journal = EventJournal.open(directory, SEGMENT_SIZE, 4);
+        append(journal, 1, 10);
+        append(journal, 2, 10);
+        journal.close();
+
+        List<GatewayEvent> events = replayEvents(directory, 0, Long.MAX_VALUE);
+        assertEquals(2, events.size());
+        for (GatewayEvent event : events) {
+            assertEquals(GatewayEventType.MESSAGE_CREATE, event.getType());
+            assertEquals(GUILD_ID, event.getGuildId());
+            JSONObject data = event.getData();
+            assertEquals(String.valueOf(messageId(event.getSequenceNumber())), data.getString("id"));
+            assertEquals(String.valueOf(GUILD_ID), data.getString("guild_id"));
+            assertEquals(content(event.getSequenceNumber(), 10), data.getString("content"));
+        }
+    }
+
+    @Test
+    void rotatesSegmentsAndDeletesTheOldest(@TempDir Path directory) throws Exception {
+        EventJournal journal = EventJournal.open(directory, SEGMENT_SIZE, 2);
+        // About 4 segments of messages of a kilobyte.
+        int count = 4000;
+        for (int sequence = 1; sequence <= count; sequence++) {
+            append(journal, sequence, 1000);
+        }
+        journal.close();
+
+        assertEquals(2, segments(directory).size());
+        List<Integer> kept = replay(directory, 0, Long.MAX_VALUE);
+        assertTrue(kept.size() > SEGMENT_SIZE / 1100 && kept.size() < count, "kept " + kept.size());
+        assertEquals(range(count - kept.size() + 1, count), kept);
+
+        // A reopened journal writes to a new segment following the existing ones.
+        EventJournal reopened = EventJournal.open(directory, SEGMENT_SIZE, 2);
+        append(reopened, count + 1, 1000);
+        reopened.close();
+        assertEquals(2, segments(directory).size());
+        List<Integer> afterReopening = replay(directory, 0, Long.MAX_VALUE);
+        assertEquals(count + 1, afterReopening.get(afterReopening.size() - 1));
+        assertEquals(range(afterReopening.get(0), count + 1), afterReopening);
+    }
+
+    @Test
+    void findsRecordsWithTheSparseIndex(@TempDir Path directory) throws Exception {
+        EventJournal journal = EventJournal.open(directory, SEGMENT_SIZE, 4);
+        long[] starts = new long[10];
+        int sequence = 0;
+        for (int batch = 0; batch < starts.length; batch++) {
+            Thread.sleep(5);
+            starts[batch] = System.currentTimeMillis();
+            for (int i = 0; i < 50; i++) {
+                append(journal, ++sequence, 500);
+            }
+            Thread.sleep(5);
+        }
+        journal.close();
+
+        List<Path> segments = segments(directory);
+        assertEquals(1, segments.size());
+        try (FileChannel channel = FileChannel.open(segments.get(0), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int first = EventJournal.findRecord(buffer, Long.MIN_VALUE);
+            int previous = first;
+            for (int batch = 1; batch < starts.length; batch++) {
+                int offset = EventJournal.findRecord(buffer, starts[batch]);
+                // The index skips the records of the earlier batches, but never past the first record of the range.
+                assertTrue(offset > previous, "batch " + batch);
+                previous = offset;
+                assertEquals(range(batch * 50 + 1, sequence), replay(directory, starts[batch], Long.MAX_VALUE), "batch " + batch);
+            }
+            assertTrue(EventJournal.findRecord(buffer, Long.MAX_VALUE) >= previous);
+        }
+    }
+
+    @Test
+    void skipsAPartialLastRecord(@TempDir Path directory) throws Exception {
+        EventJournal journal = EventJournal.open(directory, SEGMENT_SIZE, 4);
+        for (int sequence = 1; sequence <= 20; sequence++) {
+            append(journal, sequence, 100);
+        }
+        journal.close();
+
+        // Cuts the file in the middle of the last message, as a copy made while it was being written would be.
+        Path segment = segments(directory).get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) end--;
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(end - 20);
+        }
+        assertEquals(range(1, 19), replay(directory, 0, Long.MAX_VALUE));
+    }
+
+    /**
+     * Appends a MESSAGE_CREATE, as JSON text for odd sequence numbers and as ETF for even ones, with snowflakes as integers
+     * like Discord sends them.
+     */
+    private static void append(EventJournal journal, int sequence, int contentLength) {
+        JSONObject data = new JSONObject().put("content", content(sequence, contentLength));
+        JSONObject message = new JSONObject().put("op", 0).put("s", sequence).put("t", "MESSAGE_CREATE").put("d", data);
+        if (sequence % 2 == 1) {
+            data.put("id", String.valueOf(messageId(sequence))).put("guild_id", String.valueOf(GUILD_ID));
+            journal.append(0, GatewayEventType.MESSAGE_CREATE, sequence, message.toString());
+        } else {
+            data.put("id", messageId(sequence)).put("guild_id", GUILD_ID);
+            journal.append(0, GatewayEventType.MESSAGE_CREATE, sequence, EtfEncoder.encode(message));
+        }
+    }
+
+    private static long messageId(int sequence) {
+        return 1103730435834564709L + sequence;
+    }
+
+    private static String content(int sequence, int length) {
+        StringBuilder content = new StringBuilder("message ").append(sequence).append(' ');
+        while (content.length() < length) content.append('x');
+        return content.toString();
+    }
+
+    private static List<Integer> replay(Path directory, long from, long to) throws IOException {
+        List<Integer> sequences = new ArrayList<>();
+        for (GatewayEvent event : replayEvents(directory, from, to)) {
+            sequences.add(event.getSequenceNumber());
+            assertEquals(content(event.getSequenceNumber(), event.getData().getString("content").length()),
+                    event.getData().getString("content"));
+        }
+        return sequences;
+    }
+
+    /**
+     * Replays a journal through a dispatcher with a single lane, so that the events are received in the order they were replayed.
+     */
+    private static List<GatewayEvent> replayEvents(Path directory, long from, long to) throws IOException {
+        List<GatewayEvent> events = Collections.synchronizedList(new ArrayList<>());
+        EventDispatcher dispatcher = new EventDispatcher(1, 8192);
+        dispatcher.register(GatewayEventType.MESSAGE_CREATE, events::add);
+        long replayed = EventJournal.replay(directory, from, to, dispatcher);
+        dispatcher.shutdown();
+        assertEquals(replayed, events.size());
+        return new ArrayList<>(events);
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".journal")).sorted().toList();
+        }
+    }
+
+    private static List<Integer> range(int first, int last) {
+        List<Integer> range = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            range.add(i);
+        }
+        return range;
+    }
+}
@@ -0,0 +1,368 @@
+package internals;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * A local server speaking the Discord gateway protocol, for running CuteCord without a token or network access.
+ * It sends HELLO on connection, answers IDENTIFY with READY and RESUME with RESUMED, acknowledges heartbeats, and dispatches
+ * whatever events the test asks it to. Member requests are answered with chunks of generated members, as many as set through
+ * {@link FakeGateway#setGuildMemberCount(int)} for every guild.
+ * Connections asking for `compress=zlib-stream` get their messages as a zlib stream, and connections asking for `encoding=etf`
+ * get them as ETF binaries, with snowflakes as integers like Discord sends them.
+ * Sessions are kept when a connection closes, so that resuming them works, and sequence numbers continue where they stopped.
+ */
+public class FakeGateway extends WebSocketServer {
+    private static final int OP_DISPATCH = 0;
+    private static final int OP_HEARTBEAT = 1;
+    private static final int OP_IDENTIFY = 2;
+    private static final int OP_RESUME = 6;
+    private static final int OP_REQUEST_GUILD_MEMBERS = 8;
+    private static final int OP_INVALID_SESSION = 9;
+    private static final int OP_HELLO = 10;
+    private static final int OP_HEARTBEAT_ACK = 11;
+
+    /**
+     * The maximum number of members in a GUILD_MEMBERS_CHUNK event, as sent by Discord.
+     */
+    private static final int CHUNK_SIZE = 1000;
+
+    private final long heartbeatInterval;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * The session of each connection, once it has identified or resumed.
+     */
+    private final Map<WebSocket, Session> connections = new ConcurrentHashMap<>();
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final AtomicInteger identifies = new AtomicInteger();
+    private final AtomicInteger resumes = new AtomicInteger();
+    private final AtomicInteger heartbeats = new AtomicInteger();
+    private volatile boolean acknowledgeHeartbeats = true;
+    private volatile int guildMemberCount;
+
+    /**
+     * Instantiates a new FakeGateway. The server doesn't listen until {@link FakeGateway#startAndWait()} is called.
+     *
+     * @param port              The local port to listen on, 0 to pick a free one.
+     * @param heartbeatInterval The heartbeat interval sent in HELLO, in milliseconds.
+     */
+    public FakeGateway(int port, long heartbeatInterval) {
+        super(new InetSocketAddress("127.0.0.1", port));
+        this.heartbeatInterval = heartbeatInterval;
+        setReuseAddr(true);
+    }
+
+    /**
+     * Starts the server, and waits for it to listen.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void startAndWait() throws InterruptedException {
+        start();
+        if (!started.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("The fake gateway didn't start");
+    }
+
+    /**
+     * Gets the url of the gateway, as returned by `/gateway/bot`.
+     *
+     * @return The url of the gateway.
+     */
+    public String getUrl() {
+        return "ws://127.0.0.1:" + getPort();
+    }
+
+    @Override
+    public void onStart() {
+        started.countDown();
+    }
+
+    @Override
+    public void onOpen(WebSocket connection, ClientHandshake handshake) {
+        String resource = handshake.getResourceDescriptor();
+        connection.setAttachment(new Encoding(resource.contains("compress=zlib-stream") ? new Deflater() : null,
+                resource.contains("encoding=etf")));
+        send(connection, new JSONObject().put("op", OP_HELLO).put("s", JSONObject.NULL).put("t", JSONObject.NULL)
+                .put("d", new JSONObject().put("heartbeat_interval", heartbeatInterval)).toString());
+    }
+
+    @Override
+    public void onMessage(WebSocket connection, String message) {
+        onPayload(connection, new JSONObject(message));
+    }
+
+    @Override
+    public void onMessage(WebSocket connection, ByteBuffer message) {
+        onPayload(connection, (JSONObject) EtfDecoder.decode(message));
+    }
+
+    private void onPayload(WebSocket connection, JSONObject payload) {
+        switch (payload.getInt("op")) {
+            case OP_HEARTBEAT -> {
+                heartbeats.incrementAndGet();
+                if (acknowledgeHeartbeats) send(connection, "{\"op\":" + OP_HEARTBEAT_ACK + ",\"s\":null,\"t\":null,\"d\":null}");
+            }
+            case OP_IDENTIFY -> {
+                identifies.incrementAndGet();
+                JSONObject data = payload.getJSONObject("d");
+                JSONArray shard = data.optJSONArray("shard");
+                Session session = new Session(UUID.randomUUID().toString().replace("-", ""),
+                        shard == null ? 0 : shard.getInt(0), shard == null ? 1 : shard.getInt(1));
+                sessions.put(session.id, session);
+                connections.put(connection, session);
+                dispatch(connection, session, "READY", new JSONObject()
+                        .put("v", 9)
+                        .put("user", new JSONObject().put("id", "100000000000000000").put("username", "CuteCord").put("bot", true))
+                        .put("guilds", new JSONArray())
+                        .put("session_id", session.id)
+                        .put("resume_gateway_url", getUrl())
+                        .put("shard", new JSONArray().put(session.shardId).put(session.shardCount))
+                        .put("application", new JSONObject().put("id", "100000000000000000")).toString());
+            }
+            case OP_RESUME -> {
+                Session session = sessions.get(payload.getJSONObject("d").getString("session_id"));
+                if (session == null) {
+                    send(connection, "{\"op\":" + OP_INVALID_SESSION + ",\"s\":null,\"t\":null,\"d\":false}");
+                    return;
+                }
+                resumes.incrementAndGet();
+                connections.put(connection, session);
+                dispatch(connection, session, "RESUMED", "{}");
+            }
+            case OP_REQUEST_GUILD_MEMBERS -> {
+                Session session = connections.get(connection);
+                if (session != null) sendMemberChunks(connection, session, payload.getJSONObject("d"));
+            }
+            default -> {}
+        }
+    }
+
+    @Override
+    public void onClose(WebSocket connection, int code, String reason, boolean remote) {
+        connections.remove(connection);
+        Encoding encoding = connection.getAttachment();
+        if (encoding != null && encoding.deflater != null) encoding.deflater.end();
+    }
+
+    @Override
+    public void onError(WebSocket connection, Exception ex) {
+        ex.printStackTrace();
+    }
+
+    /**
+     * Dispatches an event to every connection which has identified or resumed.
+     *
+     * @param type The type of the event, such as `MESSAGE_CREATE`.
+     * @param data The data of the event, as JSON.
+     * @return The number of connections the event was sent to.
+     */
+    public int dispatch(String type, String data) {
+        int sent = 0;
+        for (Map.Entry<WebSocket, Session> entry : connections.entrySet()) {
+            if (dispatch(entry.getKey(), entry.getValue(), type, data)) sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Dispatches an event to the connection of a shard.
+     *
+     * @param shardId The id of the shard.
+     * @param type    The type of the event, such as `MESSAGE_CREATE`.
+     * @param data    The data of the event, as JSON.
+     * @return true if the shard is connected and the event was sent, false otherwise.
+     */
+    public boolean dispatch(int shardId, String type, String data) {
+        for (Map.Entry<WebSocket, Session> entry : connections.entrySet()) {
+            if (entry.getValue().shardId == shardId) return dispatch(entry.getKey(), entry.getValue(), type, data);
+        }
+        return false;
+    }
+
+    /**
+     * Answers a member request with GUILD_MEMBERS_CHUNK events, whose members have the ids following the id of the guild.
+     */
+    private void sendMemberChunks(WebSocket connection, Session session, JSONObject request) {
+        long guildId = request.getLong("guild_id");
+        int members = guildMemberCount;
+        int chunkCount = Math.max(1, (members + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+            StringBuilder chunk = new StringBuilder("{\"guild_id\":\"").append(guildId).append("\",\"members\":[");
+            for (int i = chunkIndex * CHUNK_SIZE; i < Math.min(members, (chunkIndex + 1) * CHUNK_SIZE); i++) {
+                if (i > chunkIndex * CHUNK_SIZE) chunk.append(',');
+                long userId = guildId + 1 + i;
+                chunk.append("{\"user\":{\"id\":\"").append(userId).append("\",\"username\":\"member").append(i)
+                        .append("\",\"avatar\":null,\"discriminator\":\"0\"},\"roles\":[],\"nick\":null,")
+                        .append("\"joined_at\":\"2022-06-01T18:21:03.555000+00:00\",\"deaf\":false,\"mute\":false}");
+            }
+            chunk.append("],\"chunk_index\":").append(chunkIndex).append(",\"chunk_count\":").append(chunkCount);
+            if (request.has("nonce")) chunk.append(",\"nonce\":").append(JSONObject.quote(request.getString("nonce")));
+            chunk.append('}');
+            dispatch(connection, session, "GUILD_MEMBERS_CHUNK", chunk.toString());
+        }
+    }
+
+    private boolean dispatch(WebSocket connection, Session session, String type, String data) {
+        // Sequence numbers of a session must be sent in order, even if several threads dispatch at once.
+        synchronized (session) {
+            int sequenceNumber = ++session.sequenceNumber;
+            return send(connection, "{\"op\":" + OP_DISPATCH + ",\"s\":" + sequenceNumber + ",\"t\":\"" + type + "\",\"d\":" + data + "}");
+        }
+    }
+
+    private boolean send(WebSocket connection, String message) {
+        if (!connection.isOpen()) return false;
+        Encoding encoding = connection.getAttachment();
+        ByteBuffer etfMessage = encoding.etf ? EtfEncoder.encode((JSONObject) toEtfTerm(new JSONObject(message))) : null;
+        Deflater deflater = encoding.deflater;
+        if (deflater == null) {
+            if (etfMessage != null) {
+                connection.send(etfMessage);
+            } else {
+                connection.send(message);
+            }
+            return true;
+        }
+        byte[] bytes;
+        if (etfMessage != null) {
+            bytes = new byte[etfMessage.remaining()];
+            etfMessage.get(bytes);
+        } else {
+            bytes = message.getBytes(StandardCharsets.UTF_8);
+        }
+        // Each message of a zlib stream ends with a sync flush, which is what the client waits for to decode it.
+        synchronized (deflater) {
+            deflater.setInput(bytes);
+            byte[] buffer = new byte[Math.max(64, bytes.length + 64)];
+            int length = 0;
+            while (true) {
+                length += deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+                if (length < buffer.length) break;
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            connection.send(ByteBuffer.wrap(buffer, 0, length));
+        }
+        return true;
+    }
+
+    /**
+     * Converts the snowflakes of a JSON value to longs, as Discord sends them as integers with `encoding=etf`.
+     */
+    private static Object toEtfTerm(Object value) {
+        if (value instanceof JSONObject object) {
+            for (String key : object.keySet()) {
+                object.put(key, toEtfTerm(object.get(key)));
+            }
+        } else if (value instanceof JSONArray array) {
+            for (int i = 0; i < array.length(); i++) {
+                array.put(i, toEtfTerm(array.get(i)));
+            }
+        } else if (value instanceof String string && isSnowflake(string)) {
+            return Long.parseLong(string);
+        }
+        return value;
+    }
+
+    private static boolean isSnowflake(String value) {
+        if (value.length() < 15 || value.length() > 19) return false;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the connections of all shards with the given close code, as Discord does when it restarts a gateway node.
+     *
+     * @param code The close code.
+     */
+    public void closeConnections(int code) {
+        for (WebSocket connection : getConnections()) {
+            connection.close(code, "Closed by the fake gateway");
+        }
+    }
+
+    /**
+     * Stops acknowledging heartbeats, or starts again, so that the connections become zombies.
+     *
+     * @param acknowledgeHeartbeats Whether heartbeats are acknowledged.
+     */
+    public void setAcknowledgeHeartbeats(boolean acknowledgeHeartbeats) {
+        this.acknowledgeHeartbeats = acknowledgeHeartbeats;
+    }
+
+    /**
+     * Sets the number of members of every guild, sent in answer to member requests.
+     *
+     * @param guildMemberCount The number of members.
+     */
+    public void setGuildMemberCount(int guildMemberCount) {
+        this.guildMemberCount = guildMemberCount;
+    }
+
+    /**
+     * Gets the number of shards which have identified or resumed, and are still connected.
+     *
+     * @return The number of ready shards.
+     */
+    public int getReadyShards() {
+        return connections.size();
+    }
+
+    public int getIdentifies() {
+        return identifies.get();
+    }
+
+    public int getResumes() {
+        return resumes.get();
+    }
+
+    public int getHeartbeats() {
+        return heartbeats.get();
+    }
+
+    /**
+     * The encoding a connection asked for in its url.
+     */
+    private static class Encoding {
+        /**
+         * The zlib stream of the connection, or null if it isn't compressed.
+         */
+        private final Deflater deflater;
+        private final boolean etf;
+
+        private Encoding(Deflater deflater, boolean etf) {
+            this.deflater = deflater;
+            this.etf = etf;
+        }
+    }
+
+    private static class Session {
+        private final String id;
+        private final int shardId;
+        private final int shardCount;
+        private int sequenceNumber;
+
+        private Session(String id, int shardId, int shardCount) {
+            this.id = id;
+            this.shardId = shardId;
+            this.shardCount = shardCount;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package internals;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local server answering like the Discord REST API, for running CuteCord without a token or network access.
+ * `/gateway/bot` points at a {@link FakeGateway}, `/auth/login` always succeeds, and every other request is answered with an empty
+ * object, or the body of the request, under rate limits enforced like Discord does: each route has its own bucket of requests
+ * per window, described by the `X-RateLimit-*` headers, and all routes share a global limit per second.
+ * Requests over a limit are answered with a 429 and a `Retry-After` header, and counted, so that a test can check the client never goes over.
+ */
+public class FakeRestServer implements AutoCloseable {
+    public static final String API_PATH = "/api/v9";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String gatewayUrl;
+    private final int shardCount;
+    private final int bucketLimit;
+    private final long bucketWindow;
+    private final int globalLimit;
+    private final long latency;
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Bucket globalBucket;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rateLimited = new AtomicInteger();
+    private final AtomicInteger globallyRateLimited = new AtomicInteger();
+
+    /**
+     * Starts a FakeRestServer.
+     *
+     * @param port         The local port to listen on, 0 to pick a free one.
+     * @param gatewayUrl   The url of the gateway returned by `/gateway/bot`.
+     * @param shardCount   The number of shards recommended by `/gateway/bot`.
+     * @param bucketLimit  The number of requests allowed per route in each window.
+     * @param bucketWindow The duration of the window of each route, in milliseconds.
+     * @param globalLimit  The number of requests allowed per second for all routes.
+     * @param latency      The time taken to answer each request, in milliseconds.
+     * @throws IOException if the port can't be bound.
+     */
+    public FakeRestServer(int port, String gatewayUrl, int shardCount, int bucketLimit, long bucketWindow, int globalLimit, long latency) throws IOException {
+        this.gatewayUrl = gatewayUrl;
+        this.shardCount = shardCount;
+        this.bucketLimit = bucketLimit;
+        this.bucketWindow = bucketWindow;
+        this.globalLimit = globalLimit;
+        this.latency = latency;
+        this.globalBucket = new Bucket("global");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext(API_PATH, this::handle);
+        executor = Executors.newFixedThreadPool(16);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Gets the url to set in the `api_base_url` field of the configuration.
+     *
+     * @return The base url of the API.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + API_PATH;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            if (latency > 0) Thread.sleep(latency);
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath().substring(API_PATH.length());
+            if (path.equals("/gateway/bot")) {
+                respond(exchange, 200, new JSONObject()
+                        .put("url", gatewayUrl)
+                        .put("shards", shardCount)
+                        .put("session_start_limit", new JSONObject()
+                                .put("total", 1000).put("remaining", 1000).put("reset_after", 86400000).put("max_concurrency", 16))
+                        .toString());
+                return;
+            }
+            if (path.equals("/auth/login")) {
+                respond(exchange, 200, "{}");
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long globalWait = globalBucket.take(now, globalLimit, 1000);
+            if (globalWait > 0) {
+                globallyRateLimited.incrementAndGet();
+                exchange.getResponseHeaders().set("X-RateLimit-Global", "true");
+                exchange.getResponseHeaders().set("X-RateLimit-Scope", "global");
+                tooManyRequests(exchange, globalWait, true);
+                return;
+            }
+            String route = method + " " + path;
+            Bucket bucket = buckets.computeIfAbsent(route, Bucket::new);
+            long wait = bucket.take(now, bucketLimit, bucketWindow);
+            bucket.setHeaders(exchange, now, bucketLimit);
+            if (wait > 0) {
+                rateLimited.incrementAndGet();
+                exchange.getResponseHeaders().set("X-RateLimit-Scope", "user");
+                tooManyRequests(exchange, wait, false);
+                return;
+            }
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            respond(exchange, 200, body.length == 0 ? "{}" : new String(body, StandardCharsets.UTF_8));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void tooManyRequests(HttpExchange exchange, long wait, boolean global) throws IOException {
+        double retryAfter = wait / 1000.0;
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+        respond(exchange, 429, new JSONObject()
+                .put("message", "You are being rate limited.")
+                .put("retry_after", retryAfter)
+                .put("global", global).toString());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(bytes);
+        }
+    }
+
+    /**
+     * Gets the number of requests received, including the rate limited ones.
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of requests answered with a 429 because the limit of their route was reached.
+     */
+    public int getRateLimited() {
+        return rateLimited.get();
+    }
+
+    /**
+     * Gets the number of requests answered with a 429 because the global limit was reached.
+     */
+    public int getGloballyRateLimited() {
+        return globallyRateLimited.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * A fixed window of requests.
+     */
+    private static class Bucket {
+        private final String hash;
+        private long resetAt;
+        private int remaining;
+
+        private Bucket(String route) {
+            this.hash = Integer.toHexString(route.hashCode());
+        }
+
+        /**
+         * Takes a request from the window, starting a new window if the previous one is over.
+         *
+         * @return 0 if the request is allowed, otherwise the time until the window is over, in milliseconds.
+         */
+        private synchronized long take(long now, int limit, long window) {
+            if (now >= resetAt) {
+                resetAt = now + window;
+                remaining = limit;
+            }
+            if (remaining == 0) return resetAt - now;
+            remaining--;
+            return 0;
+        }
+
+        private synchronized void setHeaders(HttpExchange exchange, long now, int limit) {
+            exchange.getResponseHeaders().set("X-RateLimit-Limit", String.valueOf(limit));
+            exchange.getResponseHeaders().set("X-RateLimit-Remaining", String.valueOf(remaining));
+            exchange.getResponseHeaders().set("X-RateLimit-Reset", String.valueOf(resetAt / 1000.0));
+            exchange.getResponseHeaders().set("X-RateLimit-Reset-After", String.valueOf(Math.max(0, resetAt - now) / 1000.0));
+            exchange.getResponseHeaders().set("X-RateLimit-Bucket", hash);
+        }
+    }
+}
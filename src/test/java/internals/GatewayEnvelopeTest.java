@@ -0,0 +1,126 @@
+package internals;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the scanner reading the envelope of JSON gateway payloads, each payload being checked against its parsing by org.json.
+ */
+class GatewayEnvelopeTest {
+    private static final String[] KEYS = {"guild_id", "id", "content", "missing"};
+
+    @Test
+    void readsDispatch() {
+        assertMatchesJson("{\"op\":0,\"s\":42,\"t\":\"MESSAGE_CREATE\",\"d\":{\"id\":\"1103730435834564709\","
+                + "\"guild_id\":\"81384788765712384\",\"content\":\"hello\"}}");
+    }
+
+    @Test
+    void readsReorderedKeysAndWhitespace() {
+        assertMatchesJson("{\"d\":{\"guild_id\":\"81384788765712384\",\"id\":\"42\"},\"t\":\"GUILD_UPDATE\",\"s\":7,\"op\":0}");
+        assertMatchesJson(" \n{ \"t\" : \"MESSAGE_DELETE\" ,\t\"d\" :\r\n { \"id\" : \"5\" , \"guild_id\" : 81384788765712384 } ,"
+                + " \"op\" : 0 , \"s\" : 12 }\n");
+    }
+
+    @Test
+    void readsNullSequenceAndType() {
+        assertMatchesJson("{\"op\":11,\"s\":null,\"t\":null,\"d\":null}");
+        assertMatchesJson("{\"t\":null,\"s\":null,\"op\":10,\"d\":{\"heartbeat_interval\":41250}}");
+    }
+
+    @Test
+    void skipsEscapedQuotesAndBracesInStrings() {
+        assertMatchesJson("{\"op\":0,\"s\":3,\"t\":\"MESSAGE_CREATE\",\"d\":{\"content\":\"say \\\"}\\\" and {[\\\\\",\"embeds\":"
+                + "[{\"title\":\"]}{\"}],\"guild_id\":\"81384788765712384\",\"id\":\"9\"}}");
+        assertMatchesJson("{\"op\":0,\"s\":4,\"t\":\"MESSAGE_CREATE\",\"d\":{\"content\":\"\\\\\",\"guild_id\":\"1\"}}");
+    }
+
+    @Test
+    void readsNestedFieldsOnlyAtTheTopLevelOfData() {
+        String payload = "{\"op\":0,\"s\":5,\"t\":\"GUILD_MEMBER_UPDATE\",\"d\":{\"user\":{\"id\":\"77\",\"guild_id\":\"88\"},"
+                + "\"guild_id\":\"81384788765712384\"}}";
+        assertMatchesJson(payload);
+        GatewayEnvelope envelope = new GatewayEnvelope();
+        envelope.read(payload);
+        assertEquals(0, GatewayEnvelope.findSnowflake(payload, envelope.getDataStart(), "id"));
+    }
+
+    @Test
+    void readsPayloadWithoutData() {
+        assertMatchesJson("{\"op\":1}");
+        assertMatchesJson("{\"s\":2,\"op\":0,\"t\":\"RESUMED\"}");
+        assertMatchesJson("{}");
+    }
+
+    @Test
+    void readsNullOrAbsentGuildId() {
+        assertMatchesJson("{\"op\":0,\"s\":6,\"t\":\"MESSAGE_CREATE\",\"d\":{\"id\":\"10\",\"guild_id\":null,\"content\":\"dm\"}}");
+        assertMatchesJson("{\"op\":0,\"s\":7,\"t\":\"MESSAGE_CREATE\",\"d\":{\"id\":\"10\",\"content\":\"dm\"}}");
+        assertMatchesJson("{\"op\":0,\"s\":8,\"t\":\"CHANNEL_DELETE\",\"d\":{}}");
+    }
+
+    @Test
+    void readsUnknownEventType() {
+        assertMatchesJson("{\"op\":0,\"s\":9,\"t\":\"SOMETHING_NEW\",\"d\":{\"guild_id\":\"3\"}}");
+    }
+
+    @Test
+    void truncatedFramesThrowIllegalArgumentException() {
+        String payload = "{\"op\":0,\"s\":42,\"t\":\"MESSAGE_CREATE\",\"d\":{\"content\":\"a \\\"b\\\" {c}\",\"guild_id\":\"81384788765712384\"}}";
+        GatewayEnvelope complete = new GatewayEnvelope();
+        complete.read(payload);
+        for (int length = 0; length < payload.length(); length++) {
+            String truncated = payload.substring(0, length);
+            assertThrows(IllegalArgumentException.class, () -> new GatewayEnvelope().read(truncated), truncated);
+            if (length <= complete.getDataStart()) continue;
+            try {
+                long guildId = GatewayEnvelope.findSnowflake(truncated, complete.getDataStart(), "guild_id");
+                // A frame cut off within or before the field doesn't give a wrong id, only none.
+                assertTrue(guildId == 0 || guildId == 81384788765712384L, truncated);
+            } catch (IllegalArgumentException e) {
+                // Reported as malformed.
+            }
+        }
+    }
+
+    @Test
+    void rejectsPayloadsWhichArentObjects() {
+        assertThrows(IllegalArgumentException.class, () -> new GatewayEnvelope().read("[1,2]"));
+        assertThrows(IllegalArgumentException.class, () -> new GatewayEnvelope().read("{\"op\" 1}"));
+    }
+
+    /**
+     * Checks the envelope read by the scanner, and the snowflakes it finds in `d`, against the payload parsed by org.json.
+     */
+    private static void assertMatchesJson(String payload) {
+        JSONObject expected = new JSONObject(payload);
+        GatewayEnvelope envelope = new GatewayEnvelope();
+        envelope.read(payload);
+
+        assertEquals(expected.optInt("op", -1), envelope.getOpCode(), "op");
+        assertEquals(expected.isNull("s") ? -1 : expected.getInt("s"), envelope.getSequenceNumber(), "s");
+        assertEquals(expected.isNull("t") ? null : GatewayEventType.fromName(expected.getString("t")), envelope.getEventType(), "t");
+        if (!expected.has("d")) {
+            assertEquals(-1, envelope.getDataStart(), "d start");
+            assertEquals(-1, envelope.getDataEnd(), "d end");
+            return;
+        }
+        Object data = expected.get("d");
+        String rawData = payload.substring(envelope.getDataStart(), envelope.getDataEnd());
+        if (data instanceof JSONObject object) {
+            assertTrue(object.similar(new JSONObject(rawData)), "d bounds: " + rawData);
+        } else {
+            assertEquals(JSONObject.valueToString(data), rawData, "d bounds");
+        }
+
+        for (String key : KEYS) {
+            long snowflake = data instanceof JSONObject object && !object.isNull(key) && object.get(key).toString().matches("\\d+")
+                    ? Long.parseLong(object.get(key).toString()) : 0;
+            assertEquals(snowflake, GatewayEnvelope.findSnowflake(payload, envelope.getDataStart(), key), key);
+        }
+    }
+}
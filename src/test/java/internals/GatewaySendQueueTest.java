@@ -0,0 +1,129 @@
+package internals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests of {@link GatewaySendQueue}: the window of 120 messages with its slots reserved for priority messages, the holding of
+ * normal messages until the session is established, and the wake-ups of the writer when messages race with it.
+ */
+class GatewaySendQueueTest {
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    void stopScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void holdsNormalMessagesUntilReleased() throws Exception {
+        GatewaySendQueue<String> queue = new GatewaySendQueue<>(scheduler, written::add);
+        CompletableFuture<Void> request = queue.submit("request", false);
+        queue.submit("identify", true).get(1, TimeUnit.SECONDS);
+        Thread.sleep(50);
+        assertFalse(request.isDone());
+        assertEquals(List.of("identify"), written);
+
+        queue.release();
+        request.get(1, TimeUnit.SECONDS);
+        assertEquals(List.of("identify", "request"), written);
+    }
+
+    @Test
+    void holdsNormalMessagesAgainAfterReconnecting() throws Exception {
+        GatewaySendQueue<String> queue = new GatewaySendQueue<>(scheduler, written::add);
+        queue.release();
+        queue.submit("before", false).get(1, TimeUnit.SECONDS);
+        queue.hold();
+        CompletableFuture<Void> request = queue.submit("request", false);
+        queue.submit("resume", true).get(1, TimeUnit.SECONDS);
+        Thread.sleep(50);
+        assertFalse(request.isDone());
+
+        queue.release();
+        request.get(1, TimeUnit.SECONDS);
+        assertEquals(List.of("before", "resume", "request"), written);
+    }
+
+    @Test
+    void reservesSlotsOfTheWindowForPriorityMessages() throws Exception {
+        GatewaySendQueue<String> queue = new GatewaySendQueue<>(scheduler, written::add);
+        queue.release();
+        List<CompletableFuture<Void>> normal = new ArrayList<>();
+        for (int i = 0; i < 115; i++) {
+            normal.add(queue.submit("normal", false));
+        }
+        for (int i = 0; i < 110; i++) {
+            normal.get(i).get(1, TimeUnit.SECONDS);
+        }
+        Thread.sleep(50);
+        assertEquals(110, written.size());
+        assertFalse(normal.get(110).isDone());
+
+        for (int i = 0; i < 10; i++) {
+            queue.submit("heartbeat", true).get(1, TimeUnit.SECONDS);
+        }
+        assertEquals(120, written.size());
+        CompletableFuture<Void> overLimit = queue.submit("heartbeat", true);
+        Thread.sleep(50);
+        assertFalse(overLimit.isDone());
+        assertEquals(6, queue.size());
+    }
+
+    @Test
+    void priorityMessageRacingWithTheWriterIsNotDelayed() throws Exception {
+        for (int attempt = 0; attempt < 500; attempt++) {
+            GatewaySendQueue<String> queue = new GatewaySendQueue<>(scheduler, message -> {});
+            queue.release();
+            for (int i = 0; i < 110; i++) {
+                queue.submit("normal", false).get(1, TimeUnit.SECONDS);
+            }
+            CountDownLatch start = new CountDownLatch(1);
+            CompletableFuture<CompletableFuture<Void>> heartbeat = CompletableFuture.supplyAsync(() -> {
+                await(start);
+                return queue.submit("heartbeat", true);
+            });
+            start.countDown();
+            // Makes the writer wait for a normal slot of the window while the heartbeat is being submitted.
+            queue.submit("normal", false);
+            heartbeat.get(1, TimeUnit.SECONDS).get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void releaseRacingWithTheWriterIsNotLost() throws Exception {
+        for (int attempt = 0; attempt < 500; attempt++) {
+            GatewaySendQueue<String> queue = new GatewaySendQueue<>(scheduler, message -> {});
+            CountDownLatch start = new CountDownLatch(1);
+            CompletableFuture<Void> release = CompletableFuture.runAsync(() -> {
+                await(start);
+                queue.release();
+            });
+            start.countDown();
+            CompletableFuture<Void> request = queue.submit("request", false);
+            release.get(1, TimeUnit.SECONDS);
+            request.get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
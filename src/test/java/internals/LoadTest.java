@@ -0,0 +1,150 @@
+package internals;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs CuteCord against a {@link FakeGateway} and a {@link FakeRestServer}, dispatching MESSAGE_CREATE events at a steady rate to all
+ * shards, and optionally sending messages through the REST API at the same time. Every event carries the time it was dispatched at,
+ * so the listener measures the latency from the fake gateway to the listener, through the socket, the decoder and the event dispatcher.
+ * <p>
+ * Options: `--events-per-second` (default 20000), `--seconds` (30), `--shards` (4), `--guilds` (100), `--rest-per-second` (0), `--compress`, `--etf`, `--journal <directory>`.
+ */
+public class LoadTest {
+    private static final String MESSAGE = "{\"type\":0,\"tts\":false,\"timestamp\":\"2022-06-01T18:21:03.555000+00:00\",\"pinned\":false,"
+            + "\"nonce\":%d,\"mentions\":[],\"mention_roles\":[],\"mention_everyone\":false,\"id\":\"%d\",\"flags\":0,\"embeds\":[],"
+            + "\"edited_timestamp\":null,\"content\":\"Hey, could someone have a look at the logs of the deployment from this morning?\","
+            + "\"components\":[],\"channel_id\":\"%d\",\"author\":{\"id\":\"200000000000000000\",\"username\":\"user\",\"avatar\":null,"
+            + "\"discriminator\":\"0\",\"public_flags\":0},\"attachments\":[],\"guild_id\":\"%d\"}";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int eventsPerSecond = Integer.parseInt(options.getOrDefault("events-per-second", "20000"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        int shards = Integer.parseInt(options.getOrDefault("shards", "4"));
+        int guilds = Integer.parseInt(options.getOrDefault("guilds", "100"));
+        int restPerSecond = Integer.parseInt(options.getOrDefault("rest-per-second", "0"));
+        boolean compress = options.containsKey("compress");
+        boolean etf = options.containsKey("etf");
+
+        FakeGateway gateway = new FakeGateway(0, 41250);
+        gateway.startAndWait();
+        FakeRestServer rest = new FakeRestServer(0, gateway.getUrl(), shards, 5, 5000, 50, 0);
+
+        Map<String, String> config = new HashMap<>();
+        config.put("auth_token", "load-test");
+        config.put("api_base_url", rest.getUrl());
+        config.put("intents", "GUILD_MESSAGES");
+        config.put("event_queue_size", String.valueOf(Math.max(10000, eventsPerSecond)));
+        config.put("hot_reload", "false");
+        if (compress) config.put("compress", "zlib-stream");
+        if (etf) config.put("encoding", "etf");
+        if (options.containsKey("journal")) config.put("journal", options.get("journal"));
+        CuteCord.setConfig(config);
+        CuteCord.setAuthToken(config.get("auth_token"));
+
+        Histogram latency = MetricsRegistry.getInstance().histogram("cutecord_load_test_latency_seconds",
+                "Time between dispatching an event from the fake gateway and a listener receiving it.");
+        AtomicLong received = new AtomicLong();
+        CuteCord.getEventDispatcher().register(GatewayEventType.MESSAGE_CREATE, event -> {
+            latency.recordSince(event.getData().getLong("nonce"));
+            received.incrementAndGet();
+        });
+
+        CuteCord.start();
+        long deadline = System.currentTimeMillis() + 30000;
+        while (gateway.getReadyShards() < shards) {
+            if (System.currentTimeMillis() > deadline) throw new IllegalStateException("The shards didn't connect to the fake gateway");
+            Thread.sleep(100);
+        }
+        System.out.printf("INFO: %d shard(s) ready, dispatching %d events per second for %d seconds.%n", shards, eventsPerSecond, seconds);
+
+        Thread restLoad = null;
+        AtomicLong restCompleted = new AtomicLong();
+        if (restPerSecond > 0) {
+            restLoad = new Thread(() -> sendRequests(restPerSecond, restCompleted), "LoadTest-Rest");
+            restLoad.setDaemon(true);
+            restLoad.start();
+        }
+
+        long sent = 0;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastReceived = 0;
+        while (System.nanoTime() < end) {
+            // Catch up with the number of events which should have been sent by now, then wait a little.
+            long due = (System.nanoTime() - start) * eventsPerSecond / 1_000_000_000L;
+            while (sent < due) {
+                long channelId = 300000000000000000L + sent % 100;
+                long guild = sent % guilds;
+                gateway.dispatch((int) (guild % shards), "MESSAGE_CREATE",
+                        String.format(MESSAGE, System.nanoTime(), 400000000000000000L + sent, channelId, 500000000000000000L + guild));
+                sent++;
+            }
+            if (System.nanoTime() >= nextReport) {
+                long total = received.get();
+                System.out.printf("INFO: sent %d, received %d (%d/s), latency p50 %.3f ms, p99 %.3f ms%n", sent, total, total - lastReceived,
+                        latency.getQuantile(0.5) / 1e6, latency.getQuantile(0.99) / 1e6);
+                lastReceived = total;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            Thread.sleep(1);
+        }
+        if (restLoad != null) restLoad.interrupt();
+        Thread.sleep(1000);
+
+        System.out.printf("INFO: Sent %d events, received %d. Latency p50 %.3f ms, p90 %.3f ms, p99 %.3f ms.%n", sent, received.get(),
+                latency.getQuantile(0.5) / 1e6, latency.getQuantile(0.9) / 1e6, latency.getQuantile(0.99) / 1e6);
+        if (restPerSecond > 0) {
+            System.out.printf("INFO: Completed %d REST requests, the fake server received %d, rate limited %d on their route and %d globally.%n",
+                    restCompleted.get(), rest.getRequests(), rest.getRateLimited(), rest.getGloballyRateLimited());
+        }
+        CuteCord.stop();
+        gateway.stop();
+        rest.close();
+        System.exit(0);
+    }
+
+    /**
+     * Sends messages to 10 channels at the given rate, more than their rate limits allow, so that requests wait in their buckets.
+     */
+    private static void sendRequests(int perSecond, AtomicLong completed) {
+        RequestHandler requestHandler = RequestHandler.getInstance();
+        long sent = 0;
+        long start = System.nanoTime();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long due = (System.nanoTime() - start) * perSecond / 1_000_000_000L;
+                while (sent < due) {
+                    RestRequest request = RestRequest.post("/channels/" + (300000000000000000L + sent % 10) + "/messages",
+                            new JSONObject().put("content", "Message " + sent));
+                    CompletableFuture<RestResponse> response = requestHandler.submit(request);
+                    response.thenRun(completed::incrementAndGet);
+                    sent++;
+                }
+                Thread.sleep(5);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, "true");
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,133 @@
+package internals;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests of {@link OffHeapEntityCache}, with presences as entities, past the growth of its hash table and across a reopening of its files.
+ */
+class OffHeapEntityCacheTest {
+    private static final long GUILD_ID = 1;
+
+    /**
+     * More entities than the initial capacity of the records, so that the hash table is rebuilt while putting them.
+     */
+    private static final int COUNT = 1500;
+
+    @Test
+    void putsRemovesAndLooksUpPastResize() {
+        OffHeapEntityCache cache = OffHeapEntityCache.allocate(CachePolicy.ALL, new PresenceRecordCodec());
+        for (int id = 1; id <= COUNT; id++) {
+            cache.put(GUILD_ID, id, GUILD_ID, presence(id));
+        }
+        assertEquals(COUNT, cache.size());
+        for (int id = 1; id <= COUNT; id++) {
+            assertEquals(status(id), cache.get(GUILD_ID, id).getString("status"), "id " + id);
+        }
+        for (int id = 1; id <= COUNT; id++) {
+            cache.remove(GUILD_ID, id);
+        }
+        assertEquals(0, cache.size());
+        for (int id = 1; id <= COUNT; id++) {
+            assertNull(cache.get(GUILD_ID, id), "id " + id);
+        }
+        // Removing again must neither free the records twice nor make the size negative.
+        for (int id = 1; id <= COUNT; id++) {
+            cache.remove(GUILD_ID, id);
+        }
+        assertEquals(0, cache.size());
+        for (int id = 1; id <= COUNT; id++) {
+            cache.put(GUILD_ID, id + COUNT, GUILD_ID, presence(id));
+        }
+        assertEquals(COUNT, cache.size());
+        for (int id = 1; id <= COUNT; id++) {
+            assertEquals(status(id), cache.get(GUILD_ID, id + COUNT).getString("status"), "id " + (id + COUNT));
+        }
+        cache.close();
+    }
+
+    @Test
+    void replacesExistingEntity() {
+        OffHeapEntityCache cache = OffHeapEntityCache.allocate(CachePolicy.ALL, new PresenceRecordCodec());
+        cache.put(GUILD_ID, 42, GUILD_ID, new JSONObject().put("status", "online"));
+        cache.put(GUILD_ID, 42, GUILD_ID, new JSONObject().put("status", "dnd"));
+        assertEquals(1, cache.size());
+        assertEquals("dnd", cache.get(GUILD_ID, 42).getString("status"));
+        cache.close();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        OffHeapEntityCache cache = OffHeapEntityCache.allocate(CachePolicy.lru(100, 0), new PresenceRecordCodec());
+        for (int id = 1; id <= COUNT; id++) {
+            cache.put(GUILD_ID, id, GUILD_ID, presence(id));
+        }
+        assertEquals(100, cache.size());
+        assertNull(cache.get(GUILD_ID, COUNT - 100));
+        assertNotNull(cache.get(GUILD_ID, COUNT - 99));
+        cache.close();
+    }
+
+    @Test
+    void reopensMappedCache(@TempDir Path directory) throws IOException {
+        OffHeapEntityCache cache = OffHeapEntityCache.open(CachePolicy.ALL, new PresenceRecordCodec(), directory, "presences");
+        for (int id = 1; id <= COUNT; id++) {
+            cache.put(GUILD_ID, id, GUILD_ID, presence(id));
+        }
+        for (int id = 1; id <= COUNT; id += 3) {
+            cache.remove(GUILD_ID, id);
+        }
+        int expectedSize = cache.size();
+        cache.close();
+
+        OffHeapEntityCache reopened = OffHeapEntityCache.open(CachePolicy.ALL, new PresenceRecordCodec(), directory, "presences");
+        assertEquals(expectedSize, reopened.size());
+        for (int id = 1; id <= COUNT; id++) {
+            JSONObject presence = reopened.get(GUILD_ID, id);
+            if (id % 3 == 1) {
+                assertNull(presence, "id " + id);
+            } else {
+                assertEquals(status(id), presence.getString("status"), "id " + id);
+            }
+        }
+        // The reopened cache keeps working, reusing the records freed before it was closed.
+        for (int id = 1; id <= COUNT; id += 3) {
+            reopened.put(GUILD_ID, id, GUILD_ID, presence(id));
+        }
+        assertEquals(COUNT, reopened.size());
+        assertEquals(status(1), reopened.get(GUILD_ID, 1).getString("status"));
+        reopened.close();
+    }
+
+    @Test
+    void discardsCacheWhichWasntClosed(@TempDir Path directory) throws IOException {
+        OffHeapEntityCache cache = OffHeapEntityCache.open(CachePolicy.ALL, new PresenceRecordCodec(), directory, "presences");
+        cache.put(GUILD_ID, 1, GUILD_ID, presence(1));
+        // Not closed, as after a crash.
+        OffHeapEntityCache reopened = OffHeapEntityCache.open(CachePolicy.ALL, new PresenceRecordCodec(), directory, "presences");
+        assertEquals(0, reopened.size());
+        assertNull(reopened.get(GUILD_ID, 1));
+        reopened.close();
+        cache.close();
+    }
+
+    private static String status(int id) {
+        return switch (id % 3) {
+            case 0 -> "online";
+            case 1 -> "idle";
+            default -> "dnd";
+        };
+    }
+
+    private static JSONObject presence(int id) {
+        return new JSONObject().put("status", status(id));
+    }
+}
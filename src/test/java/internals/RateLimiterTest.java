@@ -0,0 +1,181 @@
+package internals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link RateLimiter}, against a transport which answers each request after a short delay with the headers given by the test.
+ */
+class RateLimiterTest {
+    private static final long LATENCY = 20;
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    void stopScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void sendsRequestsOfABucketOneAfterTheOther() throws Exception {
+        RateLimiter limiter = new RateLimiter(scheduler, transport(request -> ok("abc", 100)));
+        List<CompletableFuture<RestResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(limiter.submit(RestRequest.get("/channels/1/messages/" + i)));
+        }
+        awaitAll(futures);
+        assertEquals(1, maxInFlight.get());
+        assertEquals(List.of("/channels/1/messages/0", "/channels/1/messages/1", "/channels/1/messages/2",
+                "/channels/1/messages/3", "/channels/1/messages/4"), sent);
+    }
+
+    @Test
+    void sendsRequestsOfDifferentMajorParametersConcurrently() throws Exception {
+        RateLimiter limiter = new RateLimiter(scheduler, transport(request -> ok("abc", 100)));
+        List<CompletableFuture<RestResponse>> futures = new ArrayList<>();
+        for (int channel = 1; channel <= 3; channel++) {
+            futures.add(limiter.submit(RestRequest.get("/channels/" + channel + "/messages")));
+        }
+        awaitAll(futures);
+        assertEquals(3, maxInFlight.get());
+    }
+
+    @Test
+    void forwardsQueuedRequestsOnceTheBucketHashIsKnown() throws Exception {
+        RateLimiter limiter = new RateLimiter(scheduler, transport(request -> ok("abc", 100)));
+        List<CompletableFuture<RestResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(limiter.submit(RestRequest.get("/channels/1/messages/" + i)));
+        }
+        // Submitted once the first response told the hash of the route, so they go to the shared bucket directly.
+        Thread.sleep(LATENCY * 2);
+        for (int i = 5; i < 10; i++) {
+            futures.add(limiter.submit(RestRequest.get("/channels/1/messages/" + i)));
+        }
+        awaitAll(futures);
+        assertEquals(1, maxInFlight.get());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("/channels/1/messages/" + i, sent.get(i));
+        }
+    }
+
+    @Test
+    void waitsForTheResetOfAnExhaustedBucket() throws Exception {
+        RateLimiter limiter = new RateLimiter(scheduler, transport(request -> ok("abc", 0, "0.2")));
+        long start = System.currentTimeMillis();
+        awaitAll(List.of(limiter.submit(RestRequest.get("/channels/1/messages")), limiter.submit(RestRequest.get("/channels/1/messages"))));
+        assertTrue(System.currentTimeMillis() - start >= 200, "the second request must wait for the reset");
+    }
+
+    @Test
+    void retriesRateLimitedRequests() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        RateLimiter limiter = new RateLimiter(scheduler, transport(request -> attempts.incrementAndGet() == 1
+                ? response(429, Map.of("X-RateLimit-Bucket", "abc", "X-RateLimit-Remaining", "0",
+                "X-RateLimit-Reset-After", "0.05", "Retry-After", "0.05"))
+                : ok("abc", 5)));
+        RestResponse response = limiter.submit(RestRequest.get("/channels/1/messages")).get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void handsOutTheResponseAfterTooManyRetries() throws Exception {
+        RateLimiter limiter = new RateLimiter(scheduler, transport(request -> response(429, Map.of("Retry-After", "0.01"))));
+        assertEquals(429, limiter.submit(RestRequest.get("/users/@me")).get(5, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(4, sent.size());
+    }
+
+    @Test
+    void malformedHeadersFailTheRequestWithoutStallingTheBucket() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        RateLimiter limiter = new RateLimiter(scheduler, transport(request -> attempts.incrementAndGet() == 1
+                ? response(200, Map.of("X-RateLimit-Remaining", "many", "X-RateLimit-Reset-After", "soon"))
+                : ok("abc", 5)));
+        CompletableFuture<RestResponse> malformed = limiter.submit(RestRequest.get("/channels/1/messages"));
+        CompletableFuture<RestResponse> next = limiter.submit(RestRequest.get("/channels/1/messages"));
+        ExecutionException error = assertThrows(ExecutionException.class, () -> malformed.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(NumberFormatException.class, error.getCause());
+        assertEquals(200, next.get(5, TimeUnit.SECONDS).getStatusCode());
+    }
+
+    @Test
+    void transportFailuresFailTheRequestWithoutStallingTheBucket() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        RateLimiter limiter = new RateLimiter(scheduler, request -> {
+            if (attempts.incrementAndGet() == 1) throw new IllegalArgumentException("invalid uri");
+            return attempts.get() == 2 ? CompletableFuture.failedFuture(new RuntimeException("connection reset"))
+                    : CompletableFuture.completedFuture(ok("abc", 5));
+        });
+        CompletableFuture<RestResponse> thrown = limiter.submit(RestRequest.get("/channels/1/messages"));
+        CompletableFuture<RestResponse> failed = limiter.submit(RestRequest.get("/channels/1/messages"));
+        CompletableFuture<RestResponse> next = limiter.submit(RestRequest.get("/channels/1/messages"));
+        assertThrows(ExecutionException.class, () -> thrown.get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertEquals(200, next.get(5, TimeUnit.SECONDS).getStatusCode());
+    }
+
+    /**
+     * Wraps the answers of a test in a transport answering after {@link RateLimiterTest#LATENCY}, which records the requests
+     * in the order they are sent, and how many are in flight at once.
+     */
+    private Function<RestRequest, CompletableFuture<RestResponse>> transport(Function<RestRequest, RestResponse> answer) {
+        return request -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            sent.add(request.getPath());
+            CompletableFuture<RestResponse> future = new CompletableFuture<>();
+            scheduler.schedule(() -> {
+                inFlight.decrementAndGet();
+                try {
+                    future.complete(answer.apply(request));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }, LATENCY, TimeUnit.MILLISECONDS);
+            return future;
+        };
+    }
+
+    private static RestResponse ok(String bucket, int remaining) {
+        return ok(bucket, remaining, "1");
+    }
+
+    private static RestResponse ok(String bucket, int remaining, String resetAfter) {
+        return response(200, Map.of("X-RateLimit-Bucket", bucket, "X-RateLimit-Remaining", String.valueOf(remaining),
+                "X-RateLimit-Reset-After", resetAfter));
+    }
+
+    private static RestResponse response(int status, Map<String, String> headers) {
+        Map<String, List<String>> values = new HashMap<>();
+        headers.forEach((name, value) -> values.put(name, List.of(value)));
+        return new RestResponse(status, HttpHeaders.of(values, (name, value) -> true), "{}");
+    }
+
+    private static void awaitAll(List<CompletableFuture<RestResponse>> futures) throws Exception {
+        for (CompletableFuture<RestResponse> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link StripedExecutor}: the order of the tasks of a key, the waiting of submitters for room in a full lane,
+ * and the draining of the lanes on shutdown.
+ */
+class StripedExecutorTest {
+    /**
+     * The smallest capacity of a lane, as capacities are rounded up to a power of two of at least 4.
+     */
+    private static final int CAPACITY = 4;
+
+    @Test
+    void runsTasksOfAKeyInSubmissionOrder() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test-lane-", 4, 64);
+        int keys = 16;
+        int tasksPerKey = 2000;
+        List<List<Integer>> runs = new ArrayList<>();
+        for (int key = 0; key < keys; key++) {
+            runs.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int key = 0; key < keys; key++) {
+                int task = i;
+                List<Integer> run = runs.get(key);
+                executor.execute(81384788765712384L + key, () -> run.add(task));
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        for (int key = 0; key < keys; key++) {
+            List<Integer> run = runs.get(key);
+            assertEquals(tasksPerKey, run.size(), "key " + key);
+            for (int i = 0; i < tasksPerKey; i++) {
+                assertEquals(i, run.get(i), "key " + key);
+            }
+        }
+    }
+
+    @Test
+    void waitsForRoomInAFullLane() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test-lane-", 1, CAPACITY);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        List<Integer> runs = Collections.synchronizedList(new ArrayList<>());
+        executor.execute(1, () -> {
+            blocked.countDown();
+            await(unblock);
+            runs.add(0);
+        });
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        for (int i = 1; i <= CAPACITY; i++) {
+            int task = i;
+            executor.execute(1, () -> runs.add(task));
+        }
+        CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> executor.execute(1, () -> runs.add(CAPACITY + 1)));
+        Thread.sleep(100);
+        assertFalse(waiting.isDone(), "the submitter must wait while the lane is full");
+
+        unblock.countDown();
+        waiting.get(1, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2, 3, 4, 5), runs);
+    }
+
+    @Test
+    void runsTaskSubmittedFromItsOwnFullLaneRightAway() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test-lane-", 1, CAPACITY);
+        List<Integer> runs = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(1, () -> {
+            for (int i = 1; i <= CAPACITY; i++) {
+                int task = i;
+                executor.execute(1, () -> runs.add(task));
+            }
+            // The lane can't wait for itself to make room.
+            executor.execute(1, () -> runs.add(0));
+            done.countDown();
+        });
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2, 3, 4), runs);
+    }
+
+    @Test
+    void shutdownRunsQueuedTasks() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test-lane-", 2, CAPACITY);
+        CountDownLatch unblock = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        executor.execute(1, () -> {
+            await(unblock);
+            runs.incrementAndGet();
+        });
+        for (int i = 0; i < 3; i++) {
+            executor.execute(1, runs::incrementAndGet);
+            executor.execute(2, runs::incrementAndGet);
+        }
+        executor.shutdown();
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(1, runs::incrementAndGet));
+        assertFalse(executor.awaitTermination(100, TimeUnit.MILLISECONDS));
+
+        unblock.countDown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(7, runs.get());
+        assertEquals(0, executor.size());
+    }
+
+    @Test
+    void shutdownNowDropsQueuedTasks() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test-lane-", 1, CAPACITY);
+        CountDownLatch blocked = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        executor.execute(1, () -> {
+            blocked.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            executor.execute(1, runs::incrementAndGet);
+        }
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    void runsLanesOnThreadsOfTheGivenFactory() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        StripedExecutor executor = new StripedExecutor(task -> {
+            Thread thread = new Thread(task, "custom-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, 3, CAPACITY);
+        assertEquals(3, created.get());
+        CompletableFuture<String> name = new CompletableFuture<>();
+        executor.execute(1, () -> name.complete(Thread.currentThread().getName()));
+        assertTrue(name.get(1, TimeUnit.SECONDS).startsWith("custom-"));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}